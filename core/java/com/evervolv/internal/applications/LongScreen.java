@@ -19,7 +19,7 @@ package com.evervolv.internal.applications;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.ContentObserver;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.UserHandle;
@@ -47,9 +47,8 @@ public class LongScreen {
             return;
         }
 
-        SettingsObserver observer = new SettingsObserver(
-                new Handler(Looper.getMainLooper()));
-        observer.observe();
+        SettingsListener listener = new SettingsListener();
+        listener.observe(new Handler(Looper.getMainLooper()));
     }
 
     public boolean isSupported() {
@@ -80,32 +79,33 @@ public class LongScreen {
         mApps = apps;
     }
 
-    class SettingsObserver extends ContentObserver {
-        SettingsObserver(Handler handler) {
-            super(handler);
-        }
-
-        void observe() {
+    class SettingsListener implements EVSettings.KeyListener {
+        void observe(Handler handler) {
             ContentResolver resolver = mContext.getContentResolver();
 
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.LONG_SCREEN_APPS), false, this,
-                    UserHandle.USER_ALL);
+            EVSettings.registerKeyListenerForUser(resolver, EVSettings.System.CONTENT_URI,
+                    new String[] { EVSettings.System.LONG_SCREEN_APPS },
+                    UserHandle.USER_ALL, handler::post, this);
 
             update();
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            update();
+        public void onKeysChanged(Uri table, int userId, EVSettings.ChangedKeys changes) {
+            if (changes.isForCurrentUser()) {
+                applyApps(changes.getString(EVSettings.System.LONG_SCREEN_APPS));
+            }
         }
 
         public void update() {
             ContentResolver resolver = mContext.getContentResolver();
 
-            String apps = EVSettings.System.getStringForUser(resolver,
+            applyApps(EVSettings.System.getStringForUser(resolver,
                     EVSettings.System.LONG_SCREEN_APPS,
-                    UserHandle.USER_CURRENT);
+                    UserHandle.USER_CURRENT));
+        }
+
+        private void applyApps(String apps) {
             if (apps != null) {
                 setApps(new HashSet<>(Arrays.asList(apps.split(","))));
             } else {
@@ -19,9 +19,9 @@ package com.evervolv.internal.buttons;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.media.session.MediaSessionLegacyHelper;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
 import android.os.UserHandle;
@@ -76,8 +76,8 @@ public final class ButtonManager {
         mButtonBrightnessDefault = mContext.getResources().getFloat(
                 com.evervolv.platform.internal.R.dimen.config_buttonBrightnessSettingDefaultFloat);
 
-        SettingsObserver observer = new SettingsObserver(new Handler());
-        observer.observe();
+        SettingsListener listener = new SettingsListener();
+        listener.observe(new Handler());
     }
 
     public boolean handleVolumeKey(KeyEvent event, boolean isInteractive) {
@@ -147,33 +147,42 @@ public final class ButtonManager {
         MediaSessionLegacyHelper.getHelper(mContext).sendMediaButtonEvent(ev, true);
     }
 
-    class SettingsObserver extends ContentObserver {
-        SettingsObserver(Handler handler) {
-            super(handler);
-        }
-
-        void observe() {
+    class SettingsListener implements EVSettings.KeyListener {
+        void observe(Handler handler) {
             ContentResolver resolver = mContext.getContentResolver();
 
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.VOLBTN_MUSIC_CONTROLS),
-                            false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.BUTTON_BRIGHTNESS),
-                            false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.BUTTON_BACKLIGHT_TIMEOUT),
-                            false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.BUTTON_BACKLIGHT_ONLY_WHEN_PRESSED),
-                            false, this, UserHandle.USER_ALL);
+            EVSettings.registerKeyListenerForUser(resolver, EVSettings.System.CONTENT_URI,
+                    new String[] {
+                        EVSettings.System.VOLBTN_MUSIC_CONTROLS,
+                        EVSettings.System.BUTTON_BRIGHTNESS,
+                        EVSettings.System.BUTTON_BACKLIGHT_TIMEOUT,
+                        EVSettings.System.BUTTON_BACKLIGHT_ONLY_WHEN_PRESSED
+                    }, UserHandle.USER_ALL, handler::post, this);
 
             update();
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            update();
+        public void onKeysChanged(Uri table, int userId, EVSettings.ChangedKeys changes) {
+            if (!changes.isForCurrentUser()) {
+                return;
+            }
+            if (changes.contains(EVSettings.System.VOLBTN_MUSIC_CONTROLS)) {
+                mVolBtnMusicControls = changes.getInt(
+                        EVSettings.System.VOLBTN_MUSIC_CONTROLS, 1) == 1;
+            }
+            if (changes.contains(EVSettings.System.BUTTON_BACKLIGHT_TIMEOUT)) {
+                mButtonTimeout = changes.getInt(EVSettings.System.BUTTON_BACKLIGHT_TIMEOUT,
+                        DEFAULT_BUTTON_ON_DURATION);
+            }
+            if (changes.contains(EVSettings.System.BUTTON_BRIGHTNESS)) {
+                mButtonBrightness = changes.getFloat(EVSettings.System.BUTTON_BRIGHTNESS,
+                        mButtonBrightnessDefault);
+            }
+            if (changes.contains(EVSettings.System.BUTTON_BACKLIGHT_ONLY_WHEN_PRESSED)) {
+                mButtonLightOnKeypressOnly = changes.getInt(
+                        EVSettings.System.BUTTON_BACKLIGHT_ONLY_WHEN_PRESSED, 0) == 1;
+            }
         }
 
         private void update() {
@@ -23,7 +23,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
-import android.database.ContentObserver;
+import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.Handler;
 import android.os.UserHandle;
@@ -32,6 +32,8 @@ import android.util.Slog;
 
 import evervolv.provider.EVSettings;
 
+import java.util.ArrayList;
+
 public final class BatteryLightHelper {
     private final String TAG = "BatteryLightHelper";
     private final boolean DEBUG = false;
@@ -102,8 +104,8 @@ public final class BatteryLightHelper {
                 }, filter);
         mZenMode = mNotificationManager.getZenMode();
 
-        SettingsObserver observer = new SettingsObserver(new Handler());
-        observer.observe();
+        SettingsListener listener = new SettingsListener();
+        listener.observe(new Handler());
     }
 
     public boolean isSupported() {
@@ -202,54 +204,77 @@ public final class BatteryLightHelper {
         }
     }
 
-    class SettingsObserver extends ContentObserver {
-        SettingsObserver(Handler handler) {
-            super(handler);
-        }
-
-        void observe() {
+    class SettingsListener implements EVSettings.KeyListener {
+        void observe(Handler handler) {
             ContentResolver resolver = mContext.getContentResolver();
+            ArrayList<String> keys = new ArrayList<>();
 
             // Battery light enabled
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.BATTERY_LIGHT_ENABLED), false, this,
-                    UserHandle.USER_ALL);
+            keys.add(EVSettings.System.BATTERY_LIGHT_ENABLED);
 
             // Low battery pulse
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.BATTERY_LIGHT_PULSE), false, this,
-                    UserHandle.USER_ALL);
+            keys.add(EVSettings.System.BATTERY_LIGHT_PULSE);
 
             if (mMultiColorBatteryLed) {
                 // Light colors
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.BATTERY_LIGHT_LOW_COLOR), false, this,
-                        UserHandle.USER_ALL);
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.BATTERY_LIGHT_MEDIUM_COLOR), false, this,
-                        UserHandle.USER_ALL);
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.BATTERY_LIGHT_FULL_COLOR), false, this,
-                        UserHandle.USER_ALL);
+                keys.add(EVSettings.System.BATTERY_LIGHT_LOW_COLOR);
+                keys.add(EVSettings.System.BATTERY_LIGHT_MEDIUM_COLOR);
+                keys.add(EVSettings.System.BATTERY_LIGHT_FULL_COLOR);
             }
 
             if (mCanAdjustBrightness) {
                 // Battery brightness level
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL), false, this,
-                        UserHandle.USER_ALL);
+                keys.add(EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL);
                 // Battery brightness level in Do Not Disturb mode
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN), false, this,
-                        UserHandle.USER_ALL);
+                keys.add(EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN);
             }
 
+            EVSettings.registerKeyListenerForUser(resolver, EVSettings.System.CONTENT_URI,
+                    keys.toArray(new String[0]), UserHandle.USER_ALL, handler::post, this);
+
             update();
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            update();
+        public void onKeysChanged(Uri table, int userId, EVSettings.ChangedKeys changes) {
+            if (!changes.isForCurrentUser()) {
+                return;
+            }
+            Resources res = mContext.getResources();
+
+            if (changes.contains(EVSettings.System.BATTERY_LIGHT_ENABLED)) {
+                mLightEnabled = changes.getInt(EVSettings.System.BATTERY_LIGHT_ENABLED, 1) != 0;
+            }
+            if (changes.contains(EVSettings.System.BATTERY_LIGHT_PULSE)) {
+                mLedPulseEnabled = changes.getInt(EVSettings.System.BATTERY_LIGHT_PULSE, 1) != 0;
+            }
+            if (changes.contains(EVSettings.System.BATTERY_LIGHT_LOW_COLOR)) {
+                mBatteryLowARGB = changes.getInt(EVSettings.System.BATTERY_LIGHT_LOW_COLOR,
+                        res.getInteger(
+                        com.android.internal.R.integer.config_notificationsBatteryLowARGB));
+            }
+            if (changes.contains(EVSettings.System.BATTERY_LIGHT_MEDIUM_COLOR)) {
+                mBatteryMediumARGB = changes.getInt(EVSettings.System.BATTERY_LIGHT_MEDIUM_COLOR,
+                        res.getInteger(
+                        com.android.internal.R.integer.config_notificationsBatteryMediumARGB));
+            }
+            if (changes.contains(EVSettings.System.BATTERY_LIGHT_FULL_COLOR)) {
+                mBatteryFullARGB = changes.getInt(EVSettings.System.BATTERY_LIGHT_FULL_COLOR,
+                        res.getInteger(
+                        com.android.internal.R.integer.config_notificationsBatteryFullARGB));
+            }
+            if (changes.contains(EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL)) {
+                mBatteryBrightnessLevel = changes.getInt(
+                        EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
+                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM);
+            }
+            if (changes.contains(EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN)) {
+                mBatteryBrightnessZenLevel = changes.getInt(
+                        EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM);
+            }
+
+            mLedUpdater.update();
         }
 
         private void update() {
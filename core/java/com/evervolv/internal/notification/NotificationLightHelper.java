@@ -29,6 +29,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -40,6 +41,7 @@ import android.util.Slog;
 import evervolv.provider.EVSettings;
 import evervolv.util.ColorUtils;
 
+import java.util.ArrayList;
 import java.util.Map;
 
 public final class NotificationLightHelper {
@@ -364,58 +366,117 @@ public final class NotificationLightHelper {
         }
     }
 
-    class SettingsObserver extends ContentObserver {
+    class SettingsObserver extends ContentObserver implements EVSettings.KeyListener {
+        private final Handler mHandler;
+
         SettingsObserver(Handler handler) {
             super(handler);
+            mHandler = handler;
         }
 
         void observe() {
             ContentResolver resolver = mContext.getContentResolver();
+            ArrayList<String> keys = new ArrayList<>();
 
             resolver.registerContentObserver(Settings.System.getUriFor(
                     Settings.System.NOTIFICATION_LIGHT_PULSE),
                     false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_SCREEN_ON),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO), false,
-                    this, UserHandle.USER_ALL);
+            keys.add(EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR);
+            keys.add(EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON);
+            keys.add(EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF);
+            keys.add(EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE);
+            keys.add(EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES);
+            keys.add(EVSettings.System.NOTIFICATION_LIGHT_SCREEN_ON);
+            keys.add(EVSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO);
 
             if (mCanAdjustBrightness) {
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL),
-                        false, this, UserHandle.USER_ALL);
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN),
-                        false, this, UserHandle.USER_ALL);
+                keys.add(EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL);
+                keys.add(EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN);
             }
 
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.ZEN_ALLOW_LIGHTS), false, this,
-                    UserHandle.USER_ALL);
+            keys.add(EVSettings.System.ZEN_ALLOW_LIGHTS);
+
+            EVSettings.registerKeyListenerForUser(resolver, EVSettings.System.CONTENT_URI,
+                    keys.toArray(new String[0]), UserHandle.USER_ALL, mHandler::post, this);
 
             update();
         }
 
         @Override
         public void onChange(boolean selfChange) {
-            update();
+            // Only Settings.System.NOTIFICATION_LIGHT_PULSE is observed this way
+            updateLedEnabled(mContext.getContentResolver());
+            mLedUpdater.update();
+        }
+
+        private void updateLedEnabled(ContentResolver resolver) {
+            mNotificationLedEnabled = Settings.System.getIntForUser(resolver,
+                    Settings.System.NOTIFICATION_LIGHT_PULSE,
+                    0, UserHandle.USER_CURRENT) != 0;
+        }
+
+        @Override
+        public void onKeysChanged(Uri table, int userId, EVSettings.ChangedKeys changes) {
+            if (!changes.isForCurrentUser()) {
+                return;
+            }
+
+            if (changes.contains(EVSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO)) {
+                mAutoGenerateNotificationColor = changes.getInt(
+                        EVSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO, 1) != 0;
+                mGeneratedPackageLedColors.clear();
+            }
+            if (changes.contains(EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR)) {
+                mDefaultNotificationColor = changes.getInt(
+                        EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
+                        mDefaultNotificationColor);
+            }
+            if (changes.contains(EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON)) {
+                mDefaultNotificationLedOn = changes.getInt(
+                        EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON,
+                        mDefaultNotificationLedOn);
+            }
+            if (changes.contains(EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF)) {
+                mDefaultNotificationLedOff = changes.getInt(
+                        EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
+                        mDefaultNotificationLedOff);
+            }
+            if (changes.contains(EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE)
+                    || changes.contains(
+                            EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES)) {
+                // Either one depends on the other, which is still cached if it didn't change
+                updateCustomLedValues(mContext.getContentResolver());
+            }
+            if (changes.contains(EVSettings.System.NOTIFICATION_LIGHT_SCREEN_ON)) {
+                mScreenOnEnabled = changes.getInt(
+                        EVSettings.System.NOTIFICATION_LIGHT_SCREEN_ON, 0) != 0;
+            }
+            if (changes.contains(EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL)) {
+                mNotificationLedBrightnessLevel = changes.getInt(
+                        EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM);
+            }
+            if (changes.contains(EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN)) {
+                mNotificationLedBrightnessLevelZen = changes.getInt(
+                        EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM);
+            }
+            if (changes.contains(EVSettings.System.ZEN_ALLOW_LIGHTS)) {
+                mZenAllowLights = changes.getInt(EVSettings.System.ZEN_ALLOW_LIGHTS, 1) != 0;
+            }
+
+            mLedUpdater.update();
+        }
+
+        private void updateCustomLedValues(ContentResolver resolver) {
+            mNotificationPulseCustomLedValues.clear();
+            if (EVSettings.System.getIntForUser(resolver,
+                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE, 0,
+                    UserHandle.USER_CURRENT) != 0) {
+                parseNotificationPulseCustomValuesString(EVSettings.System.getStringForUser(
+                        resolver, EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                        UserHandle.USER_CURRENT));
+            }
         }
 
         private void update() {
@@ -423,9 +484,7 @@ public final class NotificationLightHelper {
             Resources res = mContext.getResources();
 
             // Whether the notification led is enabled
-            mNotificationLedEnabled = Settings.System.getIntForUser(resolver,
-                    Settings.System.NOTIFICATION_LIGHT_PULSE,
-                    0, UserHandle.USER_CURRENT) != 0;
+            updateLedEnabled(resolver);
 
             // Automatically pick a color for LED if not set
             mAutoGenerateNotificationColor = EVSettings.System.getIntForUser(resolver,
@@ -451,14 +510,7 @@ public final class NotificationLightHelper {
             mGeneratedPackageLedColors.clear();
 
             // LED custom notification colors
-            mNotificationPulseCustomLedValues.clear();
-            if (EVSettings.System.getIntForUser(resolver,
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE, 0,
-                    UserHandle.USER_CURRENT) != 0) {
-                parseNotificationPulseCustomValuesString(EVSettings.System.getStringForUser(
-                        resolver, EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
-                        UserHandle.USER_CURRENT));
-            }
+            updateCustomLedValues(resolver);
 
             // Notification lights with screen on
             mScreenOnEnabled = (EVSettings.System.getIntForUser(resolver,
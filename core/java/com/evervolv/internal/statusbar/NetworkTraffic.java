@@ -19,7 +19,6 @@ package com.evervolv.internal.statusbar;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.ContentObserver;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
@@ -31,6 +30,7 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.net.TrafficStats;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
 import android.os.SystemClock;
@@ -351,34 +351,49 @@ public class NetworkTraffic extends TextView {
         mObserver.unobserve();
     }
 
-    class SettingsObserver extends ContentObserver {
+    class SettingsObserver implements EVSettings.KeyListener {
+        private final Handler mHandler;
+
         SettingsObserver(Handler handler) {
-            super(handler);
+            mHandler = handler;
         }
 
         void observe() {
             ContentResolver resolver = mContext.getContentResolver();
-            resolver.registerContentObserver(EVSettings.Secure.getUriFor(
-                    EVSettings.Secure.NETWORK_TRAFFIC_MODE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.Secure.getUriFor(
-                    EVSettings.Secure.NETWORK_TRAFFIC_AUTOHIDE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.Secure.getUriFor(
-                    EVSettings.Secure.NETWORK_TRAFFIC_UNITS),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.Secure.getUriFor(
-                    EVSettings.Secure.NETWORK_TRAFFIC_SHOW_UNITS),
-                    false, this, UserHandle.USER_ALL);
+            EVSettings.registerKeyListenerForUser(resolver, EVSettings.Secure.CONTENT_URI,
+                    new String[] {
+                        EVSettings.Secure.NETWORK_TRAFFIC_MODE,
+                        EVSettings.Secure.NETWORK_TRAFFIC_AUTOHIDE,
+                        EVSettings.Secure.NETWORK_TRAFFIC_UNITS,
+                        EVSettings.Secure.NETWORK_TRAFFIC_SHOW_UNITS
+                    }, UserHandle.USER_ALL, mHandler::post, this);
         }
 
         void unobserve() {
-            mContext.getContentResolver().unregisterContentObserver(this);
+            EVSettings.unregisterKeyListener(mContext.getContentResolver(), this);
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            updateSettings();
+        public void onKeysChanged(Uri table, int userId, EVSettings.ChangedKeys changes) {
+            // The settings are read for the user of the context
+            if (userId != mContext.getUserId()) {
+                return;
+            }
+            if (changes.contains(EVSettings.Secure.NETWORK_TRAFFIC_MODE)) {
+                mMode = changes.getInt(EVSettings.Secure.NETWORK_TRAFFIC_MODE, 0);
+            }
+            if (changes.contains(EVSettings.Secure.NETWORK_TRAFFIC_AUTOHIDE)) {
+                mAutoHide = changes.getInt(EVSettings.Secure.NETWORK_TRAFFIC_AUTOHIDE, 0) == 1;
+            }
+            if (changes.contains(EVSettings.Secure.NETWORK_TRAFFIC_UNITS)) {
+                mUnits = changes.getInt(EVSettings.Secure.NETWORK_TRAFFIC_UNITS,
+                        /* Mbps */ 1);
+            }
+            if (changes.contains(EVSettings.Secure.NETWORK_TRAFFIC_SHOW_UNITS)) {
+                mShowUnits = changes.getInt(EVSettings.Secure.NETWORK_TRAFFIC_SHOW_UNITS, 1)
+                        == 1;
+            }
+            applySettings();
         }
     }
 
@@ -396,7 +411,13 @@ public class NetworkTraffic extends TextView {
                 EVSettings.Secure.NETWORK_TRAFFIC_AUTOHIDE, 0) == 1;
         mUnits = EVSettings.Secure.getInt(resolver,
                 EVSettings.Secure.NETWORK_TRAFFIC_UNITS, /* Mbps */ 1);
+        mShowUnits = EVSettings.Secure.getInt(resolver,
+                EVSettings.Secure.NETWORK_TRAFFIC_SHOW_UNITS, 1) == 1;
+
+        applySettings();
+    }
 
+    private void applySettings() {
         switch (mUnits) {
             case UNITS_KILOBITS:
                 mAutoHideThreshold = AUTOHIDE_THRESHOLD_KILOBITS;
@@ -415,9 +436,6 @@ public class NetworkTraffic extends TextView {
                 break;
         }
 
-        mShowUnits = EVSettings.Secure.getInt(resolver,
-                EVSettings.Secure.NETWORK_TRAFFIC_SHOW_UNITS, 1) == 1;
-
         if (mMode != MODE_DISABLED) {
             updateTrafficDrawable();
         }
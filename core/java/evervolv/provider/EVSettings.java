@@ -19,12 +19,18 @@ package evervolv.provider;
 
 import com.android.internal.util.ArrayUtils;
 
+import android.app.ActivityManager;
+import android.app.IActivityManager;
+import android.app.UserSwitchObserver;
 import android.content.ContentResolver;
 import android.content.IContentProvider;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -33,16 +39,28 @@ import android.util.AndroidException;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.MemoryIntArray;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.ArrayUtils;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.regex.Pattern;
 
 /**
@@ -77,6 +95,53 @@ public final class EVSettings {
      */
     public static final String CALL_METHOD_USER_KEY = "_user";
 
+    /**
+     * @hide - Key prefix argument extra to the CALL_METHOD_LIST_* requests. When present, the
+     * provider returns a name/value map of all settings starting with the prefix instead of a
+     * list of lines. An empty prefix selects the entire table.
+     */
+    public static final String CALL_METHOD_PREFIX_KEY = "_prefix";
+
+    /**
+     * @hide - Boolean argument extra to the fast-path call()-based get and list requests
+     * asking the provider for its shared memory generation tracker. The response carries
+     * the tracker's {@link MemoryIntArray} under the same key.
+     */
+    public static final String CALL_METHOD_TRACK_GENERATION_KEY = "_track_generation";
+
+    /**
+     * @hide - Key in the response of a tracked call()-based request holding the generation
+     * of the requested setting, or the generations of every slot for list requests, as of
+     * before the lookup.
+     */
+    public static final String CALL_METHOD_GENERATION_KEY = "_generation";
+
+    /**
+     * @hide - Int argument extra to the CALL_METHOD_LIST_* requests. When positive, the
+     * provider returns at most that many lines, ordered by name, along with a
+     * {@link #CALL_METHOD_PAGE_TOKEN_KEY} if there are more.
+     */
+    public static final String CALL_METHOD_PAGE_SIZE_KEY = "_page_size";
+
+    /**
+     * @hide - Opaque String token in the response of a paged CALL_METHOD_LIST_* request when
+     * more lines remain. Passing it back as an argument extra returns the next page.
+     */
+    public static final String CALL_METHOD_PAGE_TOKEN_KEY = "_page_token";
+
+    /**
+     * @hide - {@link android.os.ParcelFileDescriptor} argument extra to the CALL_METHOD_LIST_*
+     * requests, usually the write end of a pipe, asking the provider to stream the table into
+     * it instead of returning it. The provider writes in the background and closes its copy
+     * once done; the caller should close its own right after the call. Each setting is written
+     * as its name and value, each a big-endian int length followed by that many UTF-8 bytes,
+     * a length of -1 meaning a null value. A name length of -1 ends the stream; a stream
+     * closed before that was cut short, which also happens when the caller leaves it undrained
+     * for 30 seconds. Only a few streams are written at a time; the call throws an
+     * IllegalStateException while too many are pending, and should be retried later.
+     */
+    public static final String CALL_METHOD_STREAM_KEY = "_stream";
+
     /**
      * @hide - Private call() method on SettingsProvider to read from 'system' table.
      */
@@ -107,6 +172,21 @@ public final class EVSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
+    /**
+     * @hide - Private call() method to write multiple entries to the 'system' table at once
+     */
+    public static final String CALL_METHOD_PUT_MULTIPLE_SYSTEM = "PUT_MULTIPLE_system";
+
+    /**
+     * @hide - Private call() method to write multiple entries to the 'secure' table at once
+     */
+    public static final String CALL_METHOD_PUT_MULTIPLE_SECURE = "PUT_MULTIPLE_secure";
+
+    /**
+     * @hide - Private call() method to write multiple entries to the 'global' table at once
+     */
+    public static final String CALL_METHOD_PUT_MULTIPLE_GLOBAL = "PUT_MULTIPLE_global";
+
     /**
      * @hide - Private call() method on EVSettingsProvider to migrate Evervolv settings
      */
@@ -147,6 +227,28 @@ public final class EVSettings {
      */
     public static final String CALL_METHOD_DELETE_GLOBAL = "DELETE_global";
 
+    /**
+     * @hide - Private call() method to export the system, secure and global tables of a user
+     * into the {@link #CALL_METHOD_STREAM_KEY} argument extra, usually the write end of a
+     * pipe. Requires {@link evervolv.platform.Manifest.permission#WRITE_SECURE_SETTINGS}, as
+     * an import does. The provider writes in the background and closes its copy once done,
+     * with the timeout and limit on pending streams of {@link #CALL_METHOD_STREAM_KEY}. The
+     * export starts with the big-endian ints 0x45564558 and the format version, currently 1. Each
+     * table follows as its name and its settings, each setting as its name and value, in the
+     * encoding of {@link #CALL_METHOD_STREAM_KEY}; a setting name length of -1 ends the table,
+     * and a table name length of -1 ends the export.
+     */
+    public static final String CALL_METHOD_EXPORT_SETTINGS = "export_settings";
+
+    /**
+     * @hide - Private call() method to restore an export of {@link #CALL_METHOD_EXPORT_SETTINGS}
+     * read from the {@link #CALL_METHOD_STREAM_KEY} argument extra, a file or the read end of
+     * a pipe written from another thread. The whole export is read and validated before any
+     * setting is written, then applied in one transaction per database, replacing the
+     * settings it holds and leaving the others as they are.
+     */
+    public static final String CALL_METHOD_IMPORT_SETTINGS = "import_settings";
+
     // endregion
 
     private static final class ContentProviderHolder {
@@ -171,7 +273,239 @@ public final class EVSettings {
         }
     }
 
-    // Thread-safe.
+    /**
+     * Returns the generation counter slot tracking a setting in a shared memory region
+     * handed out by the provider. Several keys may share a slot.
+     * @param name The name of the setting.
+     * @param size The number of slots in the region.
+     * @return The index of the slot for the setting.
+     * @hide
+     */
+    public static int getGenerationIndex(String name, int size) {
+        return (name.hashCode() & Integer.MAX_VALUE) % size;
+    }
+
+    /**
+     * Wraps a shared memory region of per-key generation counters that the provider
+     * increments whenever a setting in the tracked table changes.
+     */
+    private static final class GenerationTracker implements IBinder.DeathRecipient {
+        private final MemoryIntArray mArray;
+        private final int mSize;
+        private final IBinder mProvider;
+        private final boolean mLinked;
+        private volatile boolean mDestroyed;
+
+        // References to the region: one held by the cache until the tracker is destroyed,
+        // plus one per read in progress. The region is closed once the last is released.
+        private final AtomicInteger mRefCount = new AtomicInteger(1);
+        private final AtomicBoolean mCacheReleased = new AtomicBoolean();
+
+        public GenerationTracker(MemoryIntArray array, IBinder provider) {
+            mArray = array;
+            mSize = array.size();
+            mProvider = provider;
+            boolean linked = false;
+            try {
+                // A restarted provider hands out new regions, so this one would go stale.
+                mProvider.linkToDeath(this, 0);
+                linked = true;
+            } catch (RemoteException e) {
+                mDestroyed = true;
+            }
+            mLinked = linked;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public int getIndex(String name) {
+            return getGenerationIndex(name, mSize);
+        }
+
+        /**
+         * @return The generation of a slot, or -1 if it can't be read, e.g. once the tracker
+         *         was destroyed.
+         */
+        public long getGeneration(int index) {
+            if (!acquire()) {
+                return -1;
+            }
+            try {
+                return mArray.get(index);
+            } catch (IOException e) {
+                Log.e(TAG, "Error getting current generation", e);
+                mDestroyed = true;
+                return -1;
+            } finally {
+                release();
+            }
+        }
+
+        private boolean acquire() {
+            int refCount;
+            do {
+                refCount = mRefCount.get();
+                if (refCount == 0) {
+                    return false;
+                }
+            } while (!mRefCount.compareAndSet(refCount, refCount + 1));
+            return true;
+        }
+
+        private void release() {
+            if (mRefCount.decrementAndGet() == 0) {
+                try {
+                    mArray.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        public boolean isValid() {
+            return !mDestroyed;
+        }
+
+        @Override
+        public void binderDied() {
+            mDestroyed = true;
+        }
+
+        /**
+         * Drops the reference of the cache. The region is closed right away, or by the last
+         * read still in progress.
+         */
+        public void destroy() {
+            mDestroyed = true;
+            if (mCacheReleased.compareAndSet(false, true)) {
+                if (mLinked) {
+                    mProvider.unlinkToDeath(this, 0);
+                }
+                release();
+            }
+        }
+    }
+
+    /**
+     * A value held by a {@link NameValueCache} along with the generation it was read at.
+     * Without a generation tracker, the generation is the table-wide version system property.
+     * Typed representations are parsed on first use and kept alongside the string, so
+     * repeated typed reads of a cached value neither parse nor allocate.
+     */
+    private static final class CachedValue {
+        // A null value which is never current, for reads that bypass the cache.
+        static final CachedValue NULL = new CachedValue(null, null, -1);
+
+        private static final int PARSED_INT = 1 << 0;
+        private static final int VALID_INT = 1 << 1;
+        private static final int PARSED_LONG = 1 << 2;
+        private static final int VALID_LONG = 1 << 3;
+        private static final int PARSED_FLOAT = 1 << 4;
+        private static final int VALID_FLOAT = 1 << 5;
+
+        final String value;
+        final GenerationTracker tracker;
+        final long generation;
+
+        // Parsed values are published by the write to mParsedFlags, which happens after
+        // them. Racing parses of different types may drop each other's flags, which only
+        // causes a reparse.
+        private int mIntValue;
+        private long mLongValue;
+        private float mFloatValue;
+        private volatile int mParsedFlags;
+
+        CachedValue(String value, GenerationTracker tracker, long generation) {
+            this.value = value;
+            this.tracker = tracker;
+            this.generation = generation;
+        }
+
+        boolean isCurrent(GenerationTracker currentTracker, long currentGeneration) {
+            return tracker == currentTracker && generation == currentGeneration;
+        }
+
+        /**
+         * @return Whether the value is a valid integer.
+         */
+        boolean hasInt() {
+            int flags = mParsedFlags;
+            if ((flags & PARSED_INT) == 0) {
+                flags = 0;
+                if (value != null) {
+                    try {
+                        mIntValue = Integer.parseInt(value);
+                        flags = VALID_INT;
+                    } catch (NumberFormatException e) {
+                        // Remember the failure as well
+                    }
+                }
+                flags |= PARSED_INT | mParsedFlags;
+                mParsedFlags = flags;
+            }
+            return (flags & VALID_INT) != 0;
+        }
+
+        int getInt(int def) {
+            return hasInt() ? mIntValue : def;
+        }
+
+        /**
+         * @return Whether the value is a valid long.
+         */
+        boolean hasLong() {
+            int flags = mParsedFlags;
+            if ((flags & PARSED_LONG) == 0) {
+                flags = 0;
+                if (value != null) {
+                    try {
+                        mLongValue = Long.parseLong(value);
+                        flags = VALID_LONG;
+                    } catch (NumberFormatException e) {
+                        // Remember the failure as well
+                    }
+                }
+                flags |= PARSED_LONG | mParsedFlags;
+                mParsedFlags = flags;
+            }
+            return (flags & VALID_LONG) != 0;
+        }
+
+        long getLong(long def) {
+            return hasLong() ? mLongValue : def;
+        }
+
+        /**
+         * @return Whether the value is a valid float.
+         */
+        boolean hasFloat() {
+            int flags = mParsedFlags;
+            if ((flags & PARSED_FLOAT) == 0) {
+                flags = 0;
+                if (value != null) {
+                    try {
+                        mFloatValue = Float.parseFloat(value);
+                        flags = VALID_FLOAT;
+                    } catch (NumberFormatException e) {
+                        // Remember the failure as well
+                    }
+                }
+                flags |= PARSED_FLOAT | mParsedFlags;
+                mParsedFlags = flags;
+            }
+            return (flags & VALID_FLOAT) != 0;
+        }
+
+        float getFloat(float def) {
+            return hasFloat() ? mFloatValue : def;
+        }
+    }
+
+    // Thread-safe. Cache hits never take a lock: values live in a concurrent map and are
+    // stamped with the generation, and the generation tracker, they were read at. Each user
+    // gets its own cache, and the least recently used ones are evicted past a limit.
     private static class NameValueCache {
         private final String mVersionSystemProperty;
         private final Uri mUri;
@@ -181,24 +515,108 @@ public final class EVSettings {
                 new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
-        private final HashMap<String, String> mValues = new HashMap<String, String>();
-        private long mValuesVersion = 0;
+        // Maximum number of users to keep cached values for, including our own.
+        private static final int MAX_CACHED_USERS = 4;
+
+        // The current user, kept up to date by a user switch observer once first resolved,
+        // or USER_NULL while unknown.
+        private static volatile int sCurrentUserId = UserHandle.USER_NULL;
+        private static final Object sCurrentUserLock = new Object();
+        // Bumped by every user switch event, so a lookup racing one isn't kept.
+        @GuardedBy("sCurrentUserLock")
+        private static int sUserSwitchSeq;
+        // Whether the observer is registered, or can't be because we lack the permission,
+        // in which case the current user is looked up every time.
+        @GuardedBy("sCurrentUserLock")
+        private static boolean sUserSwitchObserverRegistered;
+        @GuardedBy("sCurrentUserLock")
+        private static boolean sUserSwitchObserverDenied;
+
+        // Generations a prefix was prefetched at: a single version without a tracker,
+        // or one generation per slot with one.
+        private static final class PrefetchState {
+            final String prefix;
+            final GenerationTracker tracker;
+            final long[] generations;
+
+            PrefetchState(String prefix, GenerationTracker tracker, long[] generations) {
+                this.prefix = prefix;
+                this.tracker = tracker;
+                this.generations = generations;
+            }
+        }
+
+        // The cached values of a single user.
+        private static final class UserCache {
+            final int userId;
+
+            final ConcurrentHashMap<String, CachedValue> values =
+                    new ConcurrentHashMap<String, CachedValue>();
+
+            // Only taken to install or drop the generation tracker.
+            final Object trackerLock = new Object();
+
+            // Per-key generations shared by the provider, or null until the provider hands
+            // them out, in which case the version system property is polled instead.
+            volatile GenerationTracker generationTracker = null;
+
+            // The last prefetch done for this user, if any.
+            volatile PrefetchState prefetchState = null;
+
+            // Uptime of the last read, to pick users to evict.
+            volatile long lastAccess;
+
+            UserCache(int userId) {
+                this.userId = userId;
+            }
+
+            void touch() {
+                final long now = SystemClock.uptimeMillis();
+                if (lastAccess != now) {
+                    lastAccess = now;
+                }
+            }
+        }
+
+        // Immutable snapshot of the caches by user id, replaced as a whole on changes so
+        // lookups never take a lock.
+        private volatile SparseArray<UserCache> mUserCaches = new SparseArray<UserCache>();
+        private final Object mUserCachesLock = new Object();
+
+        // Key prefix to prefetch in a single call on a cache miss, or null if prefetching
+        // is disabled.
+        private volatile String mPrefetchPrefix = null;
 
         // The method we'll call (or null, to not use) on the provider
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
         private final String mCallSetCommand;
+        private final String mCallSetMultipleCommand;
+        private final String mCallListCommand;
 
         public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand, ContentProviderHolder providerHolder) {
+                String getCommand, String setCommand, String setMultipleCommand,
+                String listCommand, ContentProviderHolder providerHolder) {
             mVersionSystemProperty = versionSystemProperty;
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mCallSetMultipleCommand = setMultipleCommand;
+            mCallListCommand = listCommand;
             mProviderHolder = providerHolder;
         }
 
+        /**
+         * Enables or disables prefetching. When enabled, the first cache miss for a key
+         * starting with the prefix after a version change pulls every matching setting
+         * from the provider in a single call.
+         * @param prefix The key prefix to prefetch, an empty string for the whole table,
+         *               or null to disable prefetching.
+         */
+        public void setPrefetchPrefix(String prefix) {
+            mPrefetchPrefix = prefix;
+        }
+
         /**
          * Puts a string name/value pair into the content provider for the specified user.
          * @param cr The content resolver to use.
@@ -224,32 +642,62 @@ public final class EVSettings {
         }
 
         /**
-         * Gets a string value with the specified name from the name/value cache if possible. If
-         * not, it will use the content resolver and perform a query.
+         * Puts multiple string name/value pairs into the content provider for the specified
+         * user in a single call. The provider validates all of them before writing any.
+         * @param cr The content resolver to use.
+         * @param values The name/value pairs to put into the content provider.
+         * @param userId The user id to use for the content provider.
+         * @return Whether the put was successful.
+         */
+        public boolean putStringsForUser(ContentResolver cr, Map<String, String> values,
+                final int userId) {
+            try {
+                Bundle arg = new Bundle();
+                arg.putSerializable(Settings.NameValueTable.VALUE,
+                        new HashMap<String, String>(values));
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = mProviderHolder.getProvider(cr);
+                cp.call(cr.getAttributionSource(),
+                        mProviderHolder.mUri.getAuthority(), mCallSetMultipleCommand, null, arg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set " + values.size() + " keys in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Gets a value with the specified name from the name/value cache if possible, along
+         * with its cached typed representations. If not, it will use the content resolver
+         * and perform a query.
          * @param cr Content resolver to use if name/value cache does not contain the name or if
          *           the cache version is older than the current version.
          * @param name The name of the key to search for.
          * @param userId The user id of the cache to look in.
-         * @return The string value of the specified key.
+         * @return The value of the specified key, never null.
          */
-        public String getStringForUser(ContentResolver cr, String name, final int userId) {
+        public CachedValue getValueForUser(ContentResolver cr, String name, int userId) {
+            userId = resolveUserId(userId);
             final boolean isSelf = (userId == UserHandle.myUserId());
-            if (isSelf) {
-                if (LOCAL_LOGV) Log.d(TAG, "get setting for self");
-                long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
-
-                // Our own user's settings data uses a client-side cache
-                synchronized (NameValueCache.this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
+            final UserCache userCache = getOrCreateUserCache(userId);
+            GenerationTracker tracker = null;
+            long generation = -1;
+            if (userCache != null) {
+                if (LOCAL_LOGV) Log.d(TAG, "get setting for user " + userId);
+
+                tracker = getGenerationTracker(userCache);
+                generation = getGeneration(tracker, name);
+                CachedValue cached = getCurrentValue(userCache, name, tracker, generation);
+                if (cached != null) {
+                    return cached;  // Could hold null, that's OK -- negative caching
+                }
 
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
-                    } else if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
+                if (prefetch(cr, userCache, name, tracker)) {
+                    tracker = getGenerationTracker(userCache);
+                    generation = getGeneration(tracker, name);
+                    cached = userCache.values.get(name);
+                    if (cached != null && cached.isCurrent(tracker, generation)) {
+                        return cached;
                     }
                 }
             } else {
@@ -265,21 +713,36 @@ public final class EVSettings {
             // interface.
             if (mCallGetCommand != null) {
                 try {
+                    final boolean needsGenerationTracker = userCache != null && tracker == null;
                     Bundle args = null;
-                    if (!isSelf) {
+                    if (!isSelf || needsGenerationTracker) {
                         args = new Bundle();
-                        args.putInt(CALL_METHOD_USER_KEY, userId);
+                        if (!isSelf) {
+                            args.putInt(CALL_METHOD_USER_KEY, userId);
+                        }
+                        if (needsGenerationTracker) {
+                            args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                        }
                     }
                     Bundle b = cp.call(cr.getAttributionSource(),
                             mProviderHolder.mUri.getAuthority(), mCallGetCommand, name, args);
                     if (b != null) {
-                        String value = b.getPairValue();
-                        // Don't update our cache for reads of other users' data
-                        if (isSelf) {
-                            synchronized (NameValueCache.this) {
-                                mValues.put(name, value);
+                        final CachedValue value;
+                        if (userCache != null) {
+                            if (needsGenerationTracker) {
+                                final GenerationTracker newTracker =
+                                        maybeInstallGenerationTracker(userCache, cp, b);
+                                if (newTracker != null) {
+                                    tracker = newTracker;
+                                    generation = b.getInt(CALL_METHOD_GENERATION_KEY, -1);
+                                }
                             }
+                            value = new CachedValue(b.getString(Settings.NameValueTable.VALUE),
+                                    tracker, generation);
+                            userCache.values.put(name, value);
                         } else {
+                            value = new CachedValue(b.getString(Settings.NameValueTable.VALUE),
+                                    null, -1);
                             if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userId
                                     + " by " + UserHandle.myUserId()
                                     + " so not updating cache");
@@ -302,27 +765,792 @@ public final class EVSettings {
                         SELECT_VALUE_PROJECTION, queryArgs, null);
                 if (c == null) {
                     Log.w(TAG, "Can't get key " + name + " from " + mUri);
-                    return null;
+                    return CachedValue.NULL;
                 }
 
                 String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (NameValueCache.this) {
-                    mValues.put(name, value);
+                final CachedValue cached = new CachedValue(value, tracker, generation);
+                // The query interface only serves the calling user
+                if (userCache != null && isSelf) {
+                    userCache.values.put(name, cached);
                 }
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
                             name + " = " + (value == null ? "(null)" : value));
                 }
-                return value;
+                return cached;
             } catch (RemoteException e) {
                 Log.w(TAG, "Can't get key " + name + " from " + mUri, e);
-                return null;  // Return null, but don't cache it.
+                return CachedValue.NULL;  // Return null, but don't cache it.
             } finally {
                 if (c != null) c.close();
             }
         }
+
+        /**
+         * Returns a value from the cache if it is current, without ever calling the provider.
+         * @param name The name of the key to search for.
+         * @param userId The user id of the cache to look in.
+         * @return The value of the specified key, or null if it has to be fetched.
+         */
+        public CachedValue peekValueForUser(String name, int userId) {
+            if (userId == UserHandle.USER_CURRENT) {
+                // Only if it's known, looking it up takes a call of its own
+                userId = peekCurrentUserId();
+                if (userId == UserHandle.USER_NULL) {
+                    return null;
+                }
+            }
+            final UserCache userCache = mUserCaches.get(userId);
+            if (userCache == null) {
+                return null;
+            }
+            userCache.touch();
+            final GenerationTracker tracker = getGenerationTracker(userCache);
+            return getCurrentValue(userCache, name, tracker, getGeneration(tracker, name));
+        }
+
+        /**
+         * Returns the cached value of a setting if it is current at the given generation.
+         * @return The value, or null if it has to be fetched.
+         */
+        private CachedValue getCurrentValue(UserCache userCache, String name,
+                GenerationTracker tracker, long generation) {
+            CachedValue cached = userCache.values.get(name);
+            if (cached != null && cached.isCurrent(tracker, generation)) {
+                return cached;
+            } else if (isPrefetched(userCache, name, tracker, generation)) {
+                // The whole prefix was fetched at this generation, so the
+                // setting doesn't exist.
+                cached = new CachedValue(null, tracker, generation);
+                userCache.values.put(name, cached);
+                return cached;
+            }
+            return null;
+        }
+
+        /**
+         * Resolves {@link UserHandle#USER_CURRENT} to the current user so its values can be
+         * cached under a real user id. Any other pseudo user id is returned unchanged. The
+         * current user is only looked up once, then followed through user switches.
+         */
+        private static int resolveUserId(int userId) {
+            if (userId != UserHandle.USER_CURRENT) {
+                return userId;
+            }
+            final int currentUserId = sCurrentUserId;
+            if (currentUserId != UserHandle.USER_NULL) {
+                return currentUserId;
+            }
+
+            final int seq;
+            final boolean observed;
+            synchronized (sCurrentUserLock) {
+                seq = sUserSwitchSeq;
+                observed = registerUserSwitchObserverLocked();
+            }
+            final int userIdNow;
+            try {
+                userIdNow = ActivityManager.getCurrentUser();
+            } catch (SecurityException e) {
+                // Let the provider sort it out.
+                return userId;
+            }
+            if (observed) {
+                synchronized (sCurrentUserLock) {
+                    // Unless a switch went by in the meantime, the observer will see the next
+                    if (sUserSwitchSeq == seq) {
+                        sCurrentUserId = userIdNow;
+                    }
+                }
+            }
+            return userIdNow;
+        }
+
+        /**
+         * Returns the current user if it is known without a lookup.
+         * @return The current user, or {@link UserHandle#USER_NULL} if unknown.
+         */
+        private static int peekCurrentUserId() {
+            return sCurrentUserId;
+        }
+
+        /**
+         * Registers the observer keeping the current user up to date, once.
+         * @return Whether the observer is registered.
+         */
+        @GuardedBy("sCurrentUserLock")
+        private static boolean registerUserSwitchObserverLocked() {
+            if (sUserSwitchObserverRegistered || sUserSwitchObserverDenied) {
+                return sUserSwitchObserverRegistered;
+            }
+            final IActivityManager am = ActivityManager.getService();
+            if (am == null) {
+                // Too early, try again next time
+                return false;
+            }
+            try {
+                am.registerUserSwitchObserver(new UserSwitchObserver() {
+                    @Override
+                    public void onBeforeUserSwitching(int newUserId) {
+                        // Looked up again until the switch completes
+                        synchronized (sCurrentUserLock) {
+                            sUserSwitchSeq++;
+                            sCurrentUserId = UserHandle.USER_NULL;
+                        }
+                    }
+
+                    @Override
+                    public void onUserSwitchComplete(int newUserId) {
+                        synchronized (sCurrentUserLock) {
+                            sUserSwitchSeq++;
+                            sCurrentUserId = newUserId;
+                        }
+                    }
+                }, TAG);
+                sUserSwitchObserverRegistered = true;
+            } catch (SecurityException e) {
+                sUserSwitchObserverDenied = true;
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't register user switch observer", e);
+            }
+            return sUserSwitchObserverRegistered;
+        }
+
+        /**
+         * Returns the cache for a user, creating it and evicting the least recently used
+         * user's cache if needed.
+         * @return The user's cache, or null if values for this user id can't be cached.
+         */
+        private UserCache getOrCreateUserCache(int userId) {
+            if (userId < 0) {
+                return null;
+            }
+            UserCache userCache = mUserCaches.get(userId);
+            if (userCache == null) {
+                synchronized (mUserCachesLock) {
+                    userCache = mUserCaches.get(userId);
+                    if (userCache == null) {
+                        userCache = new UserCache(userId);
+                        final SparseArray<UserCache> userCaches = mUserCaches.clone();
+                        if (userCaches.size() >= MAX_CACHED_USERS) {
+                            evictIdlestUserCacheLocked(userCaches);
+                        }
+                        userCaches.put(userId, userCache);
+                        mUserCaches = userCaches;
+                    }
+                }
+            }
+            userCache.touch();
+            return userCache;
+        }
+
+        private void evictIdlestUserCacheLocked(SparseArray<UserCache> userCaches) {
+            final int myUserId = UserHandle.myUserId();
+            int idlest = -1;
+            for (int i = 0; i < userCaches.size(); i++) {
+                final UserCache candidate = userCaches.valueAt(i);
+                if (candidate.userId != myUserId && (idlest < 0
+                        || candidate.lastAccess < userCaches.valueAt(idlest).lastAccess)) {
+                    idlest = i;
+                }
+            }
+            if (idlest >= 0) {
+                final UserCache evicted = userCaches.valueAt(idlest);
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "evict [" + mUri.getLastPathSegment() + "] for user "
+                            + evicted.userId);
+                }
+                final GenerationTracker tracker = evicted.generationTracker;
+                if (tracker != null) {
+                    tracker.destroy();
+                }
+                userCaches.removeAt(idlest);
+            }
+        }
+
+        /**
+         * Returns the current generation tracker of a user, dropping it first if it was
+         * destroyed.
+         */
+        private GenerationTracker getGenerationTracker(UserCache userCache) {
+            final GenerationTracker tracker = userCache.generationTracker;
+            if (tracker == null || tracker.isValid()) {
+                return tracker;
+            }
+            synchronized (userCache.trackerLock) {
+                if (userCache.generationTracker == tracker) {
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "] for user "
+                                + userCache.userId + ": generation tracker destroyed");
+                    }
+                    tracker.destroy();
+                    userCache.generationTracker = null;
+                    // Values stamped with the old tracker can never match again.
+                    userCache.values.clear();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the current generation of a setting: its slot in the generation tracker
+         * if there is one, the table-wide version system property otherwise.
+         */
+        private long getGeneration(GenerationTracker tracker, String name) {
+            if (tracker != null) {
+                return tracker.getGeneration(tracker.getIndex(name));
+            }
+            return SystemProperties.getLong(mVersionSystemProperty, 0);
+        }
+
+        /**
+         * Returns whether the setting is covered by a prefetch which is still current, which
+         * means it was absent from the table if it isn't cached.
+         */
+        private boolean isPrefetched(UserCache userCache, String name,
+                GenerationTracker tracker, long generation) {
+            final String prefix = mPrefetchPrefix;
+            final PrefetchState state = userCache.prefetchState;
+            if (prefix == null || state == null || !prefix.equals(state.prefix)
+                    || state.tracker != tracker || !name.startsWith(prefix)) {
+                return false;
+            }
+            final int index = tracker != null ? tracker.getIndex(name) : 0;
+            return state.generations[index] == generation;
+        }
+
+        /**
+         * Installs the generation tracker handed out by the provider in a call response, if
+         * any and if the user has none yet.
+         * @return The tracker the values in the response should be stamped with, or null
+         *         if the response carried none.
+         */
+        private GenerationTracker maybeInstallGenerationTracker(UserCache userCache,
+                IContentProvider cp, Bundle b) {
+            final MemoryIntArray array = b.getParcelable(CALL_METHOD_TRACK_GENERATION_KEY,
+                    MemoryIntArray.class);
+            if (array == null) {
+                return null;
+            }
+            synchronized (userCache.trackerLock) {
+                if (userCache.generationTracker != null) {
+                    // Another thread beat us to it; the provider hands out the same region.
+                    closeQuietly(array);
+                    return userCache.generationTracker;
+                }
+                userCache.generationTracker = new GenerationTracker(array, cp.asBinder());
+                // Everything cached so far is stamped with the version property.
+                userCache.values.clear();
+            }
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "tracking generations for [" + mUri.getLastPathSegment()
+                        + "] for user " + userCache.userId);
+            }
+            return userCache.generationTracker;
+        }
+
+        private static void closeQuietly(MemoryIntArray array) {
+            try {
+                array.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        /**
+         * Fetches all of a user's settings matching the prefetch prefix in a single call and
+         * fills the cache with them, if prefetching is enabled and the previous prefetch is
+         * stale. With a generation tracker, stale slots are refreshed key by key instead, so
+         * the prefix is only fetched once per tracker.
+         * @param cr The content resolver to use.
+         * @param userCache The cache of the user to prefetch for.
+         * @param name The name of the key that missed the cache.
+         * @param tracker The generation tracker the caller observed.
+         * @return Whether the cache was filled.
+         */
+        private boolean prefetch(ContentResolver cr, UserCache userCache, String name,
+                GenerationTracker tracker) {
+            final String prefix = mPrefetchPrefix;
+            if (prefix == null || !name.startsWith(prefix)) {
+                return false;
+            }
+            final PrefetchState state = userCache.prefetchState;
+            final boolean current = state != null && prefix.equals(state.prefix)
+                    && state.tracker == tracker;
+            final long version;
+            if (tracker != null) {
+                if (current) {
+                    return false;
+                }
+                version = -1;
+            } else {
+                version = SystemProperties.getLong(mVersionSystemProperty, 0);
+                if (current && state.generations[0] == version) {
+                    return false;
+                }
+            }
+
+            final IContentProvider cp = mProviderHolder.getProvider(cr);
+            final Bundle b;
+            final HashMap<String, String> values;
+            try {
+                Bundle args = new Bundle();
+                args.putString(CALL_METHOD_PREFIX_KEY, prefix);
+                args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                if (userCache.userId != UserHandle.myUserId()) {
+                    args.putInt(CALL_METHOD_USER_KEY, userCache.userId);
+                }
+                b = cp.call(cr.getAttributionSource(),
+                        mProviderHolder.mUri.getAuthority(), mCallListCommand, null, args);
+                if (b == null) {
+                    return false;
+                }
+                values = (HashMap<String, String>) b.getSerializable(
+                        Settings.NameValueTable.VALUE, HashMap.class);
+                if (values == null) {
+                    return false;
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't prefetch keys with prefix " + prefix + " from " + mUri, e);
+                return false;
+            }
+
+            final int[] generations = b.getIntArray(CALL_METHOD_GENERATION_KEY);
+            final GenerationTracker newTracker = generations != null
+                    ? maybeInstallGenerationTracker(userCache, cp, b) : null;
+            final PrefetchState newState;
+            if (newTracker != null && generations.length == newTracker.size()) {
+                // Values are stamped with the generation of their slot before the fetch;
+                // anything written since will fail the check on the next read.
+                final long[] prefetched = new long[generations.length];
+                for (int i = 0; i < generations.length; i++) {
+                    prefetched[i] = generations[i];
+                }
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    final String key = entry.getKey();
+                    userCache.values.put(key, new CachedValue(entry.getValue(), newTracker,
+                            generations[newTracker.getIndex(key)]));
+                }
+                newState = new PrefetchState(prefix, newTracker, prefetched);
+            } else if (tracker == null) {
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    userCache.values.put(entry.getKey(),
+                            new CachedValue(entry.getValue(), null, version));
+                }
+                newState = new PrefetchState(prefix, null, new long[] { version });
+            } else {
+                // The provider handed out no generations; let the regular path fill the
+                // cache.
+                return false;
+            }
+
+            userCache.prefetchState = newState;
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "prefetched [" + mUri.getLastPathSegment() + "] for user "
+                        + userCache.userId + ": " + values.size() + " settings with prefix '"
+                        + prefix + "'");
+            }
+            return true;
+        }
+    }
+
+    // region Asynchronous reads
+
+    // Reads which miss the cache run on a small pool shared by every table of the process,
+    // so callers on the main thread never wait on the provider and bursts of reads never
+    // spawn more than a couple of threads.
+    private static final int ASYNC_THREADS = 2;
+    private static final long ASYNC_KEEP_ALIVE_MS = 10000;
+
+    private static final ThreadPoolExecutor sAsyncExecutor;
+    static {
+        sAsyncExecutor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS,
+                ASYNC_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                r -> {
+                    final Thread thread = new Thread(r, "EVSettingsAsync");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        sAsyncExecutor.allowCoreThreadTimeOut(true);
     }
 
+    // Reads a setting the way the synchronous getters of a table do.
+    private interface ValueGetter {
+        CachedValue getValueForUser(ContentResolver resolver, String name, int userId);
+    }
+
+    // Reads a setting of a table from the cache only, null if it has to be fetched.
+    private interface ValuePeeker {
+        CachedValue peekValueForUser(String name, int userId);
+    }
+
+    /**
+     * Reads settings without blocking the calling thread. When all of them are cached and
+     * current they are read on the calling thread, otherwise on the shared pool.
+     * @param peeker The cache lookup of the table.
+     * @param getter The synchronous getter of the table.
+     * @param executor The executor to deliver the values on.
+     * @param callback Receives the values, in the order of the names.
+     */
+    private static void getValuesForUserAsync(ValuePeeker peeker, ValueGetter getter,
+            ContentResolver resolver, String[] names, int userId, Executor executor,
+            Consumer<CachedValue[]> callback) {
+        final CachedValue[] values = new CachedValue[names.length];
+        boolean cached = true;
+        for (int i = 0; i < names.length && cached; i++) {
+            values[i] = peeker.peekValueForUser(names[i], userId);
+            cached = values[i] != null;
+        }
+        if (cached) {
+            executor.execute(() -> callback.accept(values));
+            return;
+        }
+        sAsyncExecutor.execute(() -> {
+            for (int i = 0; i < names.length; i++) {
+                if (values[i] != null) {
+                    continue;
+                }
+                try {
+                    values[i] = getter.getValueForUser(resolver, names[i], userId);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Can't get key " + names[i] + " asynchronously", e);
+                    values[i] = CachedValue.NULL;
+                }
+            }
+            executor.execute(() -> callback.accept(values));
+        });
+    }
+
+    private static Map<String, String> toMap(String[] names, CachedValue[] values) {
+        final ArrayMap<String, String> map = new ArrayMap<String, String>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            map.put(names[i], values[i].value);
+        }
+        return map;
+    }
+
+    // endregion Asynchronous reads
+
+    // region Key listeners
+
+    /**
+     * Receives changes of the settings it was registered for with
+     * {@link EVSettings#registerKeyListener}.
+     */
+    public interface KeyListener {
+        /**
+         * Called once per batch of changes, on the executor the listener was registered with.
+         * @param table The {@code CONTENT_URI} of the table the settings changed in.
+         * @param userId The user whose settings changed, {@link UserHandle#USER_ALL} for
+         *               global settings.
+         * @param changes The keys of the listener which changed, with their new values.
+         */
+        void onKeysChanged(Uri table, int userId, ChangedKeys changes);
+    }
+
+    /**
+     * The keys of a listener changed by a batch of changes, and their new values. A value is
+     * read the first time a listener of the batch asks for it, on that listener's executor,
+     * and shared with every other listener of the batch; typed values are parsed once.
+     */
+    public static final class ChangedKeys {
+        private final ChangedValues mValues;
+        private final ArraySet<String> mKeys;
+
+        private ChangedKeys(ChangedValues values, ArraySet<String> keys) {
+            mValues = values;
+            mKeys = keys;
+        }
+
+        /**
+         * @return Whether the changes are global or of the current user, for listeners
+         *     registered for {@link UserHandle#USER_ALL} which follow the current user.
+         */
+        public boolean isForCurrentUser() {
+            return mValues.userId == UserHandle.USER_ALL
+                    || mValues.userId == NameValueCache.resolveUserId(UserHandle.USER_CURRENT);
+        }
+
+        /**
+         * @return The number of changed keys.
+         */
+        public int size() {
+            return mKeys.size();
+        }
+
+        /**
+         * @param index An index between 0 and {@link #size()} - 1.
+         * @return The changed key at the index.
+         */
+        public String keyAt(int index) {
+            return mKeys.valueAt(index);
+        }
+
+        /**
+         * @param name The name of the setting.
+         * @return Whether the setting is among the changed keys.
+         */
+        public boolean contains(String name) {
+            return mKeys.contains(name);
+        }
+
+        private CachedValue get(String name) {
+            return mKeys.contains(name) ? mValues.get(name) : null;
+        }
+
+        /**
+         * @param name The name of a changed setting.
+         * @return The new value, or null if the setting was removed or didn't change.
+         */
+        public String getString(String name) {
+            final CachedValue value = get(name);
+            return value != null ? value.value : null;
+        }
+
+        /**
+         * @param name The name of a changed setting.
+         * @param def Value to return if the setting is not defined or not a valid integer.
+         * @return The new value as an integer.
+         */
+        public int getInt(String name, int def) {
+            final CachedValue value = get(name);
+            return value != null ? value.getInt(def) : def;
+        }
+
+        /**
+         * @param name The name of a changed setting.
+         * @param def Value to return if the setting is not defined or not a valid long.
+         * @return The new value as a long.
+         */
+        public long getLong(String name, long def) {
+            final CachedValue value = get(name);
+            return value != null ? value.getLong(def) : def;
+        }
+
+        /**
+         * @param name The name of a changed setting.
+         * @param def Value to return if the setting is not defined or not a valid float.
+         * @return The new value as a float.
+         */
+        public float getFloat(String name, float def) {
+            final CachedValue value = get(name);
+            return value != null ? value.getFloat(def) : def;
+        }
+
+        @Override
+        public String toString() {
+            return mKeys.toString();
+        }
+    }
+
+    /**
+     * The values of a batch of changes, read on demand and shared by its listeners.
+     */
+    private static final class ChangedValues {
+        final ContentResolver resolver;
+        final ValueGetter getter;
+        final int userId;
+
+        @GuardedBy("this")
+        private final ArrayMap<String, CachedValue> mValues = new ArrayMap<String, CachedValue>();
+
+        ChangedValues(ContentResolver resolver, ValueGetter getter, int userId) {
+            this.resolver = resolver;
+            this.getter = getter;
+            this.userId = userId;
+        }
+
+        CachedValue get(String name) {
+            synchronized (this) {
+                final CachedValue value = mValues.get(name);
+                if (value != null) {
+                    return value;
+                }
+            }
+            // Read without the lock, so a slow read only holds up the listener asking for it.
+            // Global settings are shared by all users.
+            CachedValue value;
+            try {
+                value = getter.getValueForUser(resolver, name,
+                        userId == UserHandle.USER_ALL ? UserHandle.USER_SYSTEM : userId);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Can't get key " + name + " for listeners", e);
+                value = CachedValue.NULL;
+            }
+            synchronized (this) {
+                final CachedValue raced = mValues.get(name);
+                if (raced != null) {
+                    return raced;
+                }
+                mValues.put(name, value);
+                return value;
+            }
+        }
+    }
+
+    // One observer per table and user for the whole process, keyed by the table's uri.
+    @GuardedBy("sKeyObservers")
+    private static final ArrayMap<Uri, SparseArray<KeyObserver>> sKeyObservers =
+            new ArrayMap<Uri, SparseArray<KeyObserver>>();
+
+    /**
+     * Listens to changes of some settings of a table. All listeners of a table share a single
+     * observer per process, and each changed setting is read at most once for all of them.
+     * @param resolver to register the observer with
+     * @param table The {@code CONTENT_URI} of {@link System}, {@link Secure} or {@link Global}.
+     * @param keys The names of the settings to listen to.
+     * @param executor The executor to call the listener on.
+     * @param listener The listener. Registering it again for the same table replaces its keys
+     *                 and executor.
+     */
+    public static void registerKeyListener(ContentResolver resolver, Uri table, String[] keys,
+            Executor executor, KeyListener listener) {
+        registerKeyListenerForUser(resolver, table, keys, resolver.getUserId(), executor,
+                listener);
+    }
+
+    /**
+     * @param userId The user to listen to, or {@link UserHandle#USER_ALL} for every user.
+     * @see #registerKeyListener
+     * @hide
+     */
+    public static void registerKeyListenerForUser(ContentResolver resolver, Uri table,
+            String[] keys, int userId, Executor executor, KeyListener listener) {
+        final ValueGetter getter = getValueGetter(table);
+        final ArraySet<String> keySet = new ArraySet<String>(keys.length);
+        for (String key : keys) {
+            keySet.add(key);
+        }
+        synchronized (sKeyObservers) {
+            SparseArray<KeyObserver> observers = sKeyObservers.get(table);
+            if (observers == null) {
+                observers = new SparseArray<KeyObserver>();
+                sKeyObservers.put(table, observers);
+            }
+            KeyObserver observer = observers.get(userId);
+            if (observer == null) {
+                observer = new KeyObserver(resolver, table, getter);
+                observers.put(userId, observer);
+                resolver.registerContentObserver(table, true, observer, userId);
+            }
+            observer.mListeners.put(listener, new KeyRegistration(keySet, executor, listener));
+        }
+    }
+
+    /**
+     * Stops calling a listener for every table and user it was registered for.
+     * @param resolver to unregister the observers with
+     * @param listener The listener to remove.
+     */
+    public static void unregisterKeyListener(ContentResolver resolver, KeyListener listener) {
+        synchronized (sKeyObservers) {
+            for (int i = sKeyObservers.size() - 1; i >= 0; i--) {
+                final SparseArray<KeyObserver> observers = sKeyObservers.valueAt(i);
+                for (int j = observers.size() - 1; j >= 0; j--) {
+                    final KeyObserver observer = observers.valueAt(j);
+                    if (observer.mListeners.remove(listener) != null
+                            && observer.mListeners.isEmpty()) {
+                        resolver.unregisterContentObserver(observer);
+                        observers.removeAt(j);
+                    }
+                }
+                if (observers.size() == 0) {
+                    sKeyObservers.removeAt(i);
+                }
+            }
+        }
+    }
+
+    private static ValueGetter getValueGetter(Uri table) {
+        if (System.CONTENT_URI.equals(table)) {
+            return System::getValueForUser;
+        } else if (Secure.CONTENT_URI.equals(table)) {
+            return Secure::getValueForUser;
+        } else if (Global.CONTENT_URI.equals(table)) {
+            return Global::getValueForUser;
+        }
+        throw new IllegalArgumentException("Unknown table: " + table);
+    }
+
+    private static final class KeyRegistration {
+        final ArraySet<String> keys;
+        final Executor executor;
+        final KeyListener listener;
+
+        KeyRegistration(ArraySet<String> keys, Executor executor, KeyListener listener) {
+            this.keys = keys;
+            this.executor = executor;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Observes every setting of a table for one user and fans the changes out to the
+     * listeners of the changed keys. Notifications arrive on a binder thread and are handed
+     * straight to the executor of each listener, which reads the values it asks for, so no
+     * listener ever waits on the reads of another.
+     */
+    private static final class KeyObserver extends ContentObserver {
+        private final ContentResolver mResolver;
+        private final Uri mTable;
+        private final ValueGetter mGetter;
+
+        @GuardedBy("sKeyObservers")
+        final ArrayMap<KeyListener, KeyRegistration> mListeners =
+                new ArrayMap<KeyListener, KeyRegistration>();
+
+        KeyObserver(ContentResolver resolver, Uri table, ValueGetter getter) {
+            super(null);
+            mResolver = resolver;
+            mTable = table;
+            mGetter = getter;
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Collection<Uri> uris, int flags,
+                UserHandle user) {
+            final ArraySet<String> names = new ArraySet<String>(uris.size());
+            for (Uri uri : uris) {
+                // Changes of the whole table carry no key and can't be matched
+                final List<String> segments = uri.getPathSegments();
+                if (segments.size() == 2) {
+                    names.add(segments.get(1));
+                }
+            }
+            if (names.isEmpty()) {
+                return;
+            }
+
+            final KeyRegistration[] registrations;
+            synchronized (sKeyObservers) {
+                registrations = mListeners.values().toArray(
+                        new KeyRegistration[mListeners.size()]);
+            }
+            final int userId = user.getIdentifier();
+            final ChangedValues values = new ChangedValues(mResolver, mGetter, userId);
+            for (KeyRegistration registration : registrations) {
+                ArraySet<String> keys = null;
+                for (int i = 0; i < names.size(); i++) {
+                    final String name = names.valueAt(i);
+                    if (registration.keys.contains(name)) {
+                        if (keys == null) {
+                            keys = new ArraySet<String>();
+                        }
+                        keys.add(name);
+                    }
+                }
+                if (keys != null) {
+                    final ChangedKeys changedKeys = new ChangedKeys(values, keys);
+                    registration.executor.execute(() -> registration.listener.onKeysChanged(
+                            mTable, userId, changedKeys));
+                }
+            }
+        }
+    }
+
+    // endregion Key listeners
+
     // region Validators
 
     /** @hide */
@@ -333,16 +1561,8 @@ public final class EVSettings {
     private static final Validator sBooleanValidator =
             new DiscreteValueValidator(new String[] {"0", "1"});
 
-    private static final Validator sNonNegativeIntegerValidator = new Validator() {
-        @Override
-        public boolean validate(String value) {
-            try {
-                return Integer.parseInt(value) >= 0;
-            } catch (NumberFormatException e) {
-                return false;
-            }
-        }
-    };
+    private static final Validator sNonNegativeIntegerValidator =
+            new InclusiveIntegerRangeValidator(0, Integer.MAX_VALUE);
 
     private static final Validator sUriValidator = new Validator() {
         @Override
@@ -392,16 +1612,19 @@ public final class EVSettings {
         }
     };
 
+    // Validators run on every put, so the ones below parse and scan values in place rather
+    // than splitting or boxing them, and allocate nothing for valid values.
+
     private static final class DiscreteValueValidator implements Validator {
-        private final String[] mValues;
+        private final ValueTable mValues;
 
         public DiscreteValueValidator(String[] values) {
-            mValues = values;
+            mValues = new ValueTable(values);
         }
 
         @Override
         public boolean validate(String value) {
-            return ArrayUtils.contains(mValues, value);
+            return value != null && mValues.contains(value, 0, value.length());
         }
     }
 
@@ -416,12 +1639,7 @@ public final class EVSettings {
 
         @Override
         public boolean validate(String value) {
-            try {
-                final int intValue = Integer.parseInt(value);
-                return intValue >= mMin && intValue <= mMax;
-            } catch (NumberFormatException e) {
-                return false;
-            }
+            return value != null && isIntegerInRange(value, 0, value.length(), mMin, mMax);
         }
     }
 
@@ -436,50 +1654,239 @@ public final class EVSettings {
 
         @Override
         public boolean validate(String value) {
+            return value != null && isFloatInRange(value, 0, value.length(), mMin, mMax);
+        }
+    }
+
+    private static final class DelimitedListValidator implements Validator {
+        private final ValueTable mValidValues;
+        private final String mDelimiter;
+        private final boolean mAllowEmptyList;
+
+        public DelimitedListValidator(String[] validValues, String delimiter,
+                                      boolean allowEmptyList) {
+            mValidValues = new ValueTable(validValues);
+            mDelimiter = delimiter;
+            mAllowEmptyList = allowEmptyList;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            // Empty items are skipped, and any other must be valid
+            boolean empty = true;
+            if (!TextUtils.isEmpty(value)) {
+                int start = 0;
+                while (start <= value.length()) {
+                    int end = value.indexOf(mDelimiter, start);
+                    if (end < 0) {
+                        end = value.length();
+                    }
+                    if (end > start) {
+                        if (!mValidValues.contains(value, start, end)) {
+                            return false;
+                        }
+                        empty = false;
+                    }
+                    start = end + mDelimiter.length();
+                }
+            }
+            return !empty || mAllowEmptyList;
+        }
+    }
+
+    /**
+     * A set of strings in an open addressed table, sized where possible so every string has a
+     * slot of its own and a lookup costs one hash, one slot and one comparison. Lookups take a
+     * range of a string, so items of a list are looked up without cutting them out first.
+     */
+    private static final class ValueTable {
+        // Largest table tried, relative to the number of values, in search of a size
+        // without collisions; past it, colliding values probe the following slots.
+        private static final int MAX_SIZE_FACTOR = 64;
+
+        private final String[] mSlots;
+        private final int[] mHashes;
+        private final int mMask;
+
+        ValueTable(String[] values) {
+            final int maxSize = Integer.highestOneBit(Math.max(1, values.length)) * 2
+                    * MAX_SIZE_FACTOR;
+            int size = Integer.highestOneBit(Math.max(1, values.length)) * 2;
+            while (size < maxSize && !isCollisionFree(values, size)) {
+                size *= 2;
+            }
+            mSlots = new String[size];
+            mHashes = new int[size];
+            mMask = size - 1;
+            for (String value : values) {
+                final int hash = value.hashCode();
+                int slot = mix(hash) & mMask;
+                while (mSlots[slot] != null && !mSlots[slot].equals(value)) {
+                    slot = (slot + 1) & mMask;
+                }
+                mSlots[slot] = value;
+                mHashes[slot] = hash;
+            }
+        }
+
+        private static boolean isCollisionFree(String[] values, int size) {
+            final String[] slots = new String[size];
+            for (String value : values) {
+                final int slot = mix(value.hashCode()) & (size - 1);
+                if (slots[slot] != null && !slots[slot].equals(value)) {
+                    return false;
+                }
+                slots[slot] = value;
+            }
+            return true;
+        }
+
+        private static int mix(int hash) {
+            return (hash * 0x9E3779B9) >>> 16 ^ hash;
+        }
+
+        /**
+         * @return Whether {@code s.substring(start, end)} is in the table.
+         */
+        boolean contains(String s, int start, int end) {
+            // Same as String.hashCode() of the range
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + s.charAt(i);
+            }
+            final int length = end - start;
+            for (int slot = mix(hash) & mMask; mSlots[slot] != null; slot = (slot + 1) & mMask) {
+                if (mHashes[slot] == hash && mSlots[slot].length() == length
+                        && s.regionMatches(start, mSlots[slot], 0, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Checks a range of a string is an integer within bounds, accepting what
+     * {@link Integer#parseInt} accepts.
+     */
+    private static boolean isIntegerInRange(String s, int start, int end, int min, int max) {
+        if (start >= end) {
+            return false;
+        }
+        int i = start;
+        boolean negative = false;
+        final char first = s.charAt(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++i == end) {
+                return false;
+            }
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            final int digit = Character.digit(s.charAt(i), 10);
+            if (digit < 0) {
+                return false;
+            }
+            result = result * 10 + digit;
+            if (result > (long) Integer.MAX_VALUE + 1) {
+                return false;
+            }
+        }
+        if (negative) {
+            result = -result;
+        }
+        return result >= min && result <= max;
+    }
+
+    // Plain decimals with up to this many significant digits and fraction digits are
+    // converted exactly in place; anything else goes through Float.parseFloat().
+    private static final int MAX_FAST_FLOAT_DIGITS = 15;
+    private static final int MAX_FAST_FLOAT_SCALE = 22;
+
+    /**
+     * Checks a range of a string is a float within bounds, accepting what
+     * {@link Float#parseFloat} accepts.
+     */
+    private static boolean isFloatInRange(String s, int start, int end, float min, float max) {
+        // Float.parseFloat() ignores surrounding whitespace
+        while (start < end && s.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (mantissa != 0 || c != '0') {
+                    if (++digits > MAX_FAST_FLOAT_DIGITS) {
+                        break;
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                }
+                if (seenPoint) {
+                    scale++;
+                }
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (i != end || !seenDigit || scale > MAX_FAST_FLOAT_SCALE) {
+            // Exponents, suffixes, hex, NaN, Infinity, long decimals or garbage
             try {
-                final float floatValue = Float.parseFloat(value);
-                return floatValue >= mMin && floatValue <= mMax;
+                final float floatValue = Float.parseFloat(s.substring(start, end));
+                return floatValue >= min && floatValue <= max;
             } catch (NumberFormatException e) {
                 return false;
             }
         }
+        // Both are exact doubles, so the quotient is correctly rounded
+        final double value = mantissa / POWERS_OF_TEN[scale];
+        final float floatValue = (float) (negative ? -value : value);
+        return floatValue >= min && floatValue <= max;
     }
 
-    private static final class DelimitedListValidator implements Validator {
-        private final ArraySet<String> mValidValueSet;
-        private final String mDelimiter;
-        private final boolean mAllowEmptyList;
-
-        public DelimitedListValidator(String[] validValues, String delimiter,
-                                      boolean allowEmptyList) {
-            mValidValueSet = new ArraySet<String>(Arrays.asList(validValues));
-            mDelimiter = delimiter;
-            mAllowEmptyList = allowEmptyList;
+    private static final double[] POWERS_OF_TEN = new double[MAX_FAST_FLOAT_SCALE + 1];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
         }
+    }
 
-        @Override
-        public boolean validate(String value) {
-            ArraySet<String> values = new ArraySet<String>();
-            if (!TextUtils.isEmpty(value)) {
-                final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                for (String item : array) {
-                    if (TextUtils.isEmpty(item)) {
-                        continue;
-                    }
-                    values.add(item);
-                }
-            }
-            if (values.size() > 0) {
-                values.removeAll(mValidValueSet);
-                // values.size() will be non-zero if it contains any values not in
-                // mValidValueSet
-                return values.size() == 0;
-            } else if (mAllowEmptyList) {
-                return true;
-            }
-
-            return false;
+    /**
+     * Returns the end of the fields of a range of a string split by a delimiter the way
+     * {@link String#split} does, which drops trailing empty fields. A non empty range made
+     * of delimiters only has no fields left, while an empty range is one empty field.
+     */
+    private static int trimTrailingFields(String s, int start, int end, char delimiter) {
+        while (end > start && s.charAt(end - 1) == delimiter) {
+            end--;
         }
+        return end;
+    }
+
+    /**
+     * @return The index of the delimiter ending the field at {@code start}, or {@code end}.
+     */
+    private static int fieldEnd(String s, int start, int end, char delimiter) {
+        final int index = s.indexOf(delimiter, start);
+        return index < 0 || index > end ? end : index;
     }
     // endregion Validators
 
@@ -499,6 +1906,8 @@ public final class EVSettings {
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
                 CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_PUT_MULTIPLE_SYSTEM,
+                CALL_METHOD_LIST_SYSTEM,
                 sProviderHolder);
 
         /** @hide */
@@ -582,12 +1991,36 @@ public final class EVSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
+            return getValueForUser(resolver, name, userId).value;
+        }
+
+        private static CachedValue getValueForUser(ContentResolver resolver, String name,
+                int userId) {
             if (MOVED_TO_SECURE.contains(name)) {
                 Log.w(TAG, "Setting " + name + " has moved from EVSettings.System"
                         + " to EVSettings.Secure, value is unchanged.");
-                return EVSettings.Secure.getStringForUser(resolver, name, userId);
+                return EVSettings.Secure.getValueForUser(resolver, name, userId);
+            }
+            return sNameValueCache.getValueForUser(resolver, name, userId);
+        }
+
+        private static CachedValue peekValueForUser(String name, int userId) {
+            if (MOVED_TO_SECURE.contains(name)) {
+                return EVSettings.Secure.peekValueForUser(name, userId);
             }
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return sNameValueCache.peekValueForUser(name, userId);
+        }
+
+        /**
+         * Enables prefetching for this process. The first read of a setting starting with
+         * {@code prefix} after the table changes fetches every matching setting in a single
+         * call to the provider, rather than one call per setting.
+         * @param prefix The key prefix to prefetch, an empty string for the whole table, or
+         *               null to disable prefetching.
+         * @hide
+         */
+        public static void setPrefetchPrefix(String prefix) {
+            sNameValueCache.setPrefetchPrefix(prefix);
         }
 
         /**
@@ -612,6 +2045,27 @@ public final class EVSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store multiple name/value pairs into the database in a single transaction. Either
+         * all of them are stored or none are, and observers are notified once.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @param userId the user to store the values for
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            for (String name : values.keySet()) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from EVSettings.System"
+                            + " to EVSettings.Secure, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -632,12 +2086,77 @@ public final class EVSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getInt(def);
+        }
+
+        /**
+         * Asynchronous version of {@link #getString(ContentResolver, String)}. The value is
+         * read on the calling thread when it is cached, otherwise on a background thread, and
+         * is always delivered through {@code executor}. Pass {@code handler::post} to deliver
+         * it on the thread of a {@link android.os.Handler}.
+         *
+         * @param resolver to access the database with
+         * @param name to look up in the table
+         * @param executor to deliver the value on
+         * @param callback receives the value, or null if it is not defined
+         */
+        public static void getStringAsync(ContentResolver resolver, String name,
+                Executor executor, Consumer<String> callback) {
+            getStringForUserAsync(resolver, name, resolver.getUserId(), executor, callback);
+        }
+
+        /** @hide */
+        public static void getStringForUserAsync(ContentResolver resolver, String name,
+                int userId, Executor executor, Consumer<String> callback) {
+            getValuesForUserAsync(System::peekValueForUser, System::getValueForUser,
+                    resolver, new String[] { name }, userId, executor,
+                    values -> callback.accept(values[0].value));
+        }
+
+        /**
+         * Asynchronous version of {@link #getInt(ContentResolver, String, int)}, delivered the
+         * same way as {@link #getStringAsync}.
+         *
+         * @param cr The ContentResolver to access.
+         * @param name The name of the setting to retrieve.
+         * @param def Value to deliver if the setting is not defined or not a valid integer.
+         * @param executor The executor to deliver the value on.
+         * @param callback Receives the value.
+         */
+        public static void getIntAsync(ContentResolver cr, String name, int def,
+                Executor executor, IntConsumer callback) {
+            getIntForUserAsync(cr, name, def, cr.getUserId(), executor, callback);
+        }
+
+        /** @hide */
+        public static void getIntForUserAsync(ContentResolver cr, String name, int def,
+                int userId, Executor executor, IntConsumer callback) {
+            getValuesForUserAsync(System::peekValueForUser, System::getValueForUser,
+                    cr, new String[] { name }, userId, executor,
+                    values -> callback.accept(values[0].getInt(def)));
+        }
+
+        /**
+         * Reads several settings at once, delivered the same way as {@link #getStringAsync}.
+         * They are fetched together, so the callback runs once for all of them.
+         *
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param executor to deliver the values on
+         * @param callback receives the value of every name, null for those not defined
+         */
+        public static void getStringsAsync(ContentResolver resolver, String[] names,
+                Executor executor, Consumer<Map<String, String>> callback) {
+            getStringsForUserAsync(resolver, names, resolver.getUserId(), executor, callback);
+        }
+
+        /** @hide */
+        public static void getStringsForUserAsync(ContentResolver resolver, String[] names,
+                int userId, Executor executor, Consumer<Map<String, String>> callback) {
+            final String[] keys = names.clone();
+            getValuesForUserAsync(System::peekValueForUser, System::getValueForUser,
+                    resolver, keys, userId, executor,
+                    values -> callback.accept(toMap(keys, values)));
         }
 
         /**
@@ -666,12 +2185,11 @@ public final class EVSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.hasInt()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return v.getInt(0);
         }
 
         /**
@@ -718,14 +2236,7 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getValueForUser(cr, name, userId).getLong(def);
         }
 
         /**
@@ -753,12 +2264,11 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.hasLong()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return v.getLong(0);
         }
 
         /**
@@ -805,12 +2315,7 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getFloat(def);
         }
 
         /**
@@ -839,15 +2344,11 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new EVSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.hasFloat()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return v.getFloat(0);
         }
 
         /**
@@ -1451,57 +2952,79 @@ public final class EVSettings {
                             return true;
                         }
 
-                        for (String packageValuesString : value.split("\\|")) {
-                            String[] packageValues = packageValuesString.split("=");
-                            if (packageValues.length != 2) {
-                                if (LOCAL_LOGV) {
-                                    Log.d(TAG, "Incorrect number of package values: "
-                                            + packageValues.length);
-                                }
+                        // Package values separated by '|', empty ones not allowed but at the end
+                        final int end = trimTrailingFields(value, 0, value.length(), '|');
+                        int start = 0;
+                        while (start < end) {
+                            final int packageEnd = fieldEnd(value, start, end, '|');
+                            if (!validatePackageValues(value, start, packageEnd)) {
                                 return false;
                             }
-                            String packageName = packageValues[0];
-                            if (TextUtils.isEmpty(packageName)) {
-                                if (LOCAL_LOGV)  Log.d(TAG, "Empty package name");
-                                return false;
+                            start = packageEnd + 1;
+                        }
+                        // if we make it all the way through then the data is considered valid
+                        return true;
+                    }
+
+                    // Validates "package=color;on;off"
+                    private boolean validatePackageValues(String value, int start, int end) {
+                        final int valuesEnd = start == end
+                                ? end : trimTrailingFields(value, start, end, '=');
+                        final int nameEnd = fieldEnd(value, start, valuesEnd, '=');
+                        if (start == end || nameEnd == valuesEnd
+                                || fieldEnd(value, nameEnd + 1, valuesEnd, '=') != valuesEnd) {
+                            if (LOCAL_LOGV) {
+                                Log.d(TAG, "Incorrect number of package values: "
+                                        + value.substring(start, end));
                             }
-                            String[] values = packageValues[1].split(";");
-                            if (values.length != 3) {
-                                if (LOCAL_LOGV) {
-                                    Log.d(TAG, "Incorrect number of values: " + values.length);
-                                }
-                                return false;
+                            return false;
+                        }
+                        if (nameEnd == start) {
+                            if (LOCAL_LOGV)  Log.d(TAG, "Empty package name");
+                            return false;
+                        }
+
+                        final int colorStart = nameEnd + 1;
+                        final int fieldsEnd = trimTrailingFields(value, colorStart, valuesEnd, ';');
+                        final int colorEnd = fieldEnd(value, colorStart, fieldsEnd, ';');
+                        final int onEnd = colorEnd == fieldsEnd
+                                ? fieldsEnd : fieldEnd(value, colorEnd + 1, fieldsEnd, ';');
+                        if (onEnd == fieldsEnd
+                                || fieldEnd(value, onEnd + 1, fieldsEnd, ';') != fieldsEnd) {
+                            if (LOCAL_LOGV) {
+                                Log.d(TAG, "Incorrect number of values: "
+                                        + value.substring(colorStart, valuesEnd));
                             }
-                            try {
-                                // values[0] is LED color
-                                if (!sColorValidator.validate(values[0])) {
-                                    if (LOCAL_LOGV) {
-                                        Log.d(TAG, "Invalid LED color (" + values[0] + ") for "
-                                                + packageName);
-                                    }
-                                    return false;
-                                }
-                                // values[1] is the LED on time and should be non-negative
-                                if (!sNonNegativeIntegerValidator.validate(values[1])) {
-                                    if (LOCAL_LOGV) {
-                                        Log.d(TAG, "Invalid LED on time (" + values[1] + ") for "
-                                                + packageName);
-                                    }
-                                    return false;
-                                }
-                                // values[1] is the LED off time and should be non-negative
-                                if (!sNonNegativeIntegerValidator.validate(values[2])) {
-                                    if (LOCAL_LOGV) {
-                                        Log.d(TAG, "Invalid LED off time (" + values[2] + ") for "
-                                                + packageName);
-                                    }
-                                    return false;
-                                }
-                            } catch (NumberFormatException e) {
-                                return false;
+                            return false;
+                        }
+                        // first value is LED color
+                        if (!isIntegerInRange(value, colorStart, colorEnd,
+                                Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+                            if (LOCAL_LOGV) {
+                                Log.d(TAG, "Invalid LED color ("
+                                        + value.substring(colorStart, colorEnd) + ") for "
+                                        + value.substring(start, nameEnd));
                             }
+                            return false;
+                        }
+                        // second value is the LED on time and should be non-negative
+                        if (!isIntegerInRange(value, colorEnd + 1, onEnd, 0, Integer.MAX_VALUE)) {
+                            if (LOCAL_LOGV) {
+                                Log.d(TAG, "Invalid LED on time ("
+                                        + value.substring(colorEnd + 1, onEnd) + ") for "
+                                        + value.substring(start, nameEnd));
+                            }
+                            return false;
+                        }
+                        // third value is the LED off time and should be non-negative
+                        if (!isIntegerInRange(value, onEnd + 1, fieldsEnd, 0, Integer.MAX_VALUE)) {
+                            if (LOCAL_LOGV) {
+                                Log.d(TAG, "Invalid LED off time ("
+                                        + value.substring(onEnd + 1, fieldsEnd) + ") for "
+                                        + value.substring(start, nameEnd));
+                            }
+                            return false;
                         }
-                        // if we make it all the way through then the data is considered valid
                         return true;
                     }
                 };
@@ -1759,16 +3282,22 @@ public final class EVSettings {
                 new Validator() {
                     @Override
                     public boolean validate(String value) {
-                        String[] colorAdjustment = value == null ?
-                                null : value.split(" ");
-                        if (colorAdjustment != null && colorAdjustment.length != 3) {
+                        if (value == null) {
+                            return true;
+                        }
+                        // Three space separated floats within [0, 1]
+                        final int end = trimTrailingFields(value, 0, value.length(), ' ');
+                        final int redEnd = fieldEnd(value, 0, end, ' ');
+                        if (redEnd == end) {
+                            return false;
+                        }
+                        final int greenEnd = fieldEnd(value, redEnd + 1, end, ' ');
+                        if (greenEnd == end || fieldEnd(value, greenEnd + 1, end, ' ') != end) {
                             return false;
                         }
-                        Validator floatValidator = new InclusiveFloatRangeValidator(0, 1);
-                        return colorAdjustment == null ||
-                                floatValidator.validate(colorAdjustment[0]) &&
-                                floatValidator.validate(colorAdjustment[1]) &&
-                                floatValidator.validate(colorAdjustment[2]);
+                        return isFloatInRange(value, 0, redEnd, 0, 1)
+                                && isFloatInRange(value, redEnd + 1, greenEnd, 0, 1)
+                                && isFloatInRange(value, greenEnd + 1, end, 0, 1);
                     }
                 };
 
@@ -1796,12 +3325,17 @@ public final class EVSettings {
                         if (TextUtils.isEmpty(value)) {
                             return true;
                         }
-                        final String[] sp = TextUtils.split(value, ",");
-                        for (String s : sp) {
-                            final String[] sp2 = TextUtils.split(s, ":");
-                            if (sp2.length != 2) {
+                        // Comma separated pairs, each holding a single ':'
+                        final int end = value.length();
+                        int start = 0;
+                        while (start <= end) {
+                            final int pairEnd = fieldEnd(value, start, end, ',');
+                            final int colon = fieldEnd(value, start, pairEnd, ':');
+                            if (colon == pairEnd
+                                    || fieldEnd(value, colon + 1, pairEnd, ':') != pairEnd) {
                                 return false;
                             }
+                            start = pairEnd + 1;
                         }
                         return true;
                     }
@@ -2146,6 +3680,8 @@ public final class EVSettings {
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
                 CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_PUT_MULTIPLE_SECURE,
+                CALL_METHOD_LIST_SECURE,
                 sProviderHolder);
 
         /** @hide */
@@ -2229,12 +3765,36 @@ public final class EVSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
+            return getValueForUser(resolver, name, userId).value;
+        }
+
+        private static CachedValue getValueForUser(ContentResolver resolver, String name,
+                int userId) {
             if (MOVED_TO_GLOBAL.contains(name)) {
                 Log.w(TAG, "Setting " + name + " has moved from EVSettings.Secure"
                         + " to EVSettings.Global, value is unchanged.");
-                return EVSettings.Global.getStringForUser(resolver, name, userId);
+                return EVSettings.Global.getValueForUser(resolver, name, userId);
+            }
+            return sNameValueCache.getValueForUser(resolver, name, userId);
+        }
+
+        private static CachedValue peekValueForUser(String name, int userId) {
+            if (MOVED_TO_GLOBAL.contains(name)) {
+                return EVSettings.Global.peekValueForUser(name, userId);
             }
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return sNameValueCache.peekValueForUser(name, userId);
+        }
+
+        /**
+         * Enables prefetching for this process. The first read of a setting starting with
+         * {@code prefix} after the table changes fetches every matching setting in a single
+         * call to the provider, rather than one call per setting.
+         * @param prefix The key prefix to prefetch, an empty string for the whole table, or
+         *               null to disable prefetching.
+         * @hide
+         */
+        public static void setPrefetchPrefix(String prefix) {
+            sNameValueCache.setPrefetchPrefix(prefix);
         }
 
         /**
@@ -2259,6 +3819,27 @@ public final class EVSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store multiple name/value pairs into the database in a single transaction. Either
+         * all of them are stored or none are, and observers are notified once.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @param userId the user to store the values for
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            for (String name : values.keySet()) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from EVSettings.Secure"
+                            + " to EVSettings.Global, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -2279,12 +3860,77 @@ public final class EVSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getInt(def);
+        }
+
+        /**
+         * Asynchronous version of {@link #getString(ContentResolver, String)}. The value is
+         * read on the calling thread when it is cached, otherwise on a background thread, and
+         * is always delivered through {@code executor}. Pass {@code handler::post} to deliver
+         * it on the thread of a {@link android.os.Handler}.
+         *
+         * @param resolver to access the database with
+         * @param name to look up in the table
+         * @param executor to deliver the value on
+         * @param callback receives the value, or null if it is not defined
+         */
+        public static void getStringAsync(ContentResolver resolver, String name,
+                Executor executor, Consumer<String> callback) {
+            getStringForUserAsync(resolver, name, resolver.getUserId(), executor, callback);
+        }
+
+        /** @hide */
+        public static void getStringForUserAsync(ContentResolver resolver, String name,
+                int userId, Executor executor, Consumer<String> callback) {
+            getValuesForUserAsync(Secure::peekValueForUser, Secure::getValueForUser,
+                    resolver, new String[] { name }, userId, executor,
+                    values -> callback.accept(values[0].value));
+        }
+
+        /**
+         * Asynchronous version of {@link #getInt(ContentResolver, String, int)}, delivered the
+         * same way as {@link #getStringAsync}.
+         *
+         * @param cr The ContentResolver to access.
+         * @param name The name of the setting to retrieve.
+         * @param def Value to deliver if the setting is not defined or not a valid integer.
+         * @param executor The executor to deliver the value on.
+         * @param callback Receives the value.
+         */
+        public static void getIntAsync(ContentResolver cr, String name, int def,
+                Executor executor, IntConsumer callback) {
+            getIntForUserAsync(cr, name, def, cr.getUserId(), executor, callback);
+        }
+
+        /** @hide */
+        public static void getIntForUserAsync(ContentResolver cr, String name, int def,
+                int userId, Executor executor, IntConsumer callback) {
+            getValuesForUserAsync(Secure::peekValueForUser, Secure::getValueForUser,
+                    cr, new String[] { name }, userId, executor,
+                    values -> callback.accept(values[0].getInt(def)));
+        }
+
+        /**
+         * Reads several settings at once, delivered the same way as {@link #getStringAsync}.
+         * They are fetched together, so the callback runs once for all of them.
+         *
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param executor to deliver the values on
+         * @param callback receives the value of every name, null for those not defined
+         */
+        public static void getStringsAsync(ContentResolver resolver, String[] names,
+                Executor executor, Consumer<Map<String, String>> callback) {
+            getStringsForUserAsync(resolver, names, resolver.getUserId(), executor, callback);
+        }
+
+        /** @hide */
+        public static void getStringsForUserAsync(ContentResolver resolver, String[] names,
+                int userId, Executor executor, Consumer<Map<String, String>> callback) {
+            final String[] keys = names.clone();
+            getValuesForUserAsync(Secure::peekValueForUser, Secure::getValueForUser,
+                    resolver, keys, userId, executor,
+                    values -> callback.accept(toMap(keys, values)));
         }
 
         /**
@@ -2313,12 +3959,11 @@ public final class EVSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.hasInt()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return v.getInt(0);
         }
 
         /**
@@ -2365,14 +4010,7 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getValueForUser(cr, name, userId).getLong(def);
         }
 
         /**
@@ -2400,12 +4038,11 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.hasLong()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return v.getLong(0);
         }
 
         /**
@@ -2452,12 +4089,7 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getFloat(def);
         }
 
         /**
@@ -2486,15 +4118,11 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new EVSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.hasFloat()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return v.getFloat(0);
         }
 
         /**
@@ -2744,6 +4372,8 @@ public final class EVSettings {
                 CONTENT_URI,
                 CALL_METHOD_GET_GLOBAL,
                 CALL_METHOD_PUT_GLOBAL,
+                CALL_METHOD_PUT_MULTIPLE_GLOBAL,
+                CALL_METHOD_LIST_GLOBAL,
                 sProviderHolder);
 
         // region Methods
@@ -2821,7 +4451,28 @@ public final class EVSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return getValueForUser(resolver, name, userId).value;
+        }
+
+        private static CachedValue getValueForUser(ContentResolver resolver, String name,
+                int userId) {
+            return sNameValueCache.getValueForUser(resolver, name, userId);
+        }
+
+        private static CachedValue peekValueForUser(String name, int userId) {
+            return sNameValueCache.peekValueForUser(name, userId);
+        }
+
+        /**
+         * Enables prefetching for this process. The first read of a setting starting with
+         * {@code prefix} after the table changes fetches every matching setting in a single
+         * call to the provider, rather than one call per setting.
+         * @param prefix The key prefix to prefetch, an empty string for the whole table, or
+         *               null to disable prefetching.
+         * @hide
+         */
+        public static void setPrefetchPrefix(String prefix) {
+            sNameValueCache.setPrefetchPrefix(prefix);
         }
 
         /**
@@ -2841,6 +4492,20 @@ public final class EVSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store multiple name/value pairs into the database in a single transaction. Either
+         * all of them are stored or none are, and observers are notified once.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @param userId the user to store the values for
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -2861,12 +4526,77 @@ public final class EVSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getInt(def);
+        }
+
+        /**
+         * Asynchronous version of {@link #getString(ContentResolver, String)}. The value is
+         * read on the calling thread when it is cached, otherwise on a background thread, and
+         * is always delivered through {@code executor}. Pass {@code handler::post} to deliver
+         * it on the thread of a {@link android.os.Handler}.
+         *
+         * @param resolver to access the database with
+         * @param name to look up in the table
+         * @param executor to deliver the value on
+         * @param callback receives the value, or null if it is not defined
+         */
+        public static void getStringAsync(ContentResolver resolver, String name,
+                Executor executor, Consumer<String> callback) {
+            getStringForUserAsync(resolver, name, resolver.getUserId(), executor, callback);
+        }
+
+        /** @hide */
+        public static void getStringForUserAsync(ContentResolver resolver, String name,
+                int userId, Executor executor, Consumer<String> callback) {
+            getValuesForUserAsync(Global::peekValueForUser, Global::getValueForUser,
+                    resolver, new String[] { name }, userId, executor,
+                    values -> callback.accept(values[0].value));
+        }
+
+        /**
+         * Asynchronous version of {@link #getInt(ContentResolver, String, int)}, delivered the
+         * same way as {@link #getStringAsync}.
+         *
+         * @param cr The ContentResolver to access.
+         * @param name The name of the setting to retrieve.
+         * @param def Value to deliver if the setting is not defined or not a valid integer.
+         * @param executor The executor to deliver the value on.
+         * @param callback Receives the value.
+         */
+        public static void getIntAsync(ContentResolver cr, String name, int def,
+                Executor executor, IntConsumer callback) {
+            getIntForUserAsync(cr, name, def, cr.getUserId(), executor, callback);
+        }
+
+        /** @hide */
+        public static void getIntForUserAsync(ContentResolver cr, String name, int def,
+                int userId, Executor executor, IntConsumer callback) {
+            getValuesForUserAsync(Global::peekValueForUser, Global::getValueForUser,
+                    cr, new String[] { name }, userId, executor,
+                    values -> callback.accept(values[0].getInt(def)));
+        }
+
+        /**
+         * Reads several settings at once, delivered the same way as {@link #getStringAsync}.
+         * They are fetched together, so the callback runs once for all of them.
+         *
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param executor to deliver the values on
+         * @param callback receives the value of every name, null for those not defined
+         */
+        public static void getStringsAsync(ContentResolver resolver, String[] names,
+                Executor executor, Consumer<Map<String, String>> callback) {
+            getStringsForUserAsync(resolver, names, resolver.getUserId(), executor, callback);
+        }
+
+        /** @hide */
+        public static void getStringsForUserAsync(ContentResolver resolver, String[] names,
+                int userId, Executor executor, Consumer<Map<String, String>> callback) {
+            final String[] keys = names.clone();
+            getValuesForUserAsync(Global::peekValueForUser, Global::getValueForUser,
+                    resolver, keys, userId, executor,
+                    values -> callback.accept(toMap(keys, values)));
         }
 
         /**
@@ -2895,12 +4625,11 @@ public final class EVSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.hasInt()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return v.getInt(0);
         }
 
         /**
@@ -2947,14 +4676,7 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getValueForUser(cr, name, userId).getLong(def);
         }
 
         /**
@@ -2982,12 +4704,11 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.hasLong()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return v.getLong(0);
         }
 
         /**
@@ -3034,12 +4755,7 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getValueForUser(cr, name, userId).getFloat(def);
         }
 
         /**
@@ -3068,15 +4784,11 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new EVSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.hasFloat()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return v.getFloat(0);
         }
 
         /**
@@ -317,11 +317,26 @@ public class ColorUtils {
      * @return array of floats representing rgb values 0->1
      */
     public static float[] temperatureToRGB(int degreesK) {
+        final float[] rgb = new float[3];
+        temperatureToRGB(degreesK, rgb);
+        return rgb;
+    }
+
+    /**
+     * Convert a color temperature value (in Kelvin) to a RGB units as floats,
+     * without allocating. Use this for repeated conversions such as transitions.
+     *
+     * @param degreesK
+     * @param rgb array of at least 3 floats receiving the rgb values 0->1
+     */
+    public static void temperatureToRGB(int degreesK, float[] rgb) {
         int k = MathUtils.constrain(degreesK, 1000, 20000);
         float a = (k % 100) / 100.0f;
         int i = ((k - 1000)/ 100) * 3;
 
-        return new float[] { interp(i, a), interp(i+1, a), interp(i+2, a) };
+        rgb[0] = interp(i, a);
+        rgb[1] = interp(i+1, a);
+        rgb[2] = interp(i+2, a);
     }
 
     private static float interp(int i, float a) {
@@ -17,26 +17,28 @@
 
 package com.evervolv.evsettings;
 
+import android.content.ContentValues;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
-import android.content.res.Configuration;
-import android.content.res.Resources;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
-import android.os.SystemProperties;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
-import android.text.TextUtils;
-import android.util.DisplayMetrics;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
 import evervolv.provider.EVSettings;
 
 import java.io.File;
+import java.util.Map;
 
 /**
  * The DatabaseHelper allows creation of a database to store Lineage specific settings for a user
@@ -67,11 +69,86 @@ public class DatabaseHelper extends SQLiteOpenHelper{
 
     private static final String DROP_INDEX_SQL_FORMAT = "DROP INDEX IF EXISTS %sIndex%d;";
 
-    private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
+    // Tables storing only what differs from the shared defaults, with the fingerprint of the
+    // defaults they were created with, and the defaults deleted from them. They are created
+    // on open rather than on upgrade, as they only ever matter to databases created from now
+    // on.
+    static final String TABLE_OVERLAY = "overlay_tables";
+    static final String TABLE_OVERLAY_DELETED = "overlay_deleted";
+
+    private static final String OVERLAY_FINGERPRINT = "defaults_fingerprint";
+
+    private static final String CREATE_OVERLAY_SQL = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_OVERLAY + " (name TEXT PRIMARY KEY ON CONFLICT IGNORE, "
+            + OVERLAY_FINGERPRINT + " INTEGER);";
+
+    private static final String CREATE_OVERLAY_DELETED_SQL = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_OVERLAY_DELETED + " (tbl TEXT, name TEXT, PRIMARY KEY (tbl, name)"
+            + " ON CONFLICT IGNORE);";
+
+    // Number of commits made to each table, which snapshots are stamped with. It is bumped in
+    // the transaction of each commit, so a snapshot taken at another commit than the database
+    // is at, e.g. of a database restored or written behind our back, is told apart.
+    static final String TABLE_COMMIT_SEQ = "commit_seq";
+
+    private static final String CREATE_COMMIT_SEQ_SQL = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_COMMIT_SEQ + " (tbl TEXT PRIMARY KEY ON CONFLICT IGNORE,"
+            + " seq INTEGER NOT NULL DEFAULT 0);";
+
+    // Version the database has been upgraded to so far, while an upgrade is being run.
+    private static final String TABLE_UPGRADE_PROGRESS = "upgrade_progress";
+
+    private static final String CREATE_UPGRADE_PROGRESS_SQL = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_UPGRADE_PROGRESS + " (version INTEGER);";
+
+    // Number of settings moved between tables per transaction.
+    private static final int MIGRATION_CHUNK_SIZE = 50;
+
+    // Kinds of upgrade steps: writing the database in the transaction recording them as done,
+    // writing it in transactions of their own, or writing through the settings APIs, which
+    // is only possible once the database is open. Steps of the last two kinds must be safe to
+    // run again, and steps of the last kind must come last.
+    private static final int STEP_TRANSACTIONAL = 0;
+    private static final int STEP_CHUNKED = 1;
+    private static final int STEP_SETTINGS_API = 2;
+
+    private interface Migration {
+        void migrate(SQLiteDatabase db);
+    }
+
+    private static final class UpgradeStep {
+        final int version;
+        final int kind;
+        final Migration migration;
+
+        UpgradeStep(int version, int kind, Migration migration) {
+            this.version = version;
+            this.kind = kind;
+            this.migration = migration;
+        }
+    }
+
+    private final UpgradeStep[] mUpgradeSteps = {
+        new UpgradeStep(2, STEP_TRANSACTIONAL, this::loadSettings),
+        new UpgradeStep(3, STEP_TRANSACTIONAL, this::updateButtonBrightnessStep),
+        new UpgradeStep(4, STEP_CHUNKED, this::moveBerryBlackThemeStep),
+        new UpgradeStep(5, STEP_SETTINGS_API, this::migrateFingerprintAuthStep),
+        new UpgradeStep(6, STEP_SETTINGS_API, this::migrateSwipeToScreenshotStep),
+        new UpgradeStep(8, STEP_SETTINGS_API, this::resetEdgeLightStep),
+    };
 
     private Context mContext;
     private int mUserHandle;
-    private String mPublicSrcDir;
+    private final SettingsDefaults mDefaults;
+
+    private final Object mUpgradeLock = new Object();
+
+    @GuardedBy("mUpgradeLock")
+    private boolean mHasDeferredUpgradeSteps;
+
+    // Overlay tables, with the fingerprint of their defaults
+    @GuardedBy("mOverlayTables")
+    private final ArrayMap<String, Integer> mOverlayTables = new ArrayMap<String, Integer>();
 
     /**
      * Gets the appropriate database path for a specific user
@@ -96,22 +173,36 @@ public class DatabaseHelper extends SQLiteOpenHelper{
      * @param userId
      */
     public DatabaseHelper(Context context, int userId) {
-        super(context, dbNameForUser(context, userId, DATABASE_NAME), null, DATABASE_VERSION);
+        this(context, userId, dbNameForUser(context, userId, DATABASE_NAME));
+    }
+
+    /**
+     * Creates an instance of {@link DatabaseHelper} keeping its database at another path
+     * @param context
+     * @param userId
+     * @param dbPath
+     */
+    @VisibleForTesting
+    DatabaseHelper(Context context, int userId, String dbPath) {
+        super(context, dbPath, null, DATABASE_VERSION);
         mContext = context;
         mUserHandle = userId;
+        mDefaults = SettingsDefaults.get(context);
+    }
 
-        try {
-            String packageName = mContext.getPackageName();
-            mPublicSrcDir = mContext.getPackageManager().getApplicationInfo(packageName, 0)
-                    .publicSourceDir;
-        } catch (PackageManager.NameNotFoundException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Returns the file holding the snapshot of a table. It lives next to the database so it's
+     * cleaned up along with it when the user is deleted.
+     * @param tableName The name of the table.
+     * @return The snapshot file.
+     */
+    File getSnapshotFile(String tableName) {
+        return new File(getDatabaseName() + "-" + tableName + ".snapshot");
     }
 
     /**
-     * Creates System, Secure, and Global tables in the specified {@link SQLiteDatabase} and loads
-     * default values into the created tables.
+     * Creates System, Secure, and Global tables in the specified {@link SQLiteDatabase} as
+     * overlays of the shared defaults, so no default value is copied into them.
      * @param db The database.
      */
     @Override
@@ -126,7 +217,14 @@ public class DatabaseHelper extends SQLiteOpenHelper{
                 createDbTable(db, TableNames.TABLE_GLOBAL);
             }
 
-            loadSettings(db);
+            createOverlayTables(db);
+            db.delete(TABLE_OVERLAY, null, null);
+            db.delete(TABLE_OVERLAY_DELETED, null, null);
+            markOverlayTable(db, TableNames.TABLE_SYSTEM);
+            markOverlayTable(db, TableNames.TABLE_SECURE);
+            if (mUserHandle == UserHandle.USER_SYSTEM) {
+                markOverlayTable(db, TableNames.TABLE_GLOBAL);
+            }
 
             db.setTransactionSuccessful();
 
@@ -136,6 +234,207 @@ public class DatabaseHelper extends SQLiteOpenHelper{
         }
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        createOverlayTables(db);
+        createCommitSeqTable(db);
+
+        createUpgradeProgressTable(db);
+        final boolean done = runUpgradeSteps(db, false);
+        synchronized (mUpgradeLock) {
+            mHasDeferredUpgradeSteps = !done;
+        }
+
+        final ArrayMap<String, Integer> overlayTables = new ArrayMap<String, Integer>();
+        final Cursor cursor = db.query(TABLE_OVERLAY,
+                new String[] { "name", OVERLAY_FINGERPRINT }, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                overlayTables.put(cursor.getString(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        synchronized (mOverlayTables) {
+            mOverlayTables.clear();
+            mOverlayTables.putAll(overlayTables);
+        }
+    }
+
+    private void createOverlayTables(SQLiteDatabase db) {
+        db.execSQL(CREATE_OVERLAY_SQL);
+        db.execSQL(CREATE_OVERLAY_DELETED_SQL);
+
+        // Overlays created before fingerprints were recorded are pinned to the defaults
+        // they are first opened with from now on
+        final Cursor cursor = db.rawQuery("PRAGMA table_info(" + TABLE_OVERLAY + ");", null);
+        boolean hasFingerprint = false;
+        try {
+            final int nameColumn = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                hasFingerprint |= OVERLAY_FINGERPRINT.equals(cursor.getString(nameColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!hasFingerprint) {
+            db.execSQL("ALTER TABLE " + TABLE_OVERLAY + " ADD COLUMN "
+                    + OVERLAY_FINGERPRINT + " INTEGER;");
+        }
+        for (String tableName : new String[] { TableNames.TABLE_SYSTEM,
+                TableNames.TABLE_SECURE, TableNames.TABLE_GLOBAL }) {
+            db.execSQL("UPDATE " + TABLE_OVERLAY + " SET " + OVERLAY_FINGERPRINT + "=?"
+                    + " WHERE name=? AND " + OVERLAY_FINGERPRINT + " IS NULL;",
+                    new Object[] { mDefaults.getFingerprint(tableName), tableName });
+        }
+    }
+
+    private void createCommitSeqTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_COMMIT_SEQ_SQL);
+        for (String tableName : new String[] { TableNames.TABLE_SYSTEM,
+                TableNames.TABLE_SECURE, TableNames.TABLE_GLOBAL }) {
+            final ContentValues values = new ContentValues();
+            values.put("tbl", tableName);
+            db.insert(TABLE_COMMIT_SEQ, null, values);
+        }
+    }
+
+    /**
+     * @param db The database.
+     * @param tableName The name of the table.
+     * @return The number of commits made to the table, see {@link #TABLE_COMMIT_SEQ}.
+     */
+    long getCommitSeq(SQLiteDatabase db, String tableName) {
+        final Cursor cursor = db.query(TABLE_COMMIT_SEQ, new String[] { "seq" },
+                "tbl=?", new String[] { tableName }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void markOverlayTable(SQLiteDatabase db, String tableName) {
+        final ContentValues values = new ContentValues();
+        values.put("name", tableName);
+        values.put(OVERLAY_FINGERPRINT, mDefaults.getFingerprint(tableName));
+        db.insert(TABLE_OVERLAY, null, values);
+    }
+
+    /**
+     * Returns whether a table only stores what differs from the shared defaults. The other
+     * values of the table are the defaults, less those in {@link #getDeletedDefaults}. Only
+     * valid once the database is open.
+     * @param tableName The name of the table.
+     */
+    boolean isOverlayTable(String tableName) {
+        synchronized (mOverlayTables) {
+            return mOverlayTables.containsKey(tableName);
+        }
+    }
+
+    /**
+     * @param tableName The name of the table.
+     * @return The fingerprint of the defaults an overlay table is pinned to, or 0 if the
+     *     table isn't an overlay. Only valid once the database is open.
+     */
+    int getOverlayFingerprint(String tableName) {
+        synchronized (mOverlayTables) {
+            final Integer fingerprint = mOverlayTables.get(tableName);
+            return fingerprint != null ? fingerprint : 0;
+        }
+    }
+
+    /**
+     * @param tableName The name of the table.
+     * @return The read-only default values of the table, shared by all users. Those of an
+     *     overlay table are the defaults it was created with, even once an update changed
+     *     them.
+     */
+    Map<String, String> getDefaults(String tableName) {
+        final Integer fingerprint;
+        synchronized (mOverlayTables) {
+            fingerprint = mOverlayTables.get(tableName);
+        }
+        return fingerprint != null ? mDefaults.getDefaults(tableName, fingerprint)
+                : mDefaults.getDefaults(tableName);
+    }
+
+    /**
+     * @param db The database.
+     * @param tableName The name of an overlay table.
+     * @return The names of the defaults deleted from the table.
+     */
+    ArraySet<String> getDeletedDefaults(SQLiteDatabase db, String tableName) {
+        final ArraySet<String> names = new ArraySet<String>();
+        final Cursor cursor = db.query(TABLE_OVERLAY_DELETED, new String[] { "name" },
+                "tbl=?", new String[] { tableName }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    /**
+     * Copies the defaults not overridden or deleted into an overlay table, after which it
+     * holds all of its values like any other table. This must be done before the table is
+     * accessed in the database directly.
+     * @param tableName The name of the table.
+     */
+    void materializeDefaults(String tableName) {
+        if (!isOverlayTable(tableName)) {
+            return;
+        }
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement stmt = null;
+        try {
+            final ArraySet<String> deleted = getDeletedDefaults(db, tableName);
+            stmt = db.compileStatement("INSERT OR IGNORE INTO " + tableName
+                    + "(name,value) VALUES(?,?);");
+            for (Map.Entry<String, String> entry : getDefaults(tableName).entrySet()) {
+                if (!deleted.contains(entry.getKey())) {
+                    loadSetting(stmt, entry.getKey(), entry.getValue());
+                }
+            }
+            db.delete(TABLE_OVERLAY_DELETED, "tbl=?", new String[] { tableName });
+            db.delete(TABLE_OVERLAY, "name=?", new String[] { tableName });
+            bumpCommitSeq(db, tableName);
+            db.setTransactionSuccessful();
+        } finally {
+            if (stmt != null) stmt.close();
+            db.endTransaction();
+        }
+        synchronized (mOverlayTables) {
+            mOverlayTables.remove(tableName);
+        }
+        if (LOCAL_LOGV) Log.d(TAG, "Materialized defaults of " + tableName);
+    }
+
+    /**
+     * Counts a commit to a table made other than by its {@link SettingsState}, in the
+     * transaction of the commit.
+     * @param db The database.
+     * @param tableName The name of the table.
+     */
+    void bumpCommitSeq(SQLiteDatabase db, String tableName) {
+        db.execSQL("UPDATE " + TABLE_COMMIT_SEQ + " SET seq=seq+1 WHERE tbl=?;",
+                new Object[] { tableName });
+    }
+
+    /**
+     * Returns the version a snapshot must have been written for, known before the database
+     * is open. The defaults an overlay table is pinned to are checked once it is, see
+     * {@link #getOverlayFingerprint}.
+     */
+    static int getSnapshotVersion() {
+        return DATABASE_VERSION;
+    }
+
     /**
      * Creates a table and index for the specified database and table name
      * @param db The {@link SQLiteDatabase} to create the table and index in.
@@ -151,113 +450,202 @@ public class DatabaseHelper extends SQLiteOpenHelper{
         db.execSQL(createIndexSql);
     }
 
+    /**
+     * Records the upgrade from {@code oldVersion}. The steps are run on open rather than
+     * here, where they would all share the transaction of the version change: each step then
+     * commits along with its progress, so an interrupted upgrade resumes at the step it was
+     * interrupted at.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (LOCAL_LOGV) Log.d(TAG, "Upgrading from version: " + oldVersion + " to " + newVersion);
-        int upgradeVersion = oldVersion;
+        createUpgradeProgressTable(db);
+        if (getUpgradeProgress(db) < 0) {
+            // Unless an earlier upgrade is still being run, which then carries on
+            setUpgradeProgress(db, oldVersion);
+        }
 
-        if (upgradeVersion < 2) {
-            db.beginTransaction();
-            try {
-                loadSettings(db);
+        final int upgradeVersion = mUpgradeSteps[mUpgradeSteps.length - 1].version;
+        if (upgradeVersion < newVersion) {
+            Log.w(TAG, "Got stuck trying to upgrade db. Old version: " + oldVersion
+                    + ", version stuck at: " +  upgradeVersion + ", new version: "
+                            + newVersion + ". Must wipe the evervolv settings provider.");
 
-                db.setTransactionSuccessful();
+            dropDbTable(db, TableNames.TABLE_SYSTEM);
+            dropDbTable(db, TableNames.TABLE_SECURE);
 
-                upgradeVersion = 2;
-            } finally {
-                db.endTransaction();
+            if (mUserHandle == UserHandle.USER_SYSTEM) {
+                dropDbTable(db, TableNames.TABLE_GLOBAL);
             }
+
+            setUpgradeProgress(db, -1);
+            onCreate(db);
         }
+    }
 
-        if (upgradeVersion < 3) {
-            // Update button/keyboard brightness range
-            if (mUserHandle == UserHandle.USER_OWNER) {
-                db.beginTransaction();
-                SQLiteStatement stmt = null;
-                try {
-                    stmt = db.compileStatement(
-                            "UPDATE secure SET value=round(value / 255.0, 2) WHERE name=?");
-                    stmt.bindString(1, EVSettings.System.BUTTON_BRIGHTNESS);
-                    stmt.execute();
-                    db.setTransactionSuccessful();
-                } catch (SQLiteDoneException ex) {
-                    // EVSettings.System.BUTTON_BRIGHTNESS is not set
-                } finally {
-                    if (stmt != null) stmt.close();
-                    db.endTransaction();
-                }
+    private void updateButtonBrightnessStep(SQLiteDatabase db) {
+        // Update button/keyboard brightness range
+        if (mUserHandle == UserHandle.USER_OWNER) {
+            SQLiteStatement stmt = null;
+            try {
+                stmt = db.compileStatement(
+                        "UPDATE secure SET value=round(value / 255.0, 2) WHERE name=?");
+                stmt.bindString(1, EVSettings.System.BUTTON_BRIGHTNESS);
+                stmt.execute();
+            } catch (SQLiteDoneException ex) {
+                // EVSettings.System.BUTTON_BRIGHTNESS is not set
+            } finally {
+                if (stmt != null) stmt.close();
             }
-            upgradeVersion = 3;
         }
+    }
 
-        if (upgradeVersion < 4) {
-            // Move berry_black_theme to secure
-            moveSettingsToNewTable(db, TableNames.TABLE_SYSTEM,
-                    TableNames.TABLE_SECURE, new String[] {
-                    EVSettings.Secure.BERRY_BLACK_THEME
-            }, true);
-            upgradeVersion = 4;
-        }
+    private void moveBerryBlackThemeStep(SQLiteDatabase db) {
+        // Move berry_black_theme to secure
+        moveSettingsToNewTable(db, TableNames.TABLE_SYSTEM,
+                TableNames.TABLE_SECURE, new String[] {
+                EVSettings.Secure.BERRY_BLACK_THEME
+        }, true);
+    }
 
-        if (upgradeVersion < 5) {
-            // Set default value based on config_fingerprintWakeAndUnlock
-            boolean fingerprintWakeAndUnlock = mContext.getResources().getBoolean(
-                    com.evervolv.platform.internal.R.bool.config_fingerprintWakeAndUnlock);
-            // Previously Settings.Secure.SFPS_REQUIRE_SCREEN_ON_TO_AUTH_ENABLED
-            Integer oldSetting = Settings.Secure.getInt(mContext.getContentResolver(),
-                    "sfps_require_screen_on_to_auth_enabled", fingerprintWakeAndUnlock ? 0 : 1);
-            // Flip value
-            Settings.Secure.putInt(mContext.getContentResolver(),
-                    Settings.Secure.SFPS_PERFORMANT_AUTH_ENABLED, oldSetting.equals(1) ? 0 : 1);
-            upgradeVersion = 5;
-        }
+    private void migrateFingerprintAuthStep(SQLiteDatabase db) {
+        // Set default value based on config_fingerprintWakeAndUnlock
+        boolean fingerprintWakeAndUnlock = mContext.getResources().getBoolean(
+                com.evervolv.platform.internal.R.bool.config_fingerprintWakeAndUnlock);
+        // Previously Settings.Secure.SFPS_REQUIRE_SCREEN_ON_TO_AUTH_ENABLED
+        Integer oldSetting = Settings.Secure.getInt(mContext.getContentResolver(),
+                "sfps_require_screen_on_to_auth_enabled", fingerprintWakeAndUnlock ? 0 : 1);
+        // Flip value
+        Settings.Secure.putInt(mContext.getContentResolver(),
+                Settings.Secure.SFPS_PERFORMANT_AUTH_ENABLED, oldSetting.equals(1) ? 0 : 1);
+    }
 
-        if (upgradeVersion < 6) {
-            // Previously Settings.System.THREE_FINGER_GESTURE
-            int oldSetting = Settings.System.getInt(mContext.getContentResolver(),
-                    "three_finger_gesture", 0);
-            EVSettings.System.putInt(mContext.getContentResolver(),
-                    EVSettings.System.SWIPE_TO_SCREENSHOT, oldSetting);
-            upgradeVersion = 6;
-        }
+    private void migrateSwipeToScreenshotStep(SQLiteDatabase db) {
+        // Previously Settings.System.THREE_FINGER_GESTURE
+        int oldSetting = Settings.System.getInt(mContext.getContentResolver(),
+                "three_finger_gesture", 0);
+        EVSettings.System.putInt(mContext.getContentResolver(),
+                EVSettings.System.SWIPE_TO_SCREENSHOT, oldSetting);
+    }
+
+    private void resetEdgeLightStep(SQLiteDatabase db) {
+        // Reset edge light color mode, the feature is not available.
+        EVSettings.System.putInt(mContext.getContentResolver(),
+                EVSettings.System.EDGE_LIGHT_ENABLED, 0);
+        EVSettings.System.putInt(mContext.getContentResolver(),
+                EVSettings.System.EDGE_LIGHT_ALWAYS_TRIGGER_ON_PULSE, 0);
+        EVSettings.System.putInt(mContext.getContentResolver(),
+                EVSettings.System.EDGE_LIGHT_REPEAT_ANIMATION, 0);
+        EVSettings.System.putInt(mContext.getContentResolver(),
+               EVSettings.System.EDGE_LIGHT_COLOR_MODE, 0);
+    }
 
-        if (upgradeVersion < 8) {
-            // Reset edge light color mode, the feature is not available.
-            EVSettings.System.putInt(mContext.getContentResolver(),
-                    EVSettings.System.EDGE_LIGHT_ENABLED, 0);
-            EVSettings.System.putInt(mContext.getContentResolver(),
-                    EVSettings.System.EDGE_LIGHT_ALWAYS_TRIGGER_ON_PULSE, 0);
-            EVSettings.System.putInt(mContext.getContentResolver(),
-                    EVSettings.System.EDGE_LIGHT_REPEAT_ANIMATION, 0);
-            EVSettings.System.putInt(mContext.getContentResolver(),
-                   EVSettings.System.EDGE_LIGHT_COLOR_MODE, 0);
-            upgradeVersion = 8;
+    private void createUpgradeProgressTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_UPGRADE_PROGRESS_SQL);
+    }
+
+    /**
+     * @param db The database.
+     * @return The version the database has been upgraded to so far, or -1 if it is done.
+     */
+    private int getUpgradeProgress(SQLiteDatabase db) {
+        final Cursor cursor = db.query(TABLE_UPGRADE_PROGRESS, new String[] { "version" },
+                null, null, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+        } finally {
+            cursor.close();
         }
+    }
 
-        if (upgradeVersion < newVersion) {
-            Log.w(TAG, "Got stuck trying to upgrade db. Old version: " + oldVersion
-                    + ", version stuck at: " +  upgradeVersion + ", new version: "
-                            + newVersion + ". Must wipe the evervolv settings provider.");
+    private void setUpgradeProgress(SQLiteDatabase db, int version) {
+        db.delete(TABLE_UPGRADE_PROGRESS, null, null);
+        if (version >= 0) {
+            final ContentValues values = new ContentValues();
+            values.put("version", version);
+            db.insert(TABLE_UPGRADE_PROGRESS, null, values);
+        }
+    }
 
-            dropDbTable(db, TableNames.TABLE_SYSTEM);
-            dropDbTable(db, TableNames.TABLE_SECURE);
+    /**
+     * Runs the pending upgrade steps in order, each timed and recorded as done once it is.
+     * @param db The database.
+     * @param opened Whether the database is fully open, which steps writing through the
+     *     settings APIs need. Otherwise the steps stop at the first of them.
+     * @return Whether no step is left.
+     */
+    private boolean runUpgradeSteps(SQLiteDatabase db, boolean opened) {
+        synchronized (mUpgradeLock) {
+            final int progress = getUpgradeProgress(db);
+            if (progress < 0) {
+                return true;
+            }
+            for (UpgradeStep step : mUpgradeSteps) {
+                if (step.version <= progress) {
+                    continue;
+                }
+                if (step.kind == STEP_SETTINGS_API && !opened) {
+                    return false;
+                }
 
-            if (mUserHandle == UserHandle.USER_SYSTEM) {
-                dropDbTable(db, TableNames.TABLE_GLOBAL);
+                final long start = SystemClock.uptimeMillis();
+                if (step.kind == STEP_TRANSACTIONAL) {
+                    db.beginTransaction();
+                    try {
+                        step.migration.migrate(db);
+                        setUpgradeProgress(db, step.version);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } else {
+                    // Safe to run again if interrupted before being recorded
+                    step.migration.migrate(db);
+                    setUpgradeProgress(db, step.version);
+                }
+                Log.i(TAG, "Upgraded user " + mUserHandle + " to version " + step.version
+                        + " in " + (SystemClock.uptimeMillis() - start) + "ms");
             }
+            setUpgradeProgress(db, -1);
+            return true;
+        }
+    }
 
-            onCreate(db);
+    /**
+     * @return Whether upgrade steps writing through the settings APIs are still to be run by
+     *     {@link #runDeferredUpgradeSteps}.
+     */
+    boolean hasDeferredUpgradeSteps() {
+        synchronized (mUpgradeLock) {
+            return mHasDeferredUpgradeSteps;
+        }
+    }
+
+    /**
+     * Runs the upgrade steps which write through the settings APIs, and so can't be run
+     * while the database is being opened. Must be called on a thread other than the writer
+     * of the provider, which the writes wait on.
+     */
+    void runDeferredUpgradeSteps() {
+        try {
+            final boolean done = runUpgradeSteps(getWritableDatabase(), true);
+            synchronized (mUpgradeLock) {
+                mHasDeferredUpgradeSteps = !done;
+            }
+        } catch (RuntimeException e) {
+            // Left to the next open of the database
+            Log.e(TAG, "Failed to upgrade settings of user " + mUserHandle, e);
         }
     }
 
     private void moveSettingsToNewTable(SQLiteDatabase db,
                                         String sourceTable, String destTable,
                                         String[] settingsToMove, boolean doIgnore) {
-        // Copy settings values from the source table to the dest, and remove from the source
+        // Copy settings values from the source table to the dest, and remove from the source,
+        // committing every MIGRATION_CHUNK_SIZE settings so no transaction grows unbounded
         SQLiteStatement insertStmt = null;
         SQLiteStatement deleteStmt = null;
 
-        db.beginTransaction();
         try {
             insertStmt = db.compileStatement("INSERT "
                     + (doIgnore ? " OR IGNORE " : "")
@@ -265,16 +653,23 @@ public class DatabaseHelper extends SQLiteOpenHelper{
                     + sourceTable + " WHERE name=?");
             deleteStmt = db.compileStatement("DELETE FROM " + sourceTable + " WHERE name=?");
 
-            for (String setting : settingsToMove) {
-                insertStmt.bindString(1, setting);
-                insertStmt.execute();
-
-                deleteStmt.bindString(1, setting);
-                deleteStmt.execute();
+            for (int i = 0; i < settingsToMove.length; i += MIGRATION_CHUNK_SIZE) {
+                db.beginTransaction();
+                try {
+                    final int end = Math.min(settingsToMove.length, i + MIGRATION_CHUNK_SIZE);
+                    for (int j = i; j < end; j++) {
+                        insertStmt.bindString(1, settingsToMove[j]);
+                        insertStmt.execute();
+
+                        deleteStmt.bindString(1, settingsToMove[j]);
+                        deleteStmt.execute();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
             }
-            db.setTransactionSuccessful();
         } finally {
-            db.endTransaction();
             if (insertStmt != null) {
                 insertStmt.close();
             }
@@ -304,158 +699,27 @@ public class DatabaseHelper extends SQLiteOpenHelper{
      * @param db The {@link SQLiteDatabase} to insert into.
      */
     private void loadSettings(SQLiteDatabase db) {
-        loadSystemSettings(db);
-        loadSecureSettings(db);
+        loadDefaults(db, TableNames.TABLE_SYSTEM);
+        loadDefaults(db, TableNames.TABLE_SECURE);
         // The global table only exists for the 'owner' user
         if (mUserHandle == UserHandle.USER_SYSTEM) {
-            loadGlobalSettings(db);
+            loadDefaults(db, TableNames.TABLE_GLOBAL);
         }
     }
 
-    private void loadSecureSettings(SQLiteDatabase db) {
+    private void loadDefaults(SQLiteDatabase db, String tableName) {
         SQLiteStatement stmt = null;
         try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO secure(name,value)"
+            stmt = db.compileStatement("INSERT OR IGNORE INTO " + tableName + "(name,value)"
                     + " VALUES(?,?);");
-            // Secure
-            loadIntegerSetting(stmt, EVSettings.Secure.DEV_FORCE_SHOW_NAVBAR,
-                    R.integer.def_force_show_navbar);
-            loadBooleanSetting(stmt, EVSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
-                    R.bool.def_lockscreen_visualizer);
-            loadBooleanSetting(stmt, EVSettings.Secure.LOCKSCREEN_MEDIA_METADATA,
-                    R.bool.def_lockscreen_media_metadata);
-            loadBooleanSetting(stmt, EVSettings.Secure.VOLUME_PANEL_ON_LEFT,
-                    R.bool.def_volume_panel_on_left);
-        } finally {
-            if (stmt != null) stmt.close();
-        }
-    }
-
-    private void loadSystemSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO system(name,value)"
-                    + " VALUES(?,?);");
-            // System
-            loadIntegerSetting(stmt, EVSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
-                    R.integer.def_qs_quick_pulldown);
-
-            loadIntegerSetting(stmt, EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
-                    R.integer.def_battery_brightness_level);
-
-            loadIntegerSetting(stmt, EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                    R.integer.def_battery_brightness_level_zen);
-
-            loadIntegerSetting(stmt, EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
-                    R.integer.def_notification_brightness_level);
-
-            loadIntegerSetting(stmt, EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                    R.integer.def_notification_brightness_level_zen);
-
-            loadBooleanSetting(stmt, EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
-                    R.bool.def_notification_pulse_custom_enable);
-
-            if (mContext.getResources().getBoolean(R.bool.def_notification_pulse_custom_enable)) {
-                loadStringSetting(stmt, EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
-                        R.string.def_notification_pulse_custom_value);
+            for (Map.Entry<String, String> entry : getDefaults(tableName).entrySet()) {
+                loadSetting(stmt, entry.getKey(), entry.getValue());
             }
-
-            loadIntegerSetting(stmt, EVSettings.System.STATUS_BAR_BATTERY_STYLE,
-                    R.integer.def_battery_style);
-
-            loadBooleanSetting(stmt, EVSettings.System.LOCKSCREEN_ROTATION,
-                    R.bool.def_lockscreen_rotation);
         } finally {
             if (stmt != null) stmt.close();
         }
     }
 
-    private void loadGlobalSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO global(name,value)"
-                    + " VALUES(?,?);");
-            // Global
-        } finally {
-            if (stmt != null) stmt.close();
-        }
-    }
-
-    /**
-     * Loads a region locked string setting into a database table. If the resource for the specific
-     * mcc is not found, the setting is loaded from the default resources.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the string resource.
-     */
-    private void loadRegionLockedStringSetting(SQLiteStatement stmt, String name, int resId) {
-        String mcc = SystemProperties.get(MCC_PROP_NAME);
-        Resources customResources = null;
-
-        if (!TextUtils.isEmpty(mcc)) {
-            Configuration tempConfiguration = new Configuration();
-            boolean useTempConfig = false;
-
-            try {
-                tempConfiguration.mcc = Integer.parseInt(mcc);
-                useTempConfig = true;
-            } catch (NumberFormatException e) {
-                // not able to parse mcc, catch exception and exit out of this logic
-                e.printStackTrace();
-            }
-
-            if (useTempConfig) {
-                AssetManager assetManager = new AssetManager();
-
-                if (!TextUtils.isEmpty(mPublicSrcDir)) {
-                    assetManager.addAssetPath(mPublicSrcDir);
-                }
-
-                customResources = new Resources(assetManager, new DisplayMetrics(),
-                        tempConfiguration);
-            }
-        }
-
-        String value = customResources == null ? mContext.getResources().getString(resId)
-                : customResources.getString(resId);
-        loadSetting(stmt, name, value);
-    }
-
-    /**
-     * Loads a string resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the string resource.
-     */
-    private void loadStringSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name, mContext.getResources().getString(resId));
-    }
-
-    /**
-     * Loads a boolean resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the boolean resource.
-     */
-    private void loadBooleanSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
-                mContext.getResources().getBoolean(resId) ? "1" : "0");
-    }
-
-    /**
-     * Loads an integer resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the integer resource.
-     */
-    private void loadIntegerSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
-                Integer.toString(mContext.getResources().getInteger(resId)));
-    }
-
     private void loadSetting(SQLiteStatement stmt, String key, Object value) {
         stmt.bindString(1, key);
         stmt.bindString(2, value.toString());
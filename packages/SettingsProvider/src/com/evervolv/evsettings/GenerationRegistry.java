@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.os.Bundle;
+import android.util.Log;
+import android.util.MemoryIntArray;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import evervolv.provider.EVSettings;
+
+import java.io.IOException;
+
+/**
+ * The GenerationRegistry tracks changes to settings in shared memory regions which are handed
+ * out to clients, so a client can tell whether a cached value is still current by reading a
+ * slot instead of polling a table-wide version system property. Each table of each user has
+ * its own region, and every setting is hashed into one of its slots, so a write only
+ * invalidates cached values sharing that slot.
+ */
+final class GenerationRegistry {
+    private static final String TAG = "GenerationRegistry";
+    private static final boolean LOCAL_LOGV = false;
+
+    // Number of generation slots per table and user.
+    private static final int NUM_SLOTS = 128;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<MemoryIntArray> mBackingStores = new SparseArray<>();
+
+    /**
+     * Increments the generation of a setting, or of every setting in the table if the
+     * name is null.
+     * @param tableName The table the setting lives in.
+     * @param userId The user owning the table.
+     * @param name The name of the changed setting, or null if unknown.
+     */
+    public void incrementGeneration(String tableName, int userId, String name) {
+        synchronized (mLock) {
+            // Nobody is tracking this table if no region was handed out yet.
+            final int key = SettingsState.makeKey(tableName, userId);
+            final MemoryIntArray backingStore = mBackingStores.get(key);
+            if (backingStore == null) {
+                return;
+            }
+            try {
+                if (name == null) {
+                    for (int i = 0; i < backingStore.size(); i++) {
+                        backingStore.set(i, backingStore.get(i) + 1);
+                    }
+                } else {
+                    final int index = EVSettings.getGenerationIndex(name, backingStore.size());
+                    backingStore.set(index, backingStore.get(index) + 1);
+                }
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "Incremented generation for " + tableName + "/" + userId
+                            + (name != null ? "/" + name : ""));
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error incrementing generation", e);
+                destroyBackingStoreLocked(key);
+            }
+        }
+    }
+
+    /**
+     * Adds the region tracking a table to a call() response along with the current
+     * generation of a setting, or of every slot if the name is null. This must be
+     * called before the setting is looked up so a concurrent write is never missed.
+     * @param bundle The response bundle.
+     * @param tableName The table the setting lives in.
+     * @param userId The user owning the table.
+     * @param name The name of the requested setting, or null for the whole table.
+     */
+    public void addGenerationData(Bundle bundle, String tableName, int userId, String name) {
+        synchronized (mLock) {
+            final int key = SettingsState.makeKey(tableName, userId);
+            final MemoryIntArray backingStore = getOrCreateBackingStoreLocked(key);
+            if (backingStore == null) {
+                return;
+            }
+            try {
+                if (name == null) {
+                    final int[] generations = new int[backingStore.size()];
+                    for (int i = 0; i < generations.length; i++) {
+                        generations[i] = backingStore.get(i);
+                    }
+                    bundle.putIntArray(EVSettings.CALL_METHOD_GENERATION_KEY, generations);
+                } else {
+                    final int index = EVSettings.getGenerationIndex(name, backingStore.size());
+                    bundle.putInt(EVSettings.CALL_METHOD_GENERATION_KEY,
+                            backingStore.get(index));
+                }
+                bundle.putParcelable(EVSettings.CALL_METHOD_TRACK_GENERATION_KEY, backingStore);
+            } catch (IOException e) {
+                Log.e(TAG, "Error adding generation data", e);
+                destroyBackingStoreLocked(key);
+            }
+        }
+    }
+
+    /**
+     * Releases the regions of a removed user.
+     * @param userId The id of the removed user.
+     */
+    public void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            destroyBackingStoreLocked(
+                    SettingsState.makeKey(DatabaseHelper.TableNames.TABLE_SYSTEM, userId));
+            destroyBackingStoreLocked(
+                    SettingsState.makeKey(DatabaseHelper.TableNames.TABLE_SECURE, userId));
+            destroyBackingStoreLocked(
+                    SettingsState.makeKey(DatabaseHelper.TableNames.TABLE_GLOBAL, userId));
+        }
+    }
+
+    @GuardedBy("mLock")
+    private MemoryIntArray getOrCreateBackingStoreLocked(int key) {
+        MemoryIntArray backingStore = mBackingStores.get(key);
+        if (backingStore == null) {
+            try {
+                backingStore = new MemoryIntArray(NUM_SLOTS);
+                mBackingStores.put(key, backingStore);
+            } catch (IOException e) {
+                Log.e(TAG, "Error creating generation tracker", e);
+            }
+        }
+        return backingStore;
+    }
+
+    @GuardedBy("mLock")
+    private void destroyBackingStoreLocked(int key) {
+        final MemoryIntArray backingStore = mBackingStores.get(key);
+        if (backingStore != null) {
+            try {
+                backingStore.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close generation memory array", e);
+            }
+            mBackingStores.remove(key);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.os.SystemProperties;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import evervolv.provider.EVSettings;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The SettingsDefaults holds the default values of every table, read from resources once per
+ * process and shared read-only by all users. Databases of new users only store what differs
+ * from them, see {@link DatabaseHelper#isOverlayTable}.
+ *
+ * An update may change the defaults, which must not change the settings of existing users.
+ * Each set of defaults is therefore archived under its fingerprint the first time it is
+ * seen, and overlay tables keep reading the defaults they were created with.
+ */
+final class SettingsDefaults {
+    private static final String TAG = "SettingsDefaults";
+
+    private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
+
+    private static final String ARCHIVE_PREFIX = "evervolv-defaults-";
+
+    private static SettingsDefaults sInstance;
+
+    private final Context mContext;
+
+    private final ArrayMap<String, Map<String, String>> mDefaults =
+            new ArrayMap<String, Map<String, String>>();
+
+    // Archived defaults read so far, keyed by archive file name
+    @GuardedBy("mArchived")
+    private final ArrayMap<String, Map<String, String>> mArchived =
+            new ArrayMap<String, Map<String, String>>();
+
+    /**
+     * Returns the defaults, loading them from resources on first use.
+     * @param context The context of the provider.
+     */
+    public static synchronized SettingsDefaults get(Context context) {
+        if (sInstance == null) {
+            sInstance = new SettingsDefaults(context);
+        }
+        return sInstance;
+    }
+
+    private SettingsDefaults(Context context) {
+        mContext = context;
+        final Resources res = context.getResources();
+        mDefaults.put(DatabaseHelper.TableNames.TABLE_SYSTEM,
+                Collections.unmodifiableMap(loadSystemSettings(res)));
+        mDefaults.put(DatabaseHelper.TableNames.TABLE_SECURE,
+                Collections.unmodifiableMap(loadSecureSettings(res)));
+        mDefaults.put(DatabaseHelper.TableNames.TABLE_GLOBAL,
+                Collections.unmodifiableMap(loadGlobalSettings(res)));
+
+        for (int i = 0; i < mDefaults.size(); i++) {
+            final String tableName = mDefaults.keyAt(i);
+            final File file = getArchiveFile(context, tableName, getFingerprint(tableName));
+            if (!file.exists()) {
+                writeArchive(file, mDefaults.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * @param tableName The name of the table.
+     * @return The read-only default values of the table.
+     */
+    public Map<String, String> getDefaults(String tableName) {
+        final Map<String, String> defaults = mDefaults.get(tableName);
+        return defaults != null ? defaults : Collections.<String, String>emptyMap();
+    }
+
+    /**
+     * @param tableName The name of the table.
+     * @return The fingerprint of the current defaults of the table, see {@link #getDefaults}.
+     */
+    public int getFingerprint(String tableName) {
+        return getDefaults(tableName).hashCode();
+    }
+
+    /**
+     * Returns the defaults of a table as they were at a fingerprint, e.g. the defaults an
+     * overlay table was created with before an update changed them.
+     * @param tableName The name of the table.
+     * @param fingerprint The fingerprint, see {@link #getFingerprint}.
+     * @return The read-only default values, or the current ones if they weren't archived.
+     */
+    public Map<String, String> getDefaults(String tableName, int fingerprint) {
+        if (fingerprint == getFingerprint(tableName)) {
+            return getDefaults(tableName);
+        }
+        final File file = getArchiveFile(mContext, tableName, fingerprint);
+        synchronized (mArchived) {
+            Map<String, String> defaults = mArchived.get(file.getName());
+            if (defaults == null) {
+                defaults = readArchive(file);
+                if (defaults == null) {
+                    Log.e(TAG, "Lost defaults of " + tableName + " at " + fingerprint
+                            + ", using the current ones");
+                    defaults = getDefaults(tableName);
+                }
+                mArchived.put(file.getName(), defaults);
+            }
+            return defaults;
+        }
+    }
+
+    /**
+     * Returns the file archiving the defaults of a table at a fingerprint. It lives next to
+     * the database of the system user, which is never removed.
+     */
+    static File getArchiveFile(Context context, String tableName, int fingerprint) {
+        return context.getDatabasePath(ARCHIVE_PREFIX + tableName + "-"
+                + Integer.toHexString(fingerprint));
+    }
+
+    /**
+     * Archives defaults into a file, replacing it atomically.
+     * @param file The archive file.
+     * @param defaults The default values.
+     */
+    static void writeArchive(File file, Map<String, String> defaults) {
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(defaults.size());
+            for (Map.Entry<String, String> entry : defaults.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(entry.getValue() != null);
+                if (entry.getValue() != null) {
+                    out.writeUTF(entry.getValue());
+                }
+            }
+            out.flush();
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot archive defaults into " + file, e);
+            atomicFile.failWrite(fos);
+        }
+    }
+
+    /**
+     * @param file The archive file.
+     * @return The read-only archived defaults, or null if they can't be read.
+     */
+    private static Map<String, String> readArchive(File file) {
+        try (FileInputStream fis = new AtomicFile(file).openRead();
+                DataInputStream in = new DataInputStream(fis)) {
+            final int size = in.readInt();
+            final ArrayMap<String, String> defaults = new ArrayMap<String, String>(size);
+            for (int i = 0; i < size; i++) {
+                final String name = in.readUTF();
+                defaults.put(name, in.readBoolean() ? in.readUTF() : null);
+            }
+            return Collections.unmodifiableMap(defaults);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read archived defaults from " + file, e);
+            return null;
+        }
+    }
+
+    private static ArrayMap<String, String> loadSecureSettings(Resources res) {
+        final ArrayMap<String, String> defaults = new ArrayMap<String, String>();
+        loadIntegerSetting(defaults, res, EVSettings.Secure.DEV_FORCE_SHOW_NAVBAR,
+                R.integer.def_force_show_navbar);
+        loadBooleanSetting(defaults, res, EVSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
+                R.bool.def_lockscreen_visualizer);
+        loadBooleanSetting(defaults, res, EVSettings.Secure.LOCKSCREEN_MEDIA_METADATA,
+                R.bool.def_lockscreen_media_metadata);
+        loadBooleanSetting(defaults, res, EVSettings.Secure.VOLUME_PANEL_ON_LEFT,
+                R.bool.def_volume_panel_on_left);
+        return defaults;
+    }
+
+    private static ArrayMap<String, String> loadSystemSettings(Resources res) {
+        final ArrayMap<String, String> defaults = new ArrayMap<String, String>();
+        loadIntegerSetting(defaults, res, EVSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
+                R.integer.def_qs_quick_pulldown);
+
+        loadIntegerSetting(defaults, res, EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
+                R.integer.def_battery_brightness_level);
+
+        loadIntegerSetting(defaults, res, EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                R.integer.def_battery_brightness_level_zen);
+
+        loadIntegerSetting(defaults, res, EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                R.integer.def_notification_brightness_level);
+
+        loadIntegerSetting(defaults, res,
+                EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                R.integer.def_notification_brightness_level_zen);
+
+        loadBooleanSetting(defaults, res, EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
+                R.bool.def_notification_pulse_custom_enable);
+
+        if (res.getBoolean(R.bool.def_notification_pulse_custom_enable)) {
+            loadStringSetting(defaults, res,
+                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                    R.string.def_notification_pulse_custom_value);
+        }
+
+        loadIntegerSetting(defaults, res, EVSettings.System.STATUS_BAR_BATTERY_STYLE,
+                R.integer.def_battery_style);
+
+        loadBooleanSetting(defaults, res, EVSettings.System.LOCKSCREEN_ROTATION,
+                R.bool.def_lockscreen_rotation);
+        return defaults;
+    }
+
+    private static ArrayMap<String, String> loadGlobalSettings(Resources res) {
+        final ArrayMap<String, String> defaults = new ArrayMap<String, String>();
+        // Global
+        return defaults;
+    }
+
+    /**
+     * Loads a region locked string setting into the defaults. If the resource for the specific
+     * mcc is not found, the setting is loaded from the default resources.
+     * @param context The context of the provider.
+     * @param defaults The defaults of the table.
+     * @param name The name of the setting.
+     * @param resId The name of the string resource.
+     */
+    private static void loadRegionLockedStringSetting(Context context,
+            Map<String, String> defaults, String name, int resId) {
+        String mcc = SystemProperties.get(MCC_PROP_NAME);
+        Resources customResources = null;
+
+        if (!TextUtils.isEmpty(mcc)) {
+            Configuration tempConfiguration = new Configuration();
+            boolean useTempConfig = false;
+
+            try {
+                tempConfiguration.mcc = Integer.parseInt(mcc);
+                useTempConfig = true;
+            } catch (NumberFormatException e) {
+                // not able to parse mcc, catch exception and exit out of this logic
+                e.printStackTrace();
+            }
+
+            if (useTempConfig) {
+                AssetManager assetManager = new AssetManager();
+
+                String publicSrcDir = null;
+                try {
+                    publicSrcDir = context.getPackageManager()
+                            .getApplicationInfo(context.getPackageName(), 0).publicSourceDir;
+                } catch (PackageManager.NameNotFoundException e) {
+                    e.printStackTrace();
+                }
+                if (!TextUtils.isEmpty(publicSrcDir)) {
+                    assetManager.addAssetPath(publicSrcDir);
+                }
+
+                customResources = new Resources(assetManager, new DisplayMetrics(),
+                        tempConfiguration);
+            }
+        }
+
+        String value = customResources == null ? context.getResources().getString(resId)
+                : customResources.getString(resId);
+        defaults.put(name, value);
+    }
+
+    /**
+     * Loads a string resource into the defaults.
+     * @param defaults The defaults of the table.
+     * @param res The resources of the provider.
+     * @param name The name of the setting.
+     * @param resId The name of the string resource.
+     */
+    private static void loadStringSetting(Map<String, String> defaults, Resources res,
+            String name, int resId) {
+        defaults.put(name, res.getString(resId));
+    }
+
+    /**
+     * Loads a boolean resource into the defaults.
+     * @param defaults The defaults of the table.
+     * @param res The resources of the provider.
+     * @param name The name of the setting.
+     * @param resId The name of the boolean resource.
+     */
+    private static void loadBooleanSetting(Map<String, String> defaults, Resources res,
+            String name, int resId) {
+        defaults.put(name, res.getBoolean(resId) ? "1" : "0");
+    }
+
+    /**
+     * Loads an integer resource into the defaults.
+     * @param defaults The defaults of the table.
+     * @param res The resources of the provider.
+     * @param name The name of the setting.
+     * @param resId The name of the integer resource.
+     */
+    private static void loadIntegerSetting(Map<String, String> defaults, Resources res,
+            String name, int resId) {
+        defaults.put(name, Integer.toString(res.getInteger(resId)));
+    }
+}
@@ -30,25 +30,59 @@ import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ArrayUtils;
+
 import evervolv.os.Build;
 import evervolv.provider.EVSettings;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 /**
@@ -81,6 +115,41 @@ public class SettingsProvider extends ContentProvider {
     public static final String RESULT_ROWS_DELETED  = "result_rows_deleted";
     public static final String RESULT_SETTINGS_LIST = "result_settings_list";
 
+    // Number of settings restored by CALL_METHOD_IMPORT_SETTINGS
+    public static final String RESULT_ROWS_IMPORTED = "result_rows_imported";
+
+    // Header of CALL_METHOD_EXPORT_SETTINGS exports, see EVSettings
+    private static final int EXPORT_MAGIC = 0x45564558; // EVEX
+    private static final int EXPORT_FORMAT_VERSION = 1;
+
+    // Longest name or value accepted by CALL_METHOD_IMPORT_SETTINGS
+    private static final int MAX_IMPORT_STRING_LENGTH = 64 * 1024;
+
+    // Most settings accepted per table by CALL_METHOD_IMPORT_SETTINGS, far more than any
+    // table holds, so a stream can't make us buffer settings without end
+    private static final int MAX_IMPORT_ENTRIES = 8192;
+
+    // Threads writing streams to their readers, and streams which may wait for one before
+    // further requests are rejected
+    private static final int MAX_STREAM_THREADS = 2;
+    private static final int MAX_QUEUED_STREAMS = 8;
+
+    // How long a reader may leave a stream undrained before it is abandoned
+    private static final long STREAM_WRITE_TIMEOUT_MS = 30 * 1000;
+
+    // Threads opening databases in the background, so the open of one user never holds up
+    // another
+    private static final int MAX_OPEN_THREADS = 4;
+
+    // How long idle background threads are kept
+    private static final long BACKGROUND_KEEP_ALIVE_MS = 10 * 1000;
+
+    private static final String[] EXPORT_TABLES = {
+        DatabaseHelper.TableNames.TABLE_SYSTEM,
+        DatabaseHelper.TableNames.TABLE_SECURE,
+        DatabaseHelper.TableNames.TABLE_GLOBAL,
+    };
+
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
@@ -98,6 +167,40 @@ public class SettingsProvider extends ContentProvider {
                 ITEM_MATCHER, GLOBAL_ITEM_NAME);
     }
 
+    private final GenerationRegistry mGenerationRegistry = new GenerationRegistry();
+    private final SettingsStats mStats = new SettingsStats();
+
+    // In-memory state of each table of each user, keyed by SettingsState.makeKey
+    private final SparseArray<SettingsState> mSettingsStates = new SparseArray<SettingsState>();
+
+    // Per user locks, held while loading a state and while writing a table in the database
+    // directly, so a load never sees a table halfway through being changed behind the
+    // states' back. See getUserLock().
+    private final SparseArray<Object> mUserLocks = new SparseArray<Object>();
+
+    // Completed once the database of a user is open, so concurrent callers share one open,
+    // along with the thread opening it
+    private final SparseArray<CompletableFuture<DatabaseHelper>> mDbOpenFutures =
+            new SparseArray<CompletableFuture<DatabaseHelper>>();
+    private final SparseArray<Thread> mDbOpenThreads = new SparseArray<Thread>();
+
+    // Changes within this window are dispatched to each observer at once
+    private static final long NOTIFY_DEBOUNCE_MS = 20;
+
+    // Uris changed but not dispatched yet, per user to notify
+    @GuardedBy("mPendingNotifications")
+    private final SparseArray<ArraySet<Uri>> mPendingNotifications =
+            new SparseArray<ArraySet<Uri>>();
+    private final Runnable mDispatchNotifications = this::dispatchNotifications;
+
+    private Handler mWriteHandler;
+    private WriteThrottle mWriteThrottle;
+    // Writes streams, bounded so callers can't pile up threads in the provider
+    private ThreadPoolExecutor mStreamExecutor;
+    // Runs deferred upgrade steps, which wait on the writer thread
+    private ThreadPoolExecutor mUpgradeExecutor;
+    // Opens databases while their tables are served from snapshots
+    private ThreadPoolExecutor mDbOpenExecutor;
     private UserManager mUserManager;
     private Uri.Builder mUriBuilder;
     private SharedPreferences mSharedPrefs;
@@ -108,7 +211,20 @@ public class SettingsProvider extends ContentProvider {
 
         mUserManager = UserManager.get(getContext());
 
-        establishDbTracking(UserHandle.USER_SYSTEM);
+        final HandlerThread writeThread = new HandlerThread(TAG + "Writer",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        writeThread.start();
+        mWriteHandler = new Handler(writeThread.getLooper());
+        mWriteThrottle = new WriteThrottle(mWriteHandler, this::applyHeldBackWrites);
+        mStreamExecutor = newBackgroundExecutor(TAG + "Stream", MAX_STREAM_THREADS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_STREAMS));
+        mUpgradeExecutor = newBackgroundExecutor(TAG + "Upgrade", 1,
+                new LinkedBlockingQueue<Runnable>());
+        mDbOpenExecutor = newBackgroundExecutor(TAG + "Open", MAX_OPEN_THREADS,
+                new LinkedBlockingQueue<Runnable>());
+
+        // Settings are served from their snapshots until the database is open
+        openDatabaseInBackground(UserHandle.USER_SYSTEM);
 
         mUriBuilder = new Uri.Builder();
         mUriBuilder.scheme(ContentResolver.SCHEME_CONTENT);
@@ -118,6 +234,7 @@ public class SettingsProvider extends ContentProvider {
 
         IntentFilter userFilter = new IntentFilter();
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_SHUTDOWN);
         getContext().registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -129,6 +246,9 @@ public class SettingsProvider extends ContentProvider {
 
                 if (action.equals(Intent.ACTION_USER_REMOVED)) {
                     onUserRemoved(userId);
+                } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
+                    mWriteThrottle.flush();
+                    flushAllSettingsStates();
                 }
             }
         }, userFilter);
@@ -141,13 +261,30 @@ public class SettingsProvider extends ContentProvider {
      * @param userId The id of the user that is removed.
      */
     private void onUserRemoved(int userId) {
-        synchronized (this) {
-            // the db file itself will be deleted automatically, but we need to tear down
-            // our helpers and other internal bookkeeping.
-
-            mDbHelpers.delete(userId);
+        synchronized (getUserLock(userId)) {
+            synchronized (this) {
+                // the db file itself will be deleted automatically, but we need to tear down
+                // our helpers and other internal bookkeeping.
+
+                mDbHelpers.delete(userId);
+                mDbOpenFutures.delete(userId);
+                mDbOpenThreads.delete(userId);
+                // Threads still waiting on it go on once it's released
+                mUserLocks.delete(userId);
+                mGenerationRegistry.onUserRemoved(userId);
+                mWriteThrottle.cancelAll(DatabaseHelper.TableNames.TABLE_SYSTEM, userId);
+                mWriteThrottle.cancelAll(DatabaseHelper.TableNames.TABLE_SECURE, userId);
+                mWriteThrottle.cancelAll(DatabaseHelper.TableNames.TABLE_GLOBAL, userId);
+
+                for (int i = mSettingsStates.size() - 1; i >= 0; i--) {
+                    if ((mSettingsStates.keyAt(i) >> 2) == userId) {
+                        mSettingsStates.valueAt(i).discard();
+                        mSettingsStates.removeAt(i);
+                    }
+                }
 
-            if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
+                if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
+            }
         }
     }
 
@@ -155,6 +292,15 @@ public class SettingsProvider extends ContentProvider {
 
     @Override
     public Bundle call(String method, String request, Bundle args) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return callForMethod(method, request, args);
+        } finally {
+            mStats.noteCall(method, SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
+
+    private Bundle callForMethod(String method, String request, Bundle args) {
         if (LOCAL_LOGV) Log.d(TAG, "Call method: " + method + " " + request);
 
         int callingUserId = UserHandle.getCallingUserId();
@@ -172,13 +318,13 @@ public class SettingsProvider extends ContentProvider {
             // Get methods
             case EVSettings.CALL_METHOD_GET_SYSTEM:
                 return lookupSingleValue(callingUserId, EVSettings.System.CONTENT_URI,
-                        request);
+                        request, args);
             case EVSettings.CALL_METHOD_GET_SECURE:
                 return lookupSingleValue(callingUserId, EVSettings.Secure.CONTENT_URI,
-                        request);
+                        request, args);
             case EVSettings.CALL_METHOD_GET_GLOBAL:
                 return lookupSingleValue(callingUserId, EVSettings.Global.CONTENT_URI,
-                        request);
+                        request, args);
 
             // Put methods
             case EVSettings.CALL_METHOD_PUT_SYSTEM:
@@ -196,13 +342,29 @@ public class SettingsProvider extends ContentProvider {
                 callHelperPut(callingUserId, EVSettings.Global.CONTENT_URI, request, args);
                 return null;
 
+            // Put multiple methods
+            case EVSettings.CALL_METHOD_PUT_MULTIPLE_SYSTEM:
+                enforceWritePermission(evervolv.platform.Manifest.permission.WRITE_SETTINGS);
+                callHelperPutMultiple(callingUserId, EVSettings.System.CONTENT_URI, args);
+                return null;
+            case EVSettings.CALL_METHOD_PUT_MULTIPLE_SECURE:
+                enforceWritePermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                callHelperPutMultiple(callingUserId, EVSettings.Secure.CONTENT_URI, args);
+                return null;
+            case EVSettings.CALL_METHOD_PUT_MULTIPLE_GLOBAL:
+                enforceWritePermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                callHelperPutMultiple(callingUserId, EVSettings.Global.CONTENT_URI, args);
+                return null;
+
             // List methods
             case EVSettings.CALL_METHOD_LIST_SYSTEM:
-                return callHelperList(callingUserId, EVSettings.System.CONTENT_URI);
+                return callHelperList(callingUserId, EVSettings.System.CONTENT_URI, args);
             case EVSettings.CALL_METHOD_LIST_SECURE:
-                return callHelperList(callingUserId, EVSettings.Secure.CONTENT_URI);
+                return callHelperList(callingUserId, EVSettings.Secure.CONTENT_URI, args);
             case EVSettings.CALL_METHOD_LIST_GLOBAL:
-                return callHelperList(callingUserId, EVSettings.Global.CONTENT_URI);
+                return callHelperList(callingUserId, EVSettings.Global.CONTENT_URI, args);
 
             // Delete methods
             case EVSettings.CALL_METHOD_DELETE_SYSTEM:
@@ -219,6 +381,19 @@ public class SettingsProvider extends ContentProvider {
                         evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
                 return callHelperDelete(callingUserId, EVSettings.Global.CONTENT_URI,
                         request);
+
+            // Export and import methods
+            case EVSettings.CALL_METHOD_EXPORT_SETTINGS:
+                // An export can be restored, so it's guarded like an import
+                getContext().enforceCallingOrSelfPermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS,
+                        "Permission denial: exporting settings");
+                callHelperExport(callingUserId, getStreamArg(args));
+                return null;
+            case EVSettings.CALL_METHOD_IMPORT_SETTINGS:
+                enforceWritePermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                return callHelperImport(callingUserId, getStreamArg(args));
         }
 
         return null;
@@ -235,6 +410,7 @@ public class SettingsProvider extends ContentProvider {
 
     // Helper for call() CALL_METHOD_DELETE_* methods
     private Bundle callHelperDelete(int callingUserId, Uri contentUri, String key) {
+        mStats.noteWrite(getTableNameFromUri(contentUri), key, Binder.getCallingUid());
         final int rowsDeleted = deleteForUser(callingUserId, contentUri, NAME_SELECTION,
                 new String[]{ key });
         final Bundle ret = new Bundle();
@@ -243,7 +419,26 @@ public class SettingsProvider extends ContentProvider {
     }
 
     // Helper for call() CALL_METHOD_LIST_* methods
-    private Bundle callHelperList(int callingUserId, Uri contentUri) {
+    private Bundle callHelperList(int callingUserId, Uri contentUri, Bundle args) {
+        final String prefix = (args == null)
+                ? null : args.getString(EVSettings.CALL_METHOD_PREFIX_KEY);
+        if (prefix != null) {
+            return callHelperListPrefix(callingUserId, contentUri, prefix,
+                    args.getBoolean(EVSettings.CALL_METHOD_TRACK_GENERATION_KEY));
+        }
+        final ParcelFileDescriptor stream = (args == null) ? null : args.getParcelable(
+                EVSettings.CALL_METHOD_STREAM_KEY, ParcelFileDescriptor.class);
+        if (stream != null) {
+            callHelperListStream(callingUserId, contentUri, stream);
+            return null;
+        }
+        final int pageSize = (args == null)
+                ? 0 : args.getInt(EVSettings.CALL_METHOD_PAGE_SIZE_KEY);
+        if (pageSize > 0) {
+            return callHelperListPage(callingUserId, contentUri, pageSize,
+                    args.getString(EVSettings.CALL_METHOD_PAGE_TOKEN_KEY));
+        }
+
         final ArrayList<String> lines = new ArrayList<String>();
         final Cursor cursor = queryForUser(callingUserId, contentUri, null, null, null, null);
         try {
@@ -260,6 +455,296 @@ public class SettingsProvider extends ContentProvider {
         return ret;
     }
 
+    // Helper for call() CALL_METHOD_LIST_* methods returning a page of lines at a time
+    private Bundle callHelperListPage(int callingUserId, Uri contentUri, int pageSize,
+            String pageToken) {
+        // The token is the name of the last setting of the previous page
+        final ArrayList<String> lines = new ArrayList<String>(pageSize);
+        String lastName = null;
+        boolean more = false;
+        final NavigableMap<String, String> settings =
+                getSortedSettings(callingUserId, contentUri);
+        for (Map.Entry<String, String> entry : (pageToken != null
+                ? settings.tailMap(pageToken, false) : settings).entrySet()) {
+            if (lines.size() == pageSize) {
+                more = true;
+                break;
+            }
+            lastName = entry.getKey();
+            lines.add(lastName + "=" + entry.getValue());
+        }
+        final Bundle ret = new Bundle();
+        ret.putStringArrayList(RESULT_SETTINGS_LIST, lines);
+        if (more) {
+            ret.putString(EVSettings.CALL_METHOD_PAGE_TOKEN_KEY, lastName);
+        }
+        return ret;
+    }
+
+    // Helper for call() CALL_METHOD_LIST_* methods streaming the table through a pipe
+    private void callHelperListStream(int callingUserId, Uri contentUri,
+            ParcelFileDescriptor stream) {
+        // The sorted view never changes, so the table is streamed as of a single point in time
+        final NavigableMap<String, String> settings;
+        try {
+            settings = getSortedSettings(callingUserId, contentUri);
+        } catch (RuntimeException e) {
+            FileUtils.closeQuietly(stream);
+            throw e;
+        }
+        writeStreamAsync(stream, "Settings stream", out -> {
+            for (Map.Entry<String, String> entry : settings.entrySet()) {
+                writeStreamString(out, entry.getKey());
+                writeStreamString(out, entry.getValue());
+            }
+            out.writeInt(-1);
+        });
+    }
+
+    // Returns the settings of a table, defaults included, ordered by name. The view is sorted
+    // once per change of the table, rather than for every page
+    private NavigableMap<String, String> getSortedSettings(int callingUserId,
+            Uri contentUri) {
+        final String tableName = getTableNameFromUri(contentUri);
+        return getSettingsState(tableName, getUserIdForTable(tableName, callingUserId))
+                .getSortedSettings();
+    }
+
+    /**
+     * Writes the content of a stream.
+     */
+    private interface StreamWriter {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes a stream in the background, off the binder thread, and closes it.
+     * @param stream The stream, owned by this call from now on.
+     * @param description What the stream holds, for logs.
+     * @param writer Writes the content of the stream.
+     * @throws IllegalStateException if too many streams are being written already.
+     */
+    private void writeStreamAsync(ParcelFileDescriptor stream, String description,
+            StreamWriter writer) {
+        try {
+            mStreamExecutor.execute(() -> {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new TimedPipeOutputStream(stream, STREAM_WRITE_TIMEOUT_MS)))) {
+                    writer.writeTo(out);
+                } catch (IOException e) {
+                    Log.w(TAG, description + " closed early", e);
+                    FileUtils.closeQuietly(stream);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            FileUtils.closeQuietly(stream);
+            throw new IllegalStateException("Too many settings streams in progress");
+        }
+    }
+
+    private static ThreadPoolExecutor newBackgroundExecutor(String name, int threads,
+            BlockingQueue<Runnable> queue) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                BACKGROUND_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, queue,
+                r -> new Thread(r, name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void writeStreamString(DataOutputStream out, String string)
+            throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static ParcelFileDescriptor getStreamArg(Bundle args) {
+        final ParcelFileDescriptor stream = (args == null) ? null : args.getParcelable(
+                EVSettings.CALL_METHOD_STREAM_KEY, ParcelFileDescriptor.class);
+        if (stream == null) {
+            throw new IllegalArgumentException("Missing " + EVSettings.CALL_METHOD_STREAM_KEY);
+        }
+        return stream;
+    }
+
+    // Helper for call() CALL_METHOD_EXPORT_SETTINGS
+    private void callHelperExport(int callingUserId, ParcelFileDescriptor stream) {
+        // Each table is copied at once so it's exported as of a single point in time
+        final ArrayList<HashMap<String, String>> tables =
+                new ArrayList<HashMap<String, String>>(EXPORT_TABLES.length);
+        try {
+            for (String tableName : EXPORT_TABLES) {
+                tables.add(getSettingsState(tableName,
+                        getUserIdForTable(tableName, callingUserId)).getSettingsWithPrefix(""));
+            }
+        } catch (RuntimeException e) {
+            FileUtils.closeQuietly(stream);
+            throw e;
+        }
+        writeStreamAsync(stream, "Settings export", out -> {
+            out.writeInt(EXPORT_MAGIC);
+            out.writeInt(EXPORT_FORMAT_VERSION);
+            for (int i = 0; i < EXPORT_TABLES.length; i++) {
+                writeStreamString(out, EXPORT_TABLES[i]);
+                for (Map.Entry<String, String> entry : tables.get(i).entrySet()) {
+                    writeStreamString(out, entry.getKey());
+                    writeStreamString(out, entry.getValue());
+                }
+                out.writeInt(-1);
+            }
+            out.writeInt(-1);
+        });
+    }
+
+    // Helper for call() CALL_METHOD_IMPORT_SETTINGS
+    private Bundle callHelperImport(int callingUserId, ParcelFileDescriptor stream) {
+        final ArrayMap<String, ArrayMap<String, String>> tables;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new ParcelFileDescriptor.AutoCloseInputStream(stream)))) {
+            tables = readExport(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read settings import", e);
+        }
+
+        // Nothing is written unless everything is valid
+        for (int i = 0; i < tables.size(); i++) {
+            final ArrayMap<String, String> values = tables.valueAt(i);
+            for (int j = 0; j < values.size(); j++) {
+                validateSettingNameValue(tables.keyAt(i), values.keyAt(j), values.valueAt(j));
+            }
+        }
+
+        // Tables are written in the database of the user owning them, global being shared
+        final SparseArray<ArrayList<String>> tablesByUser = new SparseArray<ArrayList<String>>();
+        for (int i = 0; i < tables.size(); i++) {
+            final int userIdForTable = getUserIdForTable(tables.keyAt(i), callingUserId);
+            ArrayList<String> userTables = tablesByUser.get(userIdForTable);
+            if (userTables == null) {
+                userTables = new ArrayList<String>();
+                tablesByUser.put(userIdForTable, userTables);
+            }
+            userTables.add(tables.keyAt(i));
+        }
+
+        int numRowsAffected = 0;
+        for (int i = 0; i < tablesByUser.size(); i++) {
+            final int userIdForTable = tablesByUser.keyAt(i);
+            final ArrayList<String> userTables = tablesByUser.valueAt(i);
+            synchronized (getUserLock(userIdForTable)) {
+                for (String tableName : userTables) {
+                    retireSettingsState(tableName, userIdForTable);
+                }
+                final SQLiteDatabase db =
+                        getOrEstablishDatabase(userIdForTable).getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (String tableName : userTables) {
+                        numRowsAffected += importTable(db, tableName, tables.get(tableName));
+                        getDatabaseHelper(userIdForTable).bumpCommitSeq(db, tableName);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            // One version bump and notification per table
+            for (String tableName : userTables) {
+                final ArrayMap<String, String> values = tables.get(tableName);
+                notifyChange(tableName, callingUserId,
+                        values.keySet().toArray(new String[values.size()]));
+            }
+        }
+
+        if (LOCAL_LOGV) Log.d(TAG, numRowsAffected + " row(s) imported");
+        final Bundle ret = new Bundle();
+        ret.putInt(RESULT_ROWS_IMPORTED, numRowsAffected);
+        return ret;
+    }
+
+    // Reads an export of CALL_METHOD_EXPORT_SETTINGS, by table name
+    private static ArrayMap<String, ArrayMap<String, String>> readExport(DataInputStream in)
+            throws IOException {
+        if (in.readInt() != EXPORT_MAGIC) {
+            throw new IOException("Not a settings export");
+        }
+        final int version = in.readInt();
+        if (version < 1 || version > EXPORT_FORMAT_VERSION) {
+            throw new IOException("Unsupported settings export version " + version);
+        }
+        final ArrayMap<String, ArrayMap<String, String>> tables =
+                new ArrayMap<String, ArrayMap<String, String>>();
+        String tableName;
+        while ((tableName = readStreamString(in)) != null) {
+            if (!ArrayUtils.contains(EXPORT_TABLES, tableName) || tables.containsKey(tableName)) {
+                throw new IOException("Unexpected table " + tableName);
+            }
+            final ArrayMap<String, String> values = new ArrayMap<String, String>();
+            String name;
+            while ((name = readStreamString(in)) != null) {
+                if (values.size() == MAX_IMPORT_ENTRIES) {
+                    throw new IOException("Too many settings in table " + tableName);
+                }
+                values.put(name, readStreamString(in));
+            }
+            tables.put(tableName, values);
+        }
+        return tables;
+    }
+
+    private static String readStreamString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_IMPORT_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Writes the settings of an import into a table, in the caller's transaction
+    private static int importTable(SQLiteDatabase db, String tableName,
+            ArrayMap<String, String> values) {
+        final SQLiteStatement stmt = db.compileStatement("INSERT OR REPLACE INTO " + tableName
+                + "(name,value) VALUES(?,?);");
+        try {
+            for (int i = 0; i < values.size(); i++) {
+                stmt.bindString(1, values.keyAt(i));
+                if (values.valueAt(i) == null) {
+                    stmt.bindNull(2);
+                } else {
+                    stmt.bindString(2, values.valueAt(i));
+                }
+                stmt.executeInsert();
+            }
+        } finally {
+            stmt.close();
+        }
+        return values.size();
+    }
+
+    // Helper for call() CALL_METHOD_LIST_* methods used by client-side cache prefetching
+    private Bundle callHelperListPrefix(int callingUserId, Uri contentUri, String prefix,
+            boolean trackGeneration) {
+        final String tableName = getTableNameFromUri(contentUri);
+        final Bundle ret = new Bundle();
+        if (trackGeneration) {
+            mGenerationRegistry.addGenerationData(ret, tableName,
+                    getUserIdForTable(tableName, callingUserId), null);
+        }
+
+        final HashMap<String, String> values = getSettingsState(tableName,
+                getUserIdForTable(tableName, callingUserId)).getSettingsWithPrefix(prefix);
+        ret.putSerializable(Settings.NameValueTable.VALUE, values);
+        return ret;
+    }
+
     // Helper for call() CALL_METHOD_PUT_* methods
     private void callHelperPut(int callingUserId, Uri contentUri, String key, Bundle args) {
         // New value is in the args bundle under the key named by
@@ -270,7 +755,52 @@ public class SettingsProvider extends ContentProvider {
         values.put(Settings.NameValueTable.NAME, key);
         values.put(Settings.NameValueTable.VALUE, newValue);
 
-        insertForUser(callingUserId, contentUri, values);
+        mStats.noteWrite(getTableNameFromUri(contentUri), key, Binder.getCallingUid());
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            insertForUser(callingUserId, contentUri, values);
+        } finally {
+            mStats.noteLatency(SettingsStats.HISTOGRAM_PUT,
+                    SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
+
+    // Helper for call() CALL_METHOD_PUT_MULTIPLE_* methods
+    private void callHelperPutMultiple(int callingUserId, Uri contentUri, Bundle args) {
+        // New values are in the args bundle as a map under the key named by
+        // Settings.NameValueTable.VALUE
+        final HashMap<String, String> values = (args == null) ? null
+                : (HashMap<String, String>) args.getSerializable(
+                        Settings.NameValueTable.VALUE, HashMap.class);
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+
+        String tableName = getTableNameFromUri(contentUri);
+        checkWritePermissions(tableName);
+
+        // Reject the whole batch if any of it is invalid
+        final int callingUid = Binder.getCallingUid();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            validateSettingNameValue(tableName, entry.getKey(), entry.getValue());
+            mStats.noteWrite(tableName, entry.getKey(), callingUid);
+        }
+
+        final int userIdForTable = getUserIdForTable(tableName, callingUserId);
+        if (!mWriteThrottle.tryAcquire(callingUid, values.size())) {
+            mWriteThrottle.defer(tableName, userIdForTable, values);
+            return;
+        }
+        for (String name : values.keySet()) {
+            mWriteThrottle.cancel(tableName, userIdForTable, name);
+        }
+
+        // The batch is committed in a single transaction along with any other pending writes,
+        // which also notifies of the change
+        final SettingsState state = getSettingsState(tableName, userIdForTable);
+        if (state.awaitPersisted(state.insertSettings(values))) {
+            if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + values.size() + " row(s) put");
+        }
     }
 
     /**
@@ -278,30 +808,45 @@ public class SettingsProvider extends ContentProvider {
      * @param userId The id of the user to perform the lookup for.
      * @param uri The uri for which table to perform the lookup in.
      * @param key The key to perform the lookup with.
+     * @param args The call() arguments, which may ask for generation tracking data.
      * @return A single value stored in a {@link Bundle}.
      */
-    private Bundle lookupSingleValue(int userId, Uri uri, String key) {
-        Cursor cursor = null;
+    private Bundle lookupSingleValue(int userId, Uri uri, String key, Bundle args) {
+        final String tableName = getTableNameFromUri(uri);
+        mStats.noteRead(tableName, key, Binder.getCallingUid());
+        final long start = SystemClock.elapsedRealtimeNanos();
         try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
+            return lookupSingleValue(userId, tableName, key, args);
+        } finally {
+            mStats.noteLatency(SettingsStats.HISTOGRAM_LOOKUP,
+                    SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
 
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
-            }
+    private Bundle lookupSingleValue(int userId, String tableName, String key, Bundle args) {
+        Bundle generationData = null;
+        if (args != null && args.getBoolean(EVSettings.CALL_METHOD_TRACK_GENERATION_KEY)) {
+            // Must be captured before the lookup so a racing write bumps it afterwards
+            generationData = new Bundle();
+            mGenerationRegistry.addGenerationData(generationData, tableName,
+                    getUserIdForTable(tableName, userId), key);
+        }
+
+        final String value;
+        try {
+            value = getSettingsState(tableName, getUserIdForTable(tableName, userId))
+                    .getSetting(key);
         } catch (SQLiteException e) {
             Log.w(TAG, "settings lookup error", e);
             return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
         }
 
-        return NULL_SETTING;
+        if (generationData != null) {
+            generationData.putString(Settings.NameValueTable.VALUE, value);
+            return generationData;
+        }
+        return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
+                value);
     }
 
     @Override
@@ -331,7 +876,22 @@ public class SettingsProvider extends ContentProvider {
         int code = sUriMatcher.match(uri);
         String tableName = getTableNameFromUriMatchCode(code);
 
-        DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        final int userIdForTable = getUserIdForTable(tableName, userId);
+
+        // Single-key lookups are answered from memory when they don't ask for row ids
+        final String name = isItemUri(code) ? uri.getLastPathSegment()
+                : isNameSelection(selection) && selectionArgs != null
+                        && selectionArgs.length == 1 ? selectionArgs[0] : null;
+        if (name != null && projection != null) {
+            final Cursor cursor = querySingleValue(tableName, userIdForTable, name, projection);
+            if (cursor != null) {
+                return cursor;
+            }
+        }
+
+        flushSettingsState(tableName, userIdForTable);
+
+        DatabaseHelper dbHelper = getOrEstablishDatabase(userIdForTable);
         SQLiteDatabase db = dbHelper.getReadableDatabase();
 
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
@@ -350,6 +910,70 @@ public class SettingsProvider extends ContentProvider {
         return returnCursor;
     }
 
+    /**
+     * Checks whether a selection picks a single setting by name, as {@link #NAME_SELECTION}
+     * does however it is spaced, e.g. the "name=?" of {@link EVSettings}. Doesn't allocate.
+     * @param selection The selection of a query or delete.
+     * @return Whether the selection is "name = ?".
+     */
+    static boolean isNameSelection(String selection) {
+        if (selection == null) {
+            return false;
+        }
+        final String name = Settings.NameValueTable.NAME;
+        int i = skipSpaces(selection, 0);
+        if (!selection.startsWith(name, i)) {
+            return false;
+        }
+        i = skipSpaces(selection, i + name.length());
+        if (i == selection.length() || selection.charAt(i) != '=') {
+            return false;
+        }
+        i = skipSpaces(selection, i + 1);
+        if (i == selection.length() || selection.charAt(i) != '?') {
+            return false;
+        }
+        return skipSpaces(selection, i + 1) == selection.length();
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Answers a single-key query from the in-memory state of a table, without SQLite.
+     * @param tableName The name of the table.
+     * @param userId The user owning the table, as returned by {@link #getUserIdForTable}.
+     * @param name The name of the setting.
+     * @param projection The columns to return.
+     * @return A {@link Cursor} of at most one row, or null if the projection asks for anything
+     *     but names and values.
+     */
+    private Cursor querySingleValue(String tableName, int userId, String name,
+            String[] projection) {
+        for (String column : projection) {
+            if (!Settings.NameValueTable.NAME.equals(column)
+                    && !Settings.NameValueTable.VALUE.equals(column)) {
+                return null;
+            }
+        }
+
+        final SettingsState state = getSettingsState(tableName, userId);
+        final MatrixCursor cursor = new MatrixCursor(projection, 1);
+        final String value = state.getSetting(name);
+        if (value != null || state.containsSetting(name)) {
+            final Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                row[i] = Settings.NameValueTable.NAME.equals(projection[i]) ? name : value;
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
     @Override
     public String getType(Uri uri) {
         int code = sUriMatcher.match(uri);
@@ -389,32 +1013,46 @@ public class SettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final int userIdForTable = getUserIdForTable(tableName, userId);
+        synchronized (getUserLock(userIdForTable)) {
+            retireSettingsState(tableName, userIdForTable);
 
-        db.beginTransaction();
-        try {
-            for (ContentValues value : values) {
-                if (value == null) {
-                    continue;
-                }
+            DatabaseHelper dbHelper = getOrEstablishDatabase(userIdForTable);
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-                long rowId = db.insert(tableName, null, value);
+            db.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    if (value == null) {
+                        continue;
+                    }
 
-                if (rowId >= 0) {
-                    numRowsAffected++;
-                } else {
-                    return 0;
+                    long rowId = db.insert(tableName, null, value);
+
+                    if (rowId >= 0) {
+                        numRowsAffected++;
+                    } else {
+                        return 0;
+                    }
                 }
-            }
 
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
+                dbHelper.bumpCommitSeq(db, tableName);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
         }
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, userId);
+            final ArraySet<String> names = new ArraySet<String>();
+            for (ContentValues value : values) {
+                final String name = value == null
+                        ? null : value.getAsString(Settings.NameValueTable.NAME);
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+            notifyChange(tableName, userId, names.toArray(new String[names.size()]));
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
         }
 
@@ -446,31 +1084,27 @@ public class SettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-
         // Validate value if inserting int System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
         final String value = values.getAsString(Settings.NameValueTable.VALUE);
-        if (DatabaseHelper.TableNames.TABLE_GLOBAL.equals(tableName)) {
-            validateGlobalSettingNameValue(name, value);
-        } else if (DatabaseHelper.TableNames.TABLE_SYSTEM.equals(tableName)) {
-            validateSystemSettingNameValue(name, value);
-        } else if (DatabaseHelper.TableNames.TABLE_SECURE.equals(tableName)) {
-            validateSecureSettingValue(name, value);
-        }
+        validateSettingNameValue(tableName, name, value);
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
+        final int userIdForTable = getUserIdForTable(tableName, userId);
+        if (!mWriteThrottle.tryAcquire(Binder.getCallingUid(), 1)) {
+            mWriteThrottle.defer(tableName, userIdForTable,
+                    Collections.singletonMap(name, value));
+            return Uri.withAppendedPath(uri, name);
+        }
+        mWriteThrottle.cancel(tableName, userIdForTable, name);
 
-        Uri returnUri = null;
-        if (rowId > -1) {
-            returnUri = Uri.withAppendedPath(uri, name);
-            notifyChange(returnUri, tableName, userId);
-            if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " +
-                    tableName);
+        // Returns once the group commit containing the write is durable and notified
+        final SettingsState state = getSettingsState(tableName, userIdForTable);
+        if (!state.awaitPersisted(state.insertSetting(name, value))) {
+            return null;
         }
+        if (LOCAL_LOGV) Log.d(TAG, "Inserted " + name + " into tableName: " + tableName);
 
-        return returnUri;
+        return Uri.withAppendedPath(uri, name);
     }
 
     @Override
@@ -492,14 +1126,38 @@ public class SettingsProvider extends ContentProvider {
             String tableName = getTableNameFromUri(uri);
             checkWritePermissions(tableName);
 
-            DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                    callingUserId));
+            final int userIdForTable = getUserIdForTable(tableName, callingUserId);
+            if (isNameSelection(selection) && selectionArgs.length == 1) {
+                // Notified along with the group commit containing the delete
+                mWriteThrottle.cancel(tableName, userIdForTable, selectionArgs[0]);
+                final SettingsState state = getSettingsState(tableName, userIdForTable);
+                final long seq = state.deleteSetting(selectionArgs[0]);
+                if (seq > 0 && state.awaitPersisted(seq)) {
+                    numRowsAffected = 1;
+                    if (LOCAL_LOGV) Log.d(TAG, tableName + ": 1 row(s) deleted");
+                }
+                return numRowsAffected;
+            }
 
-            SQLiteDatabase db = dbHelper.getWritableDatabase();
-            numRowsAffected = db.delete(tableName, selection, selectionArgs);
+            final String[] names;
+            synchronized (getUserLock(userIdForTable)) {
+                retireSettingsState(tableName, userIdForTable);
+                DatabaseHelper dbHelper = getOrEstablishDatabase(userIdForTable);
+
+                SQLiteDatabase db = dbHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    names = queryNames(db, tableName, selection, selectionArgs, null);
+                    numRowsAffected = db.delete(tableName, selection, selectionArgs);
+                    dbHelper.bumpCommitSeq(db, tableName);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
 
             if (numRowsAffected > 0) {
-                notifyChange(uri, tableName, callingUserId);
+                notifyChange(tableName, callingUserId, names);
                 if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) deleted");
             }
         }
@@ -528,29 +1186,56 @@ public class SettingsProvider extends ContentProvider {
         // Validate value if updating System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
         final String value = values.getAsString(Settings.NameValueTable.VALUE);
-        if (DatabaseHelper.TableNames.TABLE_GLOBAL.equals(tableName)) {
-            validateGlobalSettingNameValue(name, value);
-        } else if (DatabaseHelper.TableNames.TABLE_SYSTEM.equals(tableName)) {
-            validateSystemSettingNameValue(name, value);
-        } else if (DatabaseHelper.TableNames.TABLE_SECURE.equals(tableName)) {
-            validateSecureSettingValue(name, value);
-        }
+        validateSettingNameValue(tableName, name, value);
 
         int callingUserId = UserHandle.getCallingUserId();
-        DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                callingUserId));
+        final int userIdForTable = getUserIdForTable(tableName, callingUserId);
+        int numRowsAffected;
+        final String[] names;
+        synchronized (getUserLock(userIdForTable)) {
+            retireSettingsState(tableName, userIdForTable);
+            DatabaseHelper dbHelper = getOrEstablishDatabase(userIdForTable);
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                // A renamed row changes both its old and its new name
+                names = queryNames(db, tableName, selection, selectionArgs, name);
+                numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+                dbHelper.bumpCommitSeq(db, tableName);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, callingUserId);
+            notifyChange(tableName, callingUserId, names);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) updated");
         }
 
         return numRowsAffected;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+        if (args != null && args.length > 0 && "--reset-stats".equals(args[0])) {
+            mStats.reset();
+            pw.println("Statistics reset");
+            return;
+        }
+
+        pw.println("Evervolv SettingsProvider state:");
+        synchronized (this) {
+            pw.println("  loaded tables: " + mSettingsStates.size());
+        }
+        mStats.dump(pw);
+        mWriteThrottle.dump(pw);
+        pw.println("  (dump with --reset-stats to clear)");
+    }
+
     // endregion Content Provider Methods
 
     /**
@@ -570,32 +1255,140 @@ public class SettingsProvider extends ContentProvider {
 
         long oldId = Binder.clearCallingIdentity();
         try {
-            DatabaseHelper dbHelper;
-            synchronized (this) {
-                dbHelper = mDbHelpers.get(callingUser);
+            return establishDbTracking(callingUser);
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+    }
+
+    /**
+     * Check if a {@link DatabaseHelper} exists for a user and if it doesn't, a new helper is
+     * created and added to the list of tracked database helpers. Its database is then opened,
+     * once, with concurrent callers for the same user waiting for that open.
+     * @param userId
+     * @return The helper of the user, with its database open
+     */
+    private DatabaseHelper establishDbTracking(int userId) {
+        final CompletableFuture<DatabaseHelper> future;
+        final boolean opener;
+        synchronized (this) {
+            CompletableFuture<DatabaseHelper> existing = mDbOpenFutures.get(userId);
+            if (existing != null && !existing.isDone()
+                    && mDbOpenThreads.get(userId) == Thread.currentThread()) {
+                // Called back while the db initializes, e.g. by an upgrade step
+                return mDbHelpers.get(userId);
+            }
+            opener = existing == null;
+            if (opener) {
+                existing = new CompletableFuture<DatabaseHelper>();
+                mDbOpenFutures.put(userId, existing);
+                mDbOpenThreads.put(userId, Thread.currentThread());
             }
-            if (null == dbHelper) {
-                establishDbTracking(callingUser);
+            future = existing;
+        }
+
+        if (opener) {
+            // Initialization of the db *outside* the locks, so opening or upgrading the db
+            // of one user never holds up any other user. Racing threads for the same user
+            // wait for this open instead of running their own.
+            final DatabaseHelper dbHelper = getDatabaseHelper(userId);
+            try {
+                dbHelper.getWritableDatabase();
+            } catch (RuntimeException e) {
+                // Let the next caller try again
                 synchronized (this) {
-                    dbHelper = mDbHelpers.get(callingUser);
+                    if (mDbOpenFutures.get(userId) == future) {
+                        mDbOpenFutures.delete(userId);
+                    }
+                    mDbOpenThreads.delete(userId);
                 }
+                future.completeExceptionally(e);
+                throw e;
+            }
+            synchronized (this) {
+                mDbOpenThreads.delete(userId);
+            }
+            future.complete(dbHelper);
+            if (dbHelper.hasDeferredUpgradeSteps()) {
+                // They write through the settings APIs, waiting on the writer thread
+                mUpgradeExecutor.execute(dbHelper::runDeferredUpgradeSteps);
             }
             return dbHelper;
-        } finally {
-            Binder.restoreCallingIdentity(oldId);
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException
+                    ? (RuntimeException) e.getCause() : e;
         }
     }
 
     /**
-     * Check if a {@link DatabaseHelper} exists for a user and if it doesn't, a new helper is
-     * created and added to the list of tracked database helpers
      * @param userId
+     * @return Whether the database of a user has been opened through the tracking
      */
-    private void establishDbTracking(int userId) {
-        DatabaseHelper dbHelper;
+    private boolean isDatabaseOpen(int userId) {
+        synchronized (this) {
+            final CompletableFuture<DatabaseHelper> future = mDbOpenFutures.get(userId);
+            return future != null && future.isDone() && !future.isCompletedExceptionally();
+        }
+    }
 
+    /**
+     * Opens the database of a user through the tracking on a background thread, so its
+     * deferred upgrade steps are run, then checks the snapshots its loaded tables were
+     * served from against it.
+     * @param userId
+     */
+    private void openDatabaseInBackground(int userId) {
+        mDbOpenExecutor.execute(() -> {
+            try {
+                establishDbTracking(userId);
+            } catch (RuntimeException e) {
+                // Left to the next caller needing it, and the snapshots to the first commit
+                Log.e(TAG, "Failed to open evervolv settings db of user " + userId, e);
+                return;
+            }
+            final ArrayList<SettingsState> states = new ArrayList<SettingsState>();
+            synchronized (this) {
+                for (int i = 0; i < mSettingsStates.size(); i++) {
+                    if ((mSettingsStates.keyAt(i) >> 2) == userId) {
+                        states.add(mSettingsStates.valueAt(i));
+                    }
+                }
+            }
+            for (SettingsState state : states) {
+                state.verifySnapshot();
+            }
+        });
+    }
+
+    /**
+     * Returns the lock of a user, see mUserLocks.
+     * @param userId
+     * @return
+     */
+    private Object getUserLock(int userId) {
         synchronized (this) {
-            dbHelper = mDbHelpers.get(userId);
+            Object lock = mUserLocks.get(userId);
+            if (lock == null) {
+                lock = new Object();
+                mUserLocks.put(userId, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Returns the {@link DatabaseHelper} of a user, creating it if needed, without opening
+     * the database.
+     * @param userId
+     * @return
+     */
+    private DatabaseHelper getDatabaseHelper(int userId) {
+        synchronized (this) {
+            DatabaseHelper dbHelper = mDbHelpers.get(userId);
             if (LOCAL_LOGV) {
                 Log.i(TAG, "Checking evervolv settings db helper for user " + userId);
             }
@@ -603,17 +1396,181 @@ public class SettingsProvider extends ContentProvider {
                 if (LOCAL_LOGV) {
                     Log.i(TAG, "Installing new evervolv settings db helper for user " + userId);
                 }
-                dbHelper = new DatabaseHelper(getContext(), userId);
+                dbHelper = newDatabaseHelper(userId);
                 mDbHelpers.append(userId, dbHelper);
             }
+            return dbHelper;
         }
+    }
 
-        // Initialization of the db *outside* the locks.  It's possible that racing
-        // threads might wind up here, the second having read the cache entries
-        // written by the first, but that's benign: the SQLite helper implementation
-        // manages concurrency itself, and it's important that we not run the db
-        // initialization with any of our own locks held, so we're fine.
-        dbHelper.getWritableDatabase();
+    /**
+     * Creates the {@link DatabaseHelper} of a user.
+     * @param userId
+     * @return
+     */
+    @VisibleForTesting
+    DatabaseHelper newDatabaseHelper(int userId) {
+        return new DatabaseHelper(getContext(), userId);
+    }
+
+    /**
+     * Returns the in-memory state of a table, loading it from its snapshot or the database on
+     * first use.
+     * @param tableName The name of the table.
+     * @param userId The user owning the table, as returned by {@link #getUserIdForTable}.
+     * @return The {@link SettingsState} of the table.
+     */
+    private SettingsState getSettingsState(String tableName, int userId) {
+        final int key = SettingsState.makeKey(tableName, userId);
+        synchronized (this) {
+            final SettingsState state = mSettingsStates.get(key);
+            if (state != null) {
+                return state;
+            }
+        }
+
+        if (userId >= android.os.Process.SYSTEM_UID) {
+            if (USER_CHECK_THROWS) {
+                throw new IllegalArgumentException("Uid rather than user handle: " + userId);
+            } else {
+                Log.wtf(TAG, "Load settings for uid rather than user: " + userId);
+            }
+        }
+
+        // A table with a snapshot is served from it right away, while the database is opened
+        // in the background. Otherwise it is opened here, outside the lock of the user, and
+        // through the tracking either way so its deferred upgrade steps are run
+        final boolean openInBackground = !isDatabaseOpen(userId)
+                && getDatabaseHelper(userId).getSnapshotFile(tableName).exists();
+        final DatabaseHelper dbHelper = openInBackground ? getDatabaseHelper(userId)
+                : getOrEstablishDatabase(userId);
+
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            synchronized (getUserLock(userId)) {
+                synchronized (this) {
+                    final SettingsState state = mSettingsStates.get(key);
+                    if (state != null) {
+                        return state;
+                    }
+                }
+
+                final SettingsState state = new SettingsState(dbHelper,
+                        tableName, userId, mWriteHandler, this::notifyChange);
+                synchronized (this) {
+                    mSettingsStates.put(key, state);
+                }
+                mStats.noteStateLoad(state.wasLoadedFromSnapshot());
+                state.scheduleSnapshot();
+                if (openInBackground) {
+                    // Checks the snapshot once the database is open
+                    openDatabaseInBackground(userId);
+                }
+                return state;
+            }
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+    }
+
+    /**
+     * Returns the names of the rows matching a selection, which must be done in the same
+     * transaction as the write they are looked up for.
+     * @param db The database.
+     * @param tableName The name of the table.
+     * @param selection The selection of the write.
+     * @param selectionArgs The selection arguments of the write.
+     * @param extraName A name to add to the result, or null.
+     * @return The names of the matching rows.
+     */
+    private String[] queryNames(SQLiteDatabase db, String tableName, String selection,
+            String[] selectionArgs, String extraName) {
+        final ArraySet<String> names = new ArraySet<String>();
+        if (extraName != null) {
+            names.add(extraName);
+        }
+        final Cursor cursor = db.query(tableName,
+                new String[] { Settings.NameValueTable.NAME }, selection, selectionArgs,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                final String name = cursor.getString(0);
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Persists the pending writes of a table, if it is loaded, and copies its defaults into
+     * it, so it can be accessed in the database directly.
+     * @param tableName The name of the table.
+     * @param userId The user owning the table, as returned by {@link #getUserIdForTable}.
+     */
+    private void flushSettingsState(String tableName, int userId) {
+        final SettingsState state;
+        synchronized (this) {
+            state = mSettingsStates.get(SettingsState.makeKey(tableName, userId));
+        }
+        if (state != null) {
+            state.flush();
+        }
+        getOrEstablishDatabase(userId).materializeDefaults(tableName);
+    }
+
+    /**
+     * Drops the in-memory state of a table and its snapshot before it is written in the
+     * database directly, so it is reloaded from the database on next use, and copies its
+     * defaults into it. Must be called with the lock of the user held until the write is done.
+     * @param tableName The name of the table.
+     * @param userId The user owning the table, as returned by {@link #getUserIdForTable}.
+     */
+    private void retireSettingsState(String tableName, int userId) {
+        mWriteThrottle.cancelAll(tableName, userId);
+        final SettingsState state;
+        synchronized (this) {
+            final int key = SettingsState.makeKey(tableName, userId);
+            state = mSettingsStates.get(key);
+            mSettingsStates.remove(key);
+        }
+        if (state != null) {
+            state.retire();
+        } else if (!SettingsSnapshot.delete(
+                getDatabaseHelper(userId).getSnapshotFile(tableName))) {
+            throw new SQLiteException("Cannot delete snapshot of " + tableName);
+        }
+        // Direct writes don't know about the defaults, so they must be in the table
+        getOrEstablishDatabase(userId).materializeDefaults(tableName);
+    }
+
+    /**
+     * Applies writes held back by the {@link WriteThrottle}, without waiting for them.
+     * @param tableName The name of the table.
+     * @param userId The user owning the table.
+     * @param values The names and values of the settings.
+     */
+    private void applyHeldBackWrites(String tableName, int userId, Map<String, String> values) {
+        getSettingsState(tableName, userId).insertSettings(values);
+    }
+
+    /**
+     * Persists the pending writes of every loaded table and snapshots it, before the device
+     * shuts down.
+     */
+    private void flushAllSettingsStates() {
+        final ArrayList<SettingsState> states = new ArrayList<SettingsState>();
+        synchronized (this) {
+            for (int i = 0; i < mSettingsStates.size(); i++) {
+                states.add(mSettingsStates.valueAt(i));
+            }
+        }
+        for (SettingsState state : states) {
+            state.flushAndSnapshot();
+        }
     }
 
     /**
@@ -710,36 +1667,91 @@ public class SettingsProvider extends ContentProvider {
     }
 
     /**
-     * Modify setting version for an updated table before notifying of change. The
-     * {@link EVSettings} class uses these to provide client-side caches.
-     * @param uri to send notifications for
+     * Modify setting version and generations for an updated table once, then notify of
+     * changes to each of the changed settings. Notifications are debounced so changes landing
+     * close together reach each observer at once.
+     * The {@link EVSettings} class uses these to provide client-side caches.
+     * @param tableName of the updated table
      * @param userId
+     * @param names of the changed settings
      */
-    private void notifyChange(Uri uri, String tableName, int userId) {
-        String property = null;
+    private void notifyChange(String tableName, int userId, String[] names) {
+        if (names.length == 0) {
+            return;
+        }
+
         final boolean isGlobal = tableName.equals(DatabaseHelper.TableNames.TABLE_GLOBAL);
+        final String property;
+        final Uri contentUri;
         if (tableName.equals(DatabaseHelper.TableNames.TABLE_SYSTEM)) {
             property = EVSettings.System.SYS_PROP_SETTING_VERSION;
+            contentUri = EVSettings.System.CONTENT_URI;
         } else if (tableName.equals(DatabaseHelper.TableNames.TABLE_SECURE)) {
             property = EVSettings.Secure.SYS_PROP_SETTING_VERSION;
-        } else if (isGlobal) {
+            contentUri = EVSettings.Secure.CONTENT_URI;
+        } else {
             property = EVSettings.Global.SYS_PROP_SETTING_VERSION;
+            contentUri = EVSettings.Global.CONTENT_URI;
         }
 
-        if (property != null) {
-            long version = SystemProperties.getLong(property, 0) + 1;
-            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
-            SystemProperties.set(property, Long.toString(version));
+        long version = SystemProperties.getLong(property, 0) + 1;
+        if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
+        SystemProperties.set(property, Long.toString(version));
+
+        final int generationUserId = getUserIdForTable(tableName, userId);
+        for (String name : names) {
+            mGenerationRegistry.incrementGeneration(tableName, generationUserId, name);
         }
 
         final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
+        synchronized (mPendingNotifications) {
+            ArraySet<Uri> uris = mPendingNotifications.get(notifyTarget);
+            if (uris == null) {
+                uris = new ArraySet<Uri>();
+                mPendingNotifications.put(notifyTarget, uris);
+            }
+            for (String name : names) {
+                uris.add(Uri.withAppendedPath(contentUri, name));
+            }
+            if (!mWriteHandler.hasCallbacks(mDispatchNotifications)) {
+                mWriteHandler.postDelayed(mDispatchNotifications, NOTIFY_DEBOUNCE_MS);
+            }
+        }
+    }
+
+    /**
+     * Dispatches the debounced notifications, one batch of uris per user.
+     */
+    private void dispatchNotifications() {
+        final SparseArray<ArraySet<Uri>> notifications;
+        synchronized (mPendingNotifications) {
+            notifications = mPendingNotifications.clone();
+            mPendingNotifications.clear();
+        }
+
         final long oldId = Binder.clearCallingIdentity();
         try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
+            for (int i = 0; i < notifications.size(); i++) {
+                final int notifyTarget = notifications.keyAt(i);
+                final ArraySet<Uri> uris = notifications.valueAt(i);
+                getContext().getContentResolver().notifyChange(
+                        uris.toArray(new Uri[uris.size()]), null,
+                        ContentResolver.NOTIFY_SYNC_TO_NETWORK, notifyTarget);
+                if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uris);
+            }
         } finally {
             Binder.restoreCallingIdentity(oldId);
         }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
+    }
+
+    private void validateSettingNameValue(String tableName, String name, String value) {
+        if (DatabaseHelper.TableNames.TABLE_GLOBAL.equals(tableName)) {
+            validateGlobalSettingNameValue(name, value);
+        } else if (DatabaseHelper.TableNames.TABLE_SYSTEM.equals(tableName)) {
+            validateSystemSettingNameValue(name, value);
+        } else if (DatabaseHelper.TableNames.TABLE_SECURE.equals(tableName)) {
+            validateSecureSettingValue(name, value);
+        }
     }
 
     private void validateGlobalSettingNameValue(String name, String value) {
@@ -775,6 +1787,4 @@ public class SettingsProvider extends ContentProvider {
                     + " for setting: " + name);
         }
     }
-
-    // TODO Add caching
 }
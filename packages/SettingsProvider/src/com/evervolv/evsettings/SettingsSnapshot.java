@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The SettingsSnapshot reads and writes a compact binary copy of a table, which is memory
+ * mapped when the table is first loaded so it can be served without opening SQLite.
+ *
+ * The format is a header of magic, format version, database version, defaults fingerprint,
+ * commit sequence and entry count, the entries as length prefixed UTF-8 names and values (a
+ * length of -1 being a null value), and a trailing CRC32 of everything before it. A snapshot
+ * that is truncated, corrupt or written for another version, see
+ * {@link DatabaseHelper#getSnapshotVersion}, is ignored. None of this needs the database, so
+ * the fingerprint and commit sequence the snapshot was taken at are returned along with it,
+ * to be checked against the database once it is open.
+ */
+final class SettingsSnapshot {
+    private static final String TAG = "SettingsSnapshot";
+
+    private static final int MAGIC = 0x45565353; // EVSS
+    private static final int FORMAT_VERSION = 3;
+
+    private static final int HEADER_SIZE = 28;
+    private static final int TRAILER_SIZE = 8;
+
+    /**
+     * The settings of a snapshot, and what they must be checked against once the database
+     * is open.
+     */
+    static final class Contents {
+        final HashMap<String, String> settings;
+        // See DatabaseHelper#getOverlayFingerprint
+        final int defaultsFingerprint;
+        // See DatabaseHelper#getCommitSeq
+        final long commitSeq;
+
+        Contents(HashMap<String, String> settings, int defaultsFingerprint, long commitSeq) {
+            this.settings = settings;
+            this.defaultsFingerprint = defaultsFingerprint;
+            this.commitSeq = commitSeq;
+        }
+    }
+
+    private SettingsSnapshot() {
+        // This class is not supposed to be instantiated
+    }
+
+    /**
+     * Reads a snapshot, without opening the database.
+     * @param file The snapshot file.
+     * @param dbVersion The version the snapshot must have been taken for.
+     * @return The contents of the snapshot, or null if there is no valid snapshot.
+     */
+    public static Contents read(File file, int dbVersion) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            final long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE || size > Integer.MAX_VALUE) {
+                Log.w(TAG, "Ignoring snapshot " + file + " of invalid size " + size);
+                return null;
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            final int dataSize = (int) size - TRAILER_SIZE;
+            final CRC32 crc = new CRC32();
+            buffer.limit(dataSize);
+            crc.update(buffer);
+            buffer.limit((int) size);
+            if (crc.getValue() != buffer.getLong(dataSize)) {
+                Log.w(TAG, "Ignoring snapshot " + file + " with bad checksum");
+                return null;
+            }
+
+            buffer.position(0);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getInt() != dbVersion) {
+                return null;
+            }
+            final int defaultsFingerprint = buffer.getInt();
+            final long commitSeq = buffer.getLong();
+            final int count = buffer.getInt();
+            final HashMap<String, String> settings = new HashMap<String, String>(count * 2);
+            buffer.limit(dataSize);
+            for (int i = 0; i < count; i++) {
+                final String name = readString(buffer);
+                if (name == null) {
+                    return null;
+                }
+                settings.put(name, readString(buffer));
+            }
+            return new Contents(settings, defaultsFingerprint, commitSeq);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Error reading snapshot " + file, e);
+            return null;
+        }
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces a snapshot. The new snapshot is synced to disk and then renamed over the old
+     * one, and the rename synced along with its directory, so a crash leaves either of them.
+     * @param file The snapshot file.
+     * @param dbVersion The version the snapshot is taken for.
+     * @param defaultsFingerprint The fingerprint of the defaults the table is an overlay of.
+     * @param commitSeq The commit sequence of the table the snapshot is taken at.
+     * @param settings The settings of the table.
+     */
+    public static void write(File file, int dbVersion, int defaultsFingerprint,
+            long commitSeq, Map<String, String> settings) {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(dbVersion);
+            out.writeInt(defaultsFingerprint);
+            out.writeLong(commitSeq);
+            out.writeInt(settings.size());
+            for (Map.Entry<String, String> entry : settings.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+            out.flush();
+            final CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+
+            try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+                bytes.writeTo(fos);
+                fos.getFD().sync();
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + file);
+            }
+            syncDirectory(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing snapshot " + file, e);
+            tmpFile.delete();
+            delete(file);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Deletes a snapshot, which must be done before the table it was taken of is changed. The
+     * removal is synced along with its directory, so the snapshot can't come back after a
+     * crash.
+     * @param file The snapshot file.
+     * @return Whether there is no snapshot left.
+     */
+    public static boolean delete(File file) {
+        if (file.delete()) {
+            try {
+                syncDirectory(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot sync removal of snapshot " + file, e);
+                return false;
+            }
+            return true;
+        }
+        if (!file.exists()) {
+            return true;
+        }
+        Log.e(TAG, "Cannot delete snapshot " + file);
+        return false;
+    }
+
+    /**
+     * Syncs the directory holding a file, so that renaming or unlinking the file is durable.
+     */
+    private static void syncDirectory(File file) throws IOException {
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(file.getAbsoluteFile().getParent(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException e) {
+                    // Nothing left to sync
+                }
+            }
+        }
+    }
+}
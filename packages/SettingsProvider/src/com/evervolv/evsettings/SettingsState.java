@@ -0,0 +1,788 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * The SettingsState holds the settings of one table of one user in memory, so lookups are
+ * served from a map instead of a SQLite query. It is loaded from the database on creation.
+ * Writes update the map right away and are group committed to the database on a background
+ * thread: writes arriving within a short window are persisted in a single transaction, so a
+ * burst of writes costs one commit and a crash never leaves a batch half written. Writers
+ * can wait for their write to become durable, and are told about each committed batch at
+ * once through a {@link Callback}.
+ *
+ * A {@link SettingsSnapshot} of the table is kept next to the database so it can be loaded
+ * without opening the database at all. It is deleted before the first commit made after it
+ * was taken, and only rebuilt once the table has been idle for a while or the device shuts
+ * down, so a burst of writes doesn't rewrite it over and over. Every commit also bumps the
+ * commit sequence of the table in the database, which the snapshot is stamped with. Once the
+ * database is open, and before the first commit at the latest, the stamp is checked, see
+ * {@link #verifySnapshot}, and a snapshot that disagrees with the database is replaced by
+ * the table in the database.
+ *
+ * If the table is an overlay of the shared defaults, see
+ * {@link DatabaseHelper#isOverlayTable}, the map still holds its defaults, while commits
+ * only store what differs from them and record the defaults deleted.
+ */
+final class SettingsState {
+    private static final String TAG = "SettingsState";
+    private static final boolean LOCAL_LOGV = false;
+
+    // How long writes are held back to be committed together.
+    private static final long GROUP_COMMIT_WINDOW_MS = 10;
+
+    // Number of pending writes past which they are persisted without further delay.
+    private static final int MAX_PENDING_WRITES = 128;
+
+    // Bounds of the delay between retries of a batch which failed to commit, doubled with
+    // every failure in a row.
+    private static final long MIN_RETRY_DELAY_MS = 100;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+
+    // How long the table must go without commits before its snapshot is rebuilt.
+    private static final long SNAPSHOT_IDLE_DELAY_MS = 30 * 1000;
+
+    /**
+     * Receives the settings changed by each batch once it has been committed.
+     */
+    interface Callback {
+        /**
+         * @param tableName The name of the table.
+         * @param userId The user owning the table.
+         * @param names The names of the inserted and deleted settings.
+         */
+        void onSettingsPersisted(String tableName, int userId, String[] names);
+    }
+
+    private final DatabaseHelper mDbHelper;
+    private final String mTableName;
+    private final int mUserId;
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final File mSnapshotFile;
+    private final boolean mLoadedFromSnapshot;
+    private final Runnable mPersistRunnable = this::persistPendingWrites;
+    private final Runnable mSnapshotRunnable = this::writeSnapshotIfMissing;
+
+    private final Object mLock = new Object();
+
+    // Serializes persisting, so batches reach the database in the order they were made.
+    private final Object mPersistLock = new Object();
+
+    @GuardedBy("mLock")
+    private final HashMap<String, String> mSettings = new HashMap<String, String>();
+
+    // Bumped on every change of mSettings, and the sorted copy of mSettings as of a version,
+    // shared by readers until the next change.
+    @GuardedBy("mLock")
+    private long mSettingsVersion;
+    @GuardedBy("mLock")
+    private NavigableMap<String, String> mSortedSettings;
+    @GuardedBy("mLock")
+    private long mSortedVersion = -1;
+
+    // Writes not persisted yet. A name is in at most one of these.
+    @GuardedBy("mLock")
+    private final ArrayMap<String, String> mPendingInserts = new ArrayMap<String, String>();
+    @GuardedBy("mLock")
+    private final ArraySet<String> mPendingDeletes = new ArraySet<String>();
+
+    // Sequence numbers of the last write made, the last write committed and the last write
+    // whose batch failed to commit.
+    @GuardedBy("mLock")
+    private long mWriteSeq;
+    @GuardedBy("mLock")
+    private long mPersistedSeq;
+    @GuardedBy("mLock")
+    private long mFailedSeq;
+
+    // Delay before the next retry while commits are failing, 0 otherwise.
+    @GuardedBy("mLock")
+    private long mRetryDelayMs;
+
+    @GuardedBy("mLock")
+    private boolean mDiscarded;
+
+    // Whether a snapshot matching the database may exist on disk.
+    @GuardedBy("mPersistLock")
+    private boolean mHasSnapshot;
+
+    // Set once the table is written in the database behind our back, after which our
+    // snapshots could be stale.
+    @GuardedBy("mPersistLock")
+    private boolean mRetired;
+
+    // Whether the settings are known to match the database, and the stamps of the snapshot
+    // they were loaded from until then.
+    @GuardedBy("mPersistLock")
+    private boolean mVerified;
+    @GuardedBy("mPersistLock")
+    private int mSnapshotFingerprint;
+    @GuardedBy("mPersistLock")
+    private long mSnapshotSeq;
+
+    // Statements compiled once for the database they were compiled on, rather than for
+    // every commit.
+    @GuardedBy("mPersistLock")
+    private SQLiteDatabase mStatementDb;
+    @GuardedBy("mPersistLock")
+    private SQLiteStatement mInsertStatement;
+    @GuardedBy("mPersistLock")
+    private SQLiteStatement mDeleteStatement;
+    @GuardedBy("mPersistLock")
+    private SQLiteStatement mMarkDeletedStatement;
+    @GuardedBy("mPersistLock")
+    private SQLiteStatement mUnmarkDeletedStatement;
+    @GuardedBy("mPersistLock")
+    private SQLiteStatement mBumpCommitSeqStatement;
+
+    /**
+     * Creates the in-memory state of a table and loads it from its snapshot, without opening
+     * the database, or from the database if there is no valid snapshot.
+     * @param dbHelper The database of the user owning the table.
+     * @param tableName The name of the table.
+     * @param userId The user owning the table.
+     * @param handler The handler to persist writes on.
+     * @param callback The callback told about committed batches.
+     */
+    public SettingsState(DatabaseHelper dbHelper, String tableName, int userId,
+            Handler handler, Callback callback) {
+        mDbHelper = dbHelper;
+        mTableName = tableName;
+        mUserId = userId;
+        mHandler = handler;
+        mCallback = callback;
+        mSnapshotFile = dbHelper.getSnapshotFile(tableName);
+
+        final long start = SystemClock.uptimeMillis();
+        // A snapshot outliving its database is stale. Whether it was taken at the commit the
+        // database is at is only checked once that is open
+        final SettingsSnapshot.Contents snapshot =
+                new File(dbHelper.getDatabaseName()).exists()
+                ? SettingsSnapshot.read(mSnapshotFile, DatabaseHelper.getSnapshotVersion())
+                : null;
+        final int count;
+        synchronized (mLock) {
+            if (snapshot != null) {
+                mSettings.putAll(snapshot.settings);
+            } else {
+                loadFromDatabase(mSettings);
+            }
+            count = mSettings.size();
+        }
+        mLoadedFromSnapshot = snapshot != null;
+        synchronized (mPersistLock) {
+            mHasSnapshot = mLoadedFromSnapshot;
+            mVerified = !mLoadedFromSnapshot;
+            if (snapshot != null) {
+                mSnapshotFingerprint = snapshot.defaultsFingerprint;
+                mSnapshotSeq = snapshot.commitSeq;
+            }
+        }
+        Log.i(TAG, "Loaded " + count + " settings of " + mTableName + " for user " + userId
+                + " from " + (snapshot != null ? "snapshot" : "database") + " in "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Reads the table from the database, opening it if it isn't yet.
+     * @param settings The map to read the settings into.
+     */
+    private void loadFromDatabase(HashMap<String, String> settings) {
+        final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        if (mDbHelper.isOverlayTable(mTableName)) {
+            settings.putAll(mDbHelper.getDefaults(mTableName));
+            for (String name : mDbHelper.getDeletedDefaults(db, mTableName)) {
+                settings.remove(name);
+            }
+        }
+        final Cursor cursor = db.query(mTableName,
+                new String[] { Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                settings.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Checks the snapshot the table was loaded from against the database, opening it if it
+     * isn't yet. If they disagree the table is reloaded from the database, keeping the writes
+     * not persisted yet, and the {@link Callback} is told about the settings which changed.
+     * Until this is done the table is served from the snapshot as is. Does nothing if the
+     * table was loaded from the database, or has been checked already.
+     */
+    public void verifySnapshot() {
+        synchronized (mPersistLock) {
+            try {
+                verifySnapshotLocked(null, null);
+            } catch (RuntimeException e) {
+                // Checked again before the first commit, which can't be made without it
+                Log.e(TAG, "Cannot check snapshot of " + mTableName + " for user " + mUserId, e);
+            }
+        }
+    }
+
+    /**
+     * @param inserts The inserts of the batch being persisted, or null.
+     * @param deletes The deletes of the batch being persisted, or null.
+     * @see #verifySnapshot
+     */
+    @GuardedBy("mPersistLock")
+    private void verifySnapshotLocked(ArrayMap<String, String> inserts,
+            ArraySet<String> deletes) {
+        if (mVerified) {
+            return;
+        }
+        final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        final long commitSeq = mDbHelper.getCommitSeq(db, mTableName);
+        final int fingerprint = mDbHelper.getOverlayFingerprint(mTableName);
+        if (commitSeq == mSnapshotSeq && fingerprint == mSnapshotFingerprint) {
+            mVerified = true;
+            return;
+        }
+        Log.w(TAG, "Snapshot of " + mTableName + " for user " + mUserId + " taken at commit "
+                + mSnapshotSeq + ", database is at " + commitSeq + ", reloading");
+
+        // No commit can be made while we hold the persist lock
+        final HashMap<String, String> settings = new HashMap<String, String>();
+        loadFromDatabase(settings);
+        final ArraySet<String> changed = new ArraySet<String>();
+        synchronized (mLock) {
+            if (mDiscarded) {
+                return;
+            }
+            // The batch being persisted, then the writes made since, over the database
+            if (inserts != null) {
+                settings.putAll(inserts);
+                settings.keySet().removeAll(deletes);
+            }
+            settings.putAll(mPendingInserts);
+            settings.keySet().removeAll(mPendingDeletes);
+            for (Map.Entry<String, String> entry : mSettings.entrySet()) {
+                final String name = entry.getKey();
+                if (!settings.containsKey(name)
+                        || !Objects.equals(entry.getValue(), settings.get(name))) {
+                    changed.add(name);
+                }
+            }
+            for (String name : settings.keySet()) {
+                if (!mSettings.containsKey(name)) {
+                    changed.add(name);
+                }
+            }
+            mSettings.clear();
+            mSettings.putAll(settings);
+            mSettingsVersion++;
+        }
+        mCallback.onSettingsPersisted(mTableName, mUserId,
+                changed.toArray(new String[changed.size()]));
+        // Never to be loaded again
+        deleteSnapshotLocked();
+        mVerified = true;
+    }
+
+    /**
+     * @return Whether the table was loaded from its snapshot rather than the database.
+     */
+    public boolean wasLoadedFromSnapshot() {
+        return mLoadedFromSnapshot;
+    }
+
+    /**
+     * @param name The name of the setting.
+     * @return The value of the setting, or null if it doesn't exist.
+     */
+    public String getSetting(String name) {
+        synchronized (mLock) {
+            return mSettings.get(name);
+        }
+    }
+
+    /**
+     * @param name The name of the setting.
+     * @return Whether the setting exists, even if its value is null.
+     */
+    public boolean containsSetting(String name) {
+        synchronized (mLock) {
+            return mSettings.containsKey(name);
+        }
+    }
+
+    /**
+     * @param prefix The prefix of the settings to return, or an empty string for all.
+     * @return A copy of all settings starting with the prefix.
+     */
+    public HashMap<String, String> getSettingsWithPrefix(String prefix) {
+        final HashMap<String, String> settings = new HashMap<String, String>();
+        synchronized (mLock) {
+            for (Map.Entry<String, String> entry : mSettings.entrySet()) {
+                if (entry.getKey().startsWith(prefix)) {
+                    settings.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * @return The settings ordered by name, as of now. The map is read-only and shared by
+     *     callers until the table changes, so paging through a table sorts it once.
+     */
+    public NavigableMap<String, String> getSortedSettings() {
+        final HashMap<String, String> settings;
+        final long version;
+        synchronized (mLock) {
+            if (mSortedVersion == mSettingsVersion) {
+                return mSortedSettings;
+            }
+            settings = new HashMap<String, String>(mSettings);
+            version = mSettingsVersion;
+        }
+        // Sorted outside the lock, so lookups aren't held up
+        final NavigableMap<String, String> sorted =
+                Collections.unmodifiableNavigableMap(new TreeMap<String, String>(settings));
+        synchronized (mLock) {
+            if (version == mSettingsVersion) {
+                mSortedSettings = sorted;
+                mSortedVersion = version;
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * Inserts or replaces a setting.
+     * @param name The name of the setting.
+     * @param value The new value of the setting.
+     * @return The sequence number of the write, see {@link #awaitPersisted}.
+     */
+    public long insertSetting(String name, String value) {
+        synchronized (mLock) {
+            insertSettingLocked(name, value);
+            schedulePersistLocked();
+            return ++mWriteSeq;
+        }
+    }
+
+    /**
+     * Inserts or replaces several settings at once. They are always committed together.
+     * @param values The names and new values of the settings.
+     * @return The sequence number of the write, see {@link #awaitPersisted}.
+     */
+    public long insertSettings(Map<String, String> values) {
+        synchronized (mLock) {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                insertSettingLocked(entry.getKey(), entry.getValue());
+            }
+            schedulePersistLocked();
+            return ++mWriteSeq;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void insertSettingLocked(String name, String value) {
+        mSettings.put(name, value);
+        mSettingsVersion++;
+        mPendingDeletes.remove(name);
+        mPendingInserts.put(name, value);
+    }
+
+    /**
+     * Deletes a setting.
+     * @param name The name of the setting.
+     * @return The sequence number of the write, see {@link #awaitPersisted}, or 0 if the
+     *     setting didn't exist.
+     */
+    public long deleteSetting(String name) {
+        synchronized (mLock) {
+            if (!mSettings.containsKey(name)) {
+                return 0;
+            }
+            mSettings.remove(name);
+            mSettingsVersion++;
+            mPendingInserts.remove(name);
+            mPendingDeletes.add(name);
+            schedulePersistLocked();
+            return ++mWriteSeq;
+        }
+    }
+
+    /**
+     * Waits until a write has been committed to the database, and the {@link Callback} has
+     * been told about it.
+     * @param seq The sequence number of the write.
+     * @return Whether the write is durable. False if its batch failed to commit, in which
+     *     case it is retried in the background.
+     */
+    public boolean awaitPersisted(long seq) {
+        boolean interrupted = false;
+        try {
+            synchronized (mLock) {
+                while (mPersistedSeq < seq && mFailedSeq < seq) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                return mPersistedSeq >= seq;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void schedulePersistLocked() {
+        if (mDiscarded) {
+            return;
+        }
+        if (mRetryDelayMs > 0) {
+            // Backing off, the retry takes the new writes along
+            if (!mHandler.hasCallbacks(mPersistRunnable)) {
+                mHandler.postDelayed(mPersistRunnable, mRetryDelayMs);
+            }
+            return;
+        }
+        final int pending = mPendingInserts.size() + mPendingDeletes.size();
+        if (pending >= MAX_PENDING_WRITES) {
+            mHandler.removeCallbacks(mPersistRunnable);
+            mHandler.post(mPersistRunnable);
+        } else if (!mHandler.hasCallbacks(mPersistRunnable)) {
+            mHandler.postDelayed(mPersistRunnable, GROUP_COMMIT_WINDOW_MS);
+        }
+    }
+
+    /**
+     * Persists all pending writes on the calling thread. This must be done before the table
+     * is accessed in the database directly.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mPersistRunnable);
+        persistPendingWrites();
+    }
+
+    /**
+     * Drops all pending writes, for tables whose database is going away.
+     */
+    public void discard() {
+        synchronized (mLock) {
+            mDiscarded = true;
+            mPendingInserts.clear();
+            mPendingDeletes.clear();
+            // Nothing is going to be committed anymore
+            mFailedSeq = mWriteSeq;
+            mLock.notifyAll();
+        }
+        mHandler.removeCallbacks(mPersistRunnable);
+        mHandler.removeCallbacks(mSnapshotRunnable);
+        synchronized (mPersistLock) {
+            closeStatementsLocked();
+        }
+    }
+
+    private void persistPendingWrites() {
+        synchronized (mPersistLock) {
+            final ArrayMap<String, String> inserts;
+            final ArraySet<String> deletes;
+            final long batchSeq;
+            synchronized (mLock) {
+                if (mDiscarded
+                        || (mPendingInserts.isEmpty() && mPendingDeletes.isEmpty())) {
+                    return;
+                }
+                inserts = new ArrayMap<String, String>(mPendingInserts);
+                deletes = new ArraySet<String>(mPendingDeletes);
+                mPendingInserts.clear();
+                mPendingDeletes.clear();
+                batchSeq = mWriteSeq;
+            }
+
+            final long start = SystemClock.uptimeMillis();
+            try {
+                verifySnapshotLocked(inserts, deletes);
+                deleteSnapshotLocked();
+                writeToDatabase(inserts, deletes);
+            } catch (RuntimeException e) {
+                // Mostly SQLiteException, but nothing may keep the batch from being retried
+                // or its waiters from being woken up
+                synchronized (mLock) {
+                    mRetryDelayMs = mRetryDelayMs == 0 ? MIN_RETRY_DELAY_MS
+                            : Math.min(mRetryDelayMs * 2, MAX_RETRY_DELAY_MS);
+                    Log.e(TAG, "Failed to persist " + mTableName + " settings, retrying in "
+                            + mRetryDelayMs + "ms", e);
+                    // Requeue whatever hasn't been superseded in the meantime
+                    for (int i = 0; i < inserts.size(); i++) {
+                        final String name = inserts.keyAt(i);
+                        if (!mPendingInserts.containsKey(name)
+                                && !mPendingDeletes.contains(name)) {
+                            mPendingInserts.put(name, inserts.valueAt(i));
+                        }
+                    }
+                    for (int i = 0; i < deletes.size(); i++) {
+                        final String name = deletes.valueAt(i);
+                        if (!mPendingInserts.containsKey(name)) {
+                            mPendingDeletes.add(name);
+                        }
+                    }
+                    mHandler.removeCallbacks(mPersistRunnable);
+                    schedulePersistLocked();
+                    mFailedSeq = batchSeq;
+                    mLock.notifyAll();
+                }
+                return;
+            }
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "Persisted " + (inserts.size() + deletes.size()) + " writes to "
+                        + mTableName + " in " + (SystemClock.uptimeMillis() - start) + "ms");
+            }
+
+            final String[] names = new String[inserts.size() + deletes.size()];
+            for (int i = 0; i < inserts.size(); i++) {
+                names[i] = inserts.keyAt(i);
+            }
+            for (int i = 0; i < deletes.size(); i++) {
+                names[inserts.size() + i] = deletes.valueAt(i);
+            }
+            mCallback.onSettingsPersisted(mTableName, mUserId, names);
+
+            synchronized (mLock) {
+                mPersistedSeq = batchSeq;
+                mRetryDelayMs = 0;
+                mLock.notifyAll();
+            }
+
+            scheduleSnapshot();
+        }
+    }
+
+    /**
+     * Writes a snapshot in the background if there is none, once the table has been idle for
+     * {@link #SNAPSHOT_IDLE_DELAY_MS}. Every call restarts the wait.
+     */
+    public void scheduleSnapshot() {
+        mHandler.removeCallbacks(mSnapshotRunnable);
+        mHandler.postDelayed(mSnapshotRunnable, SNAPSHOT_IDLE_DELAY_MS);
+    }
+
+    /**
+     * Persists all pending writes and writes a snapshot on the calling thread if there is
+     * none, e.g. before the device shuts down.
+     */
+    public void flushAndSnapshot() {
+        flush();
+        mHandler.removeCallbacks(mSnapshotRunnable);
+        writeSnapshotIfMissing();
+    }
+
+    private void writeSnapshotIfMissing() {
+        synchronized (mPersistLock) {
+            if (!mHasSnapshot) {
+                writeSnapshotLocked();
+            }
+        }
+    }
+
+    /**
+     * Persists all pending writes and deletes the snapshot for good. This must be done before
+     * the table is written in the database directly, after which the state must no longer be
+     * used for lookups.
+     */
+    public void retire() {
+        synchronized (mPersistLock) {
+            mRetired = true;
+        }
+        mHandler.removeCallbacks(mSnapshotRunnable);
+        flush();
+        synchronized (mPersistLock) {
+            // Make sure no snapshot is left, whatever we think
+            mHasSnapshot = true;
+            deleteSnapshotLocked();
+        }
+    }
+
+    @GuardedBy("mPersistLock")
+    private void deleteSnapshotLocked() {
+        if (mHasSnapshot) {
+            if (!SettingsSnapshot.delete(mSnapshotFile)) {
+                // Never commit behind the back of a snapshot that would be loaded later on
+                throw new SQLiteException("Cannot delete snapshot of " + mTableName);
+            }
+            mHasSnapshot = false;
+        }
+    }
+
+    @GuardedBy("mPersistLock")
+    private void writeSnapshotLocked() {
+        if (mRetired) {
+            return;
+        }
+        final HashMap<String, String> settings;
+        synchronized (mLock) {
+            // The snapshot must match the database, so wait for the pending writes' commit
+            if (mDiscarded || !mPendingInserts.isEmpty() || !mPendingDeletes.isEmpty()) {
+                return;
+            }
+            settings = new HashMap<String, String>(mSettings);
+        }
+        final long commitSeq;
+        try {
+            // No commit can be made while we hold the persist lock
+            commitSeq = mDbHelper.getCommitSeq(mDbHelper.getReadableDatabase(), mTableName);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot read commit sequence of " + mTableName, e);
+            return;
+        }
+        SettingsSnapshot.write(mSnapshotFile, DatabaseHelper.getSnapshotVersion(),
+                mDbHelper.getOverlayFingerprint(mTableName), commitSeq, settings);
+        mHasSnapshot = mSnapshotFile.exists();
+    }
+
+    @GuardedBy("mPersistLock")
+    private void writeToDatabase(ArrayMap<String, String> inserts, ArraySet<String> deletes) {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        compileStatementsLocked(db);
+        // Defaults of an overlay table only need recording once deleted
+        final Map<String, String> defaults = mDbHelper.isOverlayTable(mTableName)
+                ? mDbHelper.getDefaults(mTableName) : null;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < inserts.size(); i++) {
+                final String name = inserts.keyAt(i);
+                mInsertStatement.bindString(1, name);
+                final String value = inserts.valueAt(i);
+                if (value == null) {
+                    mInsertStatement.bindNull(2);
+                } else {
+                    mInsertStatement.bindString(2, value);
+                }
+                mInsertStatement.executeInsert();
+                if (defaults != null && defaults.containsKey(name)) {
+                    mUnmarkDeletedStatement.bindString(1, name);
+                    mUnmarkDeletedStatement.executeUpdateDelete();
+                }
+            }
+            for (int i = 0; i < deletes.size(); i++) {
+                final String name = deletes.valueAt(i);
+                mDeleteStatement.bindString(1, name);
+                mDeleteStatement.executeUpdateDelete();
+                if (defaults != null && defaults.containsKey(name)) {
+                    mMarkDeletedStatement.bindString(1, name);
+                    mMarkDeletedStatement.executeInsert();
+                }
+            }
+            mBumpCommitSeqStatement.executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mInsertStatement.clearBindings();
+            mDeleteStatement.clearBindings();
+            mMarkDeletedStatement.clearBindings();
+            mUnmarkDeletedStatement.clearBindings();
+        }
+    }
+
+    @GuardedBy("mPersistLock")
+    private void compileStatementsLocked(SQLiteDatabase db) {
+        if (mStatementDb == db) {
+            return;
+        }
+        closeStatementsLocked();
+        mInsertStatement = db.compileStatement("INSERT OR REPLACE INTO " + mTableName
+                + "(name,value) VALUES(?,?);");
+        mDeleteStatement = db.compileStatement("DELETE FROM " + mTableName + " WHERE name=?;");
+        mMarkDeletedStatement = db.compileStatement("INSERT OR IGNORE INTO "
+                + DatabaseHelper.TABLE_OVERLAY_DELETED + "(tbl,name) VALUES('" + mTableName
+                + "',?);");
+        mUnmarkDeletedStatement = db.compileStatement("DELETE FROM "
+                + DatabaseHelper.TABLE_OVERLAY_DELETED + " WHERE tbl='" + mTableName
+                + "' AND name=?;");
+        mBumpCommitSeqStatement = db.compileStatement("UPDATE "
+                + DatabaseHelper.TABLE_COMMIT_SEQ + " SET seq=seq+1 WHERE tbl='" + mTableName
+                + "';");
+        mStatementDb = db;
+    }
+
+    @GuardedBy("mPersistLock")
+    private void closeStatementsLocked() {
+        if (mInsertStatement != null) {
+            mInsertStatement.close();
+            mInsertStatement = null;
+        }
+        if (mDeleteStatement != null) {
+            mDeleteStatement.close();
+            mDeleteStatement = null;
+        }
+        if (mMarkDeletedStatement != null) {
+            mMarkDeletedStatement.close();
+            mMarkDeletedStatement = null;
+        }
+        if (mUnmarkDeletedStatement != null) {
+            mUnmarkDeletedStatement.close();
+            mUnmarkDeletedStatement = null;
+        }
+        if (mBumpCommitSeqStatement != null) {
+            mBumpCommitSeqStatement.close();
+            mBumpCommitSeqStatement = null;
+        }
+        mStatementDb = null;
+    }
+
+    /**
+     * Returns a key identifying a table of a user.
+     * @param tableName The name of the table.
+     * @param userId The user owning the table.
+     */
+    public static int makeKey(String tableName, int userId) {
+        final int type;
+        if (DatabaseHelper.TableNames.TABLE_SYSTEM.equals(tableName)) {
+            type = 0;
+        } else if (DatabaseHelper.TableNames.TABLE_SECURE.equals(tableName)) {
+            type = 1;
+        } else {
+            type = 2;
+        }
+        return (userId << 2) | type;
+    }
+}
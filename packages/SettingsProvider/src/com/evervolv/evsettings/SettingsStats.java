@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The SettingsStats profiles how the provider is used: which settings are read and written
+ * most, by which callers, how long call() takes per method, and how often tables are loaded
+ * from their snapshots. It is dumped along with the provider. Callers never contend on a
+ * lock: the counters are striped, and the maps only lock to add a key seen for the first time.
+ */
+final class SettingsStats {
+    // Keys tracked individually; anything beyond is counted as OTHER_KEY of its table so
+    // callers asking for made up names can't grow the maps without bounds.
+    private static final int MAX_KEYS = 512;
+    private static final String OTHER_KEY = "<other>";
+
+    // Number of entries listed per section in the dump.
+    private static final int DUMP_TOP = 20;
+
+    // Latency buckets are powers of two microseconds, the last one open ended.
+    private static final int NUM_BUCKETS = 16;
+
+    static final int HISTOGRAM_LOOKUP = 0;
+    static final int HISTOGRAM_PUT = 1;
+    private static final String[] HISTOGRAM_NAMES = { "lookupSingleValue", "callHelperPut" };
+
+    private static final int READS = 0;
+    private static final int WRITES = 1;
+
+    // Tables in the order of the types of SettingsState.makeKey.
+    private static final String[] TABLE_NAMES = {
+        DatabaseHelper.TableNames.TABLE_SYSTEM,
+        DatabaseHelper.TableNames.TABLE_SECURE,
+        DatabaseHelper.TableNames.TABLE_GLOBAL,
+    };
+
+    // Reads and writes of each key, per table, so no key has to be built for a lookup.
+    @SuppressWarnings("unchecked")
+    private final ConcurrentHashMap<String, LongAdder[]>[] mKeyCounts =
+            new ConcurrentHashMap[TABLE_NAMES.length];
+    private final AtomicInteger mKeyCount = new AtomicInteger();
+
+    private final ConcurrentHashMap<Integer, LongAdder[]> mUidCounts =
+            new ConcurrentHashMap<Integer, LongAdder[]>();
+
+    // Count and total nanoseconds per call() method.
+    private final ConcurrentHashMap<String, LongAdder[]> mMethodTimes =
+            new ConcurrentHashMap<String, LongAdder[]>();
+
+    private final AtomicLongArray[] mHistograms = new AtomicLongArray[HISTOGRAM_NAMES.length];
+
+    private final LongAdder mSnapshotLoads = new LongAdder();
+    private final LongAdder mDatabaseLoads = new LongAdder();
+
+    SettingsStats() {
+        for (int i = 0; i < mKeyCounts.length; i++) {
+            mKeyCounts[i] = new ConcurrentHashMap<String, LongAdder[]>();
+        }
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new AtomicLongArray(NUM_BUCKETS);
+        }
+    }
+
+    private static LongAdder[] newCounters() {
+        return new LongAdder[] { new LongAdder(), new LongAdder() };
+    }
+
+    /**
+     * Counts a read of a setting.
+     * @param tableName The table of the setting.
+     * @param name The name of the setting.
+     * @param uid The calling uid.
+     */
+    public void noteRead(String tableName, String name, int uid) {
+        noteAccess(tableName, name, uid, READS);
+    }
+
+    /**
+     * Counts a write of a setting.
+     * @param tableName The table of the setting.
+     * @param name The name of the setting.
+     * @param uid The calling uid.
+     */
+    public void noteWrite(String tableName, String name, int uid) {
+        noteAccess(tableName, name, uid, WRITES);
+    }
+
+    private void noteAccess(String tableName, String name, int uid, int type) {
+        final ConcurrentHashMap<String, LongAdder[]> keyCounts =
+                mKeyCounts[SettingsState.makeKey(tableName, 0)];
+        LongAdder[] counts = keyCounts.get(name);
+        if (counts == null) {
+            if (mKeyCount.get() >= MAX_KEYS) {
+                counts = keyCounts.computeIfAbsent(OTHER_KEY, k -> newCounters());
+            } else {
+                counts = keyCounts.computeIfAbsent(name, k -> {
+                    mKeyCount.incrementAndGet();
+                    return newCounters();
+                });
+            }
+        }
+        counts[type].increment();
+
+        LongAdder[] uidCounts = mUidCounts.get(uid);
+        if (uidCounts == null) {
+            uidCounts = mUidCounts.computeIfAbsent(uid, k -> newCounters());
+        }
+        uidCounts[type].increment();
+    }
+
+    /**
+     * Records how long a call() method took.
+     * @param method The call() method.
+     * @param nanos The time taken.
+     */
+    public void noteCall(String method, long nanos) {
+        LongAdder[] times = mMethodTimes.get(method);
+        if (times == null) {
+            times = mMethodTimes.computeIfAbsent(method, k -> newCounters());
+        }
+        times[0].increment();
+        times[1].add(nanos);
+    }
+
+    /**
+     * Records a latency in one of the histograms.
+     * @param histogram HISTOGRAM_LOOKUP or HISTOGRAM_PUT.
+     * @param nanos The latency.
+     */
+    public void noteLatency(int histogram, long nanos) {
+        final long micros = nanos / 1000;
+        final int bucket = Math.min(NUM_BUCKETS - 1,
+                micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros));
+        mHistograms[histogram].incrementAndGet(bucket);
+    }
+
+    /**
+     * Counts a load of a table.
+     * @param fromSnapshot Whether it was loaded from its snapshot rather than the database.
+     */
+    public void noteStateLoad(boolean fromSnapshot) {
+        if (fromSnapshot) {
+            mSnapshotLoads.increment();
+        } else {
+            mDatabaseLoads.increment();
+        }
+    }
+
+    /**
+     * Clears all statistics. Counts made while clearing may or may not be kept.
+     */
+    public void reset() {
+        for (ConcurrentHashMap<String, LongAdder[]> keyCounts : mKeyCounts) {
+            mKeyCount.addAndGet(-keyCounts.size());
+            keyCounts.clear();
+        }
+        mUidCounts.clear();
+        mMethodTimes.clear();
+        for (AtomicLongArray histogram : mHistograms) {
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                histogram.set(b, 0);
+            }
+        }
+        mSnapshotLoads.reset();
+        mDatabaseLoads.reset();
+    }
+
+    /**
+     * Prints the statistics.
+     * @param pw The writer to print to.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("Access statistics:");
+
+        final long snapshotLoads = mSnapshotLoads.sum();
+        final long databaseLoads = mDatabaseLoads.sum();
+        pw.println("  table loads: from snapshot=" + snapshotLoads
+                + " from database=" + databaseLoads
+                + " (" + percent(snapshotLoads, snapshotLoads + databaseLoads)
+                + " from snapshot)");
+
+        pw.println("  call() methods:");
+        for (Map.Entry<String, LongAdder[]> entry : mMethodTimes.entrySet()) {
+            final long count = entry.getValue()[0].sum();
+            final long total = entry.getValue()[1].sum();
+            pw.println("    " + entry.getKey() + ": count=" + count + " avg="
+                    + (count == 0 ? 0 : total / count / 1000) + "us");
+        }
+
+        for (int h = 0; h < HISTOGRAM_NAMES.length; h++) {
+            pw.print("  " + HISTOGRAM_NAMES[h] + " latency:");
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                final long count = mHistograms[h].get(b);
+                if (count != 0) {
+                    pw.print(" " + (b == NUM_BUCKETS - 1
+                            ? ">=" + (1L << (b - 1)) : "<" + (1L << b)) + "us=" + count);
+                }
+            }
+            pw.println();
+        }
+
+        dumpTopKeys(pw, READS, "read");
+        dumpTopKeys(pw, WRITES, "written");
+
+        pw.println("  callers:");
+        for (Map.Entry<Integer, LongAdder[]> entry : mUidCounts.entrySet()) {
+            pw.println("    uid " + entry.getKey() + ": reads=" + entry.getValue()[READS].sum()
+                    + " writes=" + entry.getValue()[WRITES].sum());
+        }
+    }
+
+    private void dumpTopKeys(PrintWriter pw, int type, String label) {
+        final ArrayList<String> keys = new ArrayList<String>();
+        final ArrayList<Long> counts = new ArrayList<Long>();
+        for (int t = 0; t < mKeyCounts.length; t++) {
+            for (Map.Entry<String, LongAdder[]> entry : mKeyCounts[t].entrySet()) {
+                final long count = entry.getValue()[type].sum();
+                if (count > 0) {
+                    keys.add(TABLE_NAMES[t] + "/" + entry.getKey());
+                    counts.add(count);
+                }
+            }
+        }
+        final ArrayList<Integer> indices = new ArrayList<Integer>();
+        for (int i = 0; i < keys.size(); i++) {
+            indices.add(i);
+        }
+        Collections.sort(indices, (a, b) -> Long.compare(counts.get(b), counts.get(a)));
+
+        pw.println("  most " + label + " keys:");
+        for (int i = 0; i < Math.min(DUMP_TOP, indices.size()); i++) {
+            final int index = indices.get(i);
+            pw.println("    " + keys.get(index) + ": " + counts.get(index));
+        }
+    }
+
+    private static String percent(long part, long total) {
+        return total == 0 ? "-" : (part * 100 / total) + "%";
+    }
+}
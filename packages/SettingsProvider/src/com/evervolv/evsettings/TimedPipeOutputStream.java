@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static android.system.OsConstants.EAGAIN;
+import static android.system.OsConstants.EINTR;
+import static android.system.OsConstants.F_GETFL;
+import static android.system.OsConstants.F_SETFL;
+import static android.system.OsConstants.O_NONBLOCK;
+import static android.system.OsConstants.POLLOUT;
+
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Writes into a stream handed in by a caller, usually the write end of a pipe, giving up
+ * once the reader leaves it undrained for too long. Readers which stop reading therefore
+ * can't hold the writing thread forever. The stream is closed along with this.
+ */
+final class TimedPipeOutputStream extends OutputStream {
+
+    private final ParcelFileDescriptor mPipe;
+    private final FileDescriptor mFd;
+    private final long mTimeoutMs;
+    private final StructPollfd[] mPollFds = { new StructPollfd() };
+
+    /**
+     * @param pipe The stream, owned by this from now on.
+     * @param timeoutMs How long a write may wait for the reader to make room.
+     */
+    TimedPipeOutputStream(ParcelFileDescriptor pipe, long timeoutMs) throws IOException {
+        mPipe = pipe;
+        mFd = pipe.getFileDescriptor();
+        mTimeoutMs = timeoutMs;
+        mPollFds[0].fd = mFd;
+        mPollFds[0].events = (short) POLLOUT;
+        try {
+            Os.fcntlInt(mFd, F_SETFL, Os.fcntlInt(mFd, F_GETFL, 0) | O_NONBLOCK);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            try {
+                final int written = Os.write(mFd, b, off, len);
+                off += written;
+                len -= written;
+            } catch (ErrnoException e) {
+                if (e.errno != EAGAIN) {
+                    throw e.rethrowAsIOException();
+                }
+                awaitWritable();
+            }
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        final long deadline = SystemClock.uptimeMillis() + mTimeoutMs;
+        while (true) {
+            final long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                throw new InterruptedIOException(
+                        "Reader left the stream undrained for " + mTimeoutMs + "ms");
+            }
+            try {
+                // Errors and hangups are reported by the next write
+                if (Os.poll(mPollFds, (int) remaining) > 0) {
+                    return;
+                }
+            } catch (ErrnoException e) {
+                if (e.errno != EINTR) {
+                    throw e.rethrowAsIOException();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mPipe.close();
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.text.format.DateFormat;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * The WriteThrottle gives each app uid a token bucket of writes, so an app writing settings
+ * in a loop can't make every write bump the version, commit and notify observers. Writes past
+ * the budget are held back instead, the last value of each setting winning, and applied
+ * together once a second.
+ */
+final class WriteThrottle {
+    private static final String TAG = "WriteThrottle";
+    private static final boolean LOCAL_LOGV = false;
+
+    // Writes an app can make in a burst, and how many it gets back per second.
+    private static final int BURST_WRITES = 100;
+    private static final int WRITES_PER_SECOND = 20;
+
+    // How long held back writes are coalesced before being applied.
+    private static final long FLUSH_DELAY_MS = 1000;
+
+    // Number of buckets past which full ones, which carry no state, are dropped.
+    private static final int MAX_IDLE_BUCKETS = 64;
+
+    /**
+     * Applies held back writes.
+     */
+    interface Flusher {
+        /**
+         * @param tableName The name of the table.
+         * @param userId The user owning the table.
+         * @param values The names and last values of the held back settings.
+         */
+        void flush(String tableName, int userId, Map<String, String> values);
+    }
+
+    private static final class Bucket {
+        double tokens = BURST_WRITES;
+        long lastRefill = SystemClock.elapsedRealtime();
+        long throttledWrites;
+        long lastThrottled;
+    }
+
+    private static final class PendingWrites {
+        final String tableName;
+        final int userId;
+        final ArrayMap<String, String> values = new ArrayMap<String, String>();
+
+        PendingWrites(String tableName, int userId) {
+            this.tableName = tableName;
+            this.userId = userId;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Flusher mFlusher;
+    private final Runnable mFlushRunnable = this::flush;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<Bucket> mBuckets = new SparseArray<Bucket>();
+
+    // Held back writes, keyed by SettingsState.makeKey
+    @GuardedBy("mLock")
+    private final SparseArray<PendingWrites> mPendingWrites = new SparseArray<PendingWrites>();
+
+    public WriteThrottle(Handler handler, Flusher flusher) {
+        mHandler = handler;
+        mFlusher = flusher;
+    }
+
+    /**
+     * Takes writes out of the budget of a uid. System uids are never throttled. A batch larger
+     * than the burst goes through once the budget is full, leaving it in debt until refilled,
+     * rather than being held back forever.
+     * @param uid The calling uid.
+     * @param writes The number of writes.
+     * @return Whether the writes are within budget and may be applied right away.
+     */
+    public boolean tryAcquire(int uid, int writes) {
+        if (UserHandle.getAppId(uid) < Process.FIRST_APPLICATION_UID) {
+            return true;
+        }
+        synchronized (mLock) {
+            Bucket bucket = mBuckets.get(uid);
+            if (bucket == null) {
+                pruneIdleBucketsLocked();
+                bucket = new Bucket();
+                mBuckets.put(uid, bucket);
+            }
+            refillLocked(bucket);
+            if (bucket.tokens >= Math.min(writes, BURST_WRITES)) {
+                bucket.tokens -= writes;
+                return true;
+            }
+            bucket.throttledWrites += writes;
+            bucket.lastThrottled = System.currentTimeMillis();
+            return false;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void refillLocked(Bucket bucket) {
+        final long now = SystemClock.elapsedRealtime();
+        bucket.tokens = Math.min(BURST_WRITES,
+                bucket.tokens + (now - bucket.lastRefill) * WRITES_PER_SECOND / 1000.0);
+        bucket.lastRefill = now;
+    }
+
+    @GuardedBy("mLock")
+    private void pruneIdleBucketsLocked() {
+        if (mBuckets.size() < MAX_IDLE_BUCKETS) {
+            return;
+        }
+        for (int i = mBuckets.size() - 1; i >= 0; i--) {
+            final Bucket bucket = mBuckets.valueAt(i);
+            refillLocked(bucket);
+            if (bucket.tokens >= BURST_WRITES && bucket.throttledWrites == 0) {
+                mBuckets.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Holds back writes to be applied later, replacing any held back values of the same
+     * settings.
+     * @param tableName The name of the table.
+     * @param userId The user owning the table.
+     * @param values The names and new values of the settings.
+     */
+    public void defer(String tableName, int userId, Map<String, String> values) {
+        synchronized (mLock) {
+            final int key = SettingsState.makeKey(tableName, userId);
+            PendingWrites pending = mPendingWrites.get(key);
+            if (pending == null) {
+                pending = new PendingWrites(tableName, userId);
+                mPendingWrites.put(key, pending);
+            }
+            pending.values.putAll(values);
+            if (!mHandler.hasCallbacks(mFlushRunnable)) {
+                mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+            }
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "Held back " + values.keySet() + " of " + tableName);
+    }
+
+    /**
+     * Drops held back writes of a setting, which must be done before the setting is written
+     * or deleted right away so the older held back value doesn't win later on.
+     * @param tableName The name of the table.
+     * @param userId The user owning the table.
+     * @param name The name of the setting.
+     */
+    public void cancel(String tableName, int userId, String name) {
+        synchronized (mLock) {
+            final PendingWrites pending =
+                    mPendingWrites.get(SettingsState.makeKey(tableName, userId));
+            if (pending != null) {
+                pending.values.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Drops all held back writes of a table, e.g. before it is written in the database
+     * directly or its user is removed.
+     * @param tableName The name of the table.
+     * @param userId The user owning the table.
+     */
+    public void cancelAll(String tableName, int userId) {
+        synchronized (mLock) {
+            mPendingWrites.remove(SettingsState.makeKey(tableName, userId));
+        }
+    }
+
+    /**
+     * Applies all held back writes.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        final SparseArray<PendingWrites> pendingWrites;
+        synchronized (mLock) {
+            pendingWrites = mPendingWrites.clone();
+            mPendingWrites.clear();
+        }
+        for (int i = 0; i < pendingWrites.size(); i++) {
+            final PendingWrites pending = pendingWrites.valueAt(i);
+            if (!pending.values.isEmpty()) {
+                mFlusher.flush(pending.tableName, pending.userId, pending.values);
+            }
+        }
+    }
+
+    /**
+     * Prints the throttled callers.
+     * @param pw The writer to print to.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Write throttling: " + BURST_WRITES + " writes burst, "
+                    + WRITES_PER_SECOND + "/s sustained");
+            pw.println("  throttled callers:");
+            for (int i = 0; i < mBuckets.size(); i++) {
+                final Bucket bucket = mBuckets.valueAt(i);
+                if (bucket.throttledWrites == 0) {
+                    continue;
+                }
+                refillLocked(bucket);
+                pw.println("    uid " + mBuckets.keyAt(i) + ": throttled="
+                        + bucket.throttledWrites + " tokens=" + (int) bucket.tokens + " last="
+                        + DateFormat.format("yyyy-MM-dd HH:mm:ss", bucket.lastThrottled));
+            }
+            int pending = 0;
+            for (int i = 0; i < mPendingWrites.size(); i++) {
+                pending += mPendingWrites.valueAt(i).values.size();
+            }
+            pw.println("  held back settings: " + pending);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.UserHandle;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Checks that overlay tables keep the defaults they were created with once an update changes
+ * them, which is simulated by pinning a table to archived defaults of another fingerprint.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SettingsDefaultsTest {
+    private static final String TABLE = DatabaseHelper.TableNames.TABLE_SYSTEM;
+    private static final Map<String, String> OLD_DEFAULTS =
+            Collections.singletonMap("old_default", "1");
+
+    private Context mContext;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private DatabaseHelper mDbHelper;
+    private File mArchive;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mThread = new HandlerThread("SettingsDefaultsTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mDbHelper = new DatabaseHelper(mContext, UserHandle.USER_SYSTEM);
+        mContext.deleteDatabase(new File(mDbHelper.getDatabaseName()).getName());
+        SettingsSnapshot.delete(mDbHelper.getSnapshotFile(TABLE));
+        mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        SettingsSnapshot.delete(mDbHelper.getSnapshotFile(TABLE));
+        mDbHelper.close();
+        mContext.deleteDatabase(new File(mDbHelper.getDatabaseName()).getName());
+        if (mArchive != null) {
+            mArchive.delete();
+        }
+        mThread.quitSafely();
+    }
+
+    private Map<String, String> getCurrentDefaults() {
+        return SettingsDefaults.get(mContext).getDefaults(TABLE);
+    }
+
+    // As if the table was created by a build whose defaults were OLD_DEFAULTS
+    private void pinToOldDefaults() {
+        final SettingsDefaults defaults = SettingsDefaults.get(mContext);
+        final int fingerprint = OLD_DEFAULTS.hashCode();
+        assertTrue(fingerprint != defaults.getFingerprint(TABLE));
+        mArchive = SettingsDefaults.getArchiveFile(mContext, TABLE, fingerprint);
+        SettingsDefaults.writeArchive(mArchive, OLD_DEFAULTS);
+
+        mDbHelper.getWritableDatabase().execSQL("UPDATE " + DatabaseHelper.TABLE_OVERLAY
+                + " SET defaults_fingerprint=? WHERE name=?;",
+                new Object[] { fingerprint, TABLE });
+        mDbHelper.close();
+        mDbHelper = new DatabaseHelper(mContext, UserHandle.USER_SYSTEM);
+        mDbHelper.getWritableDatabase();
+    }
+
+    private SettingsState newState() {
+        return new SettingsState(mDbHelper, TABLE, UserHandle.USER_SYSTEM, mHandler,
+                (tableName, userId, names) -> { });
+    }
+
+    @Test
+    public void testNewTableUsesCurrentDefaults() {
+        assertTrue(mDbHelper.isOverlayTable(TABLE));
+        assertEquals(getCurrentDefaults(), mDbHelper.getDefaults(TABLE));
+    }
+
+    @Test
+    public void testTableKeepsDefaultsItWasCreatedWith() {
+        pinToOldDefaults();
+        assertEquals(OLD_DEFAULTS, mDbHelper.getDefaults(TABLE));
+
+        final SettingsState state = newState();
+        assertEquals("1", state.getSetting("old_default"));
+        for (String name : getCurrentDefaults().keySet()) {
+            assertEquals(null, state.getSetting(name));
+        }
+    }
+
+    @Test
+    public void testMaterializedTableKeepsDefaultsItWasCreatedWith() {
+        pinToOldDefaults();
+        mDbHelper.materializeDefaults(TABLE);
+        assertFalse(mDbHelper.isOverlayTable(TABLE));
+
+        assertEquals("1", queryValue("old_default"));
+        for (String name : getCurrentDefaults().keySet()) {
+            assertEquals(null, queryValue(name));
+        }
+    }
+
+    private String queryValue(String name) {
+        final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        final Cursor cursor = db.query(TABLE, new String[] { "value" }, "name=?",
+                new String[] { name }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.provider.Settings;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import evervolv.provider.EVSettings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Measures single-key queries of an in-process provider: with the selection of
+ * {@link EVSettings}, with the one of the provider, and with one which must go to SQLite.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SettingsProviderQueryPerfTest {
+    private static final String NAME = "perf_query_setting";
+    private static final String[] PROJECTION = { Settings.NameValueTable.VALUE };
+    private static final String[] SELECTION_ARGS = { NAME };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Context mContext;
+    private SettingsProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        deleteDatabaseFiles();
+        mProvider = new SettingsProvider();
+        final ProviderInfo info = new ProviderInfo();
+        info.authority = EVSettings.AUTHORITY;
+        mProvider.attachInfo(mContext, info);
+        mProvider.call(EVSettings.CALL_METHOD_PUT_SECURE, NAME,
+                Bundle.forPair(Settings.NameValueTable.VALUE, "1"));
+    }
+
+    @After
+    public void tearDown() {
+        deleteDatabaseFiles();
+    }
+
+    // The database of the system user, its journal and the snapshots of its tables
+    private void deleteDatabaseFiles() {
+        final File dir = mContext.getDatabasePath("evervolv.db").getParentFile();
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("evervolv.db")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void timeQuery(String selection) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final Cursor cursor = mProvider.query(EVSettings.Secure.CONTENT_URI, PROJECTION,
+                    selection, SELECTION_ARGS, null);
+            if (!cursor.moveToFirst() || !"1".equals(cursor.getString(0))) {
+                throw new AssertionError("Setting not found");
+            }
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void timeQueryClientSelection() {
+        timeQuery("name=?");
+    }
+
+    @Test
+    public void timeQueryProviderSelection() {
+        timeQuery("name = ?");
+    }
+
+    @Test
+    public void timeQuerySqlSelection() {
+        timeQuery("name = ? AND value IS NOT NULL");
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.UserHandle;
+import android.provider.Settings;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import evervolv.provider.EVSettings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hammers a provider running in process from many threads at once, starting before any of
+ * its tables is loaded, so the database open races the loads of every table, and checks
+ * that the open of one user's database doesn't hold up the other users.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SettingsProviderStressTest {
+    private static final int THREADS = 8;
+    // Fewer writes in total than the burst of the write throttle, so none is held back
+    private static final int WRITES_PER_THREAD = 10;
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    private static final String[][] TABLES = {
+        { EVSettings.CALL_METHOD_GET_SYSTEM, EVSettings.CALL_METHOD_PUT_SYSTEM,
+                EVSettings.CALL_METHOD_LIST_SYSTEM },
+        { EVSettings.CALL_METHOD_GET_SECURE, EVSettings.CALL_METHOD_PUT_SECURE,
+                EVSettings.CALL_METHOD_LIST_SECURE },
+        { EVSettings.CALL_METHOD_GET_GLOBAL, EVSettings.CALL_METHOD_PUT_GLOBAL,
+                EVSettings.CALL_METHOD_LIST_GLOBAL },
+    };
+    // System only takes known settings, so the writes go to the other tables
+    private static final String[][] WRITABLE_TABLES = { TABLES[1], TABLES[2] };
+
+    // A secondary user whose database takes until released to open, and the users which
+    // must go on meanwhile
+    private static final int BLOCKED_USER = 10;
+    private static final int[] OTHER_USERS = { UserHandle.USER_SYSTEM, 11 };
+
+    /**
+     * Keeps the databases of secondary users next to the one of the system user, and holds
+     * up the open of the database of {@link #BLOCKED_USER}, as a slow upgrade would.
+     */
+    public static class TestSettingsProvider extends SettingsProvider {
+        final CountDownLatch openStarted = new CountDownLatch(1);
+        final CountDownLatch openReleased = new CountDownLatch(1);
+
+        @Override
+        DatabaseHelper newDatabaseHelper(int userId) {
+            if (userId == UserHandle.USER_SYSTEM) {
+                return super.newDatabaseHelper(userId);
+            }
+            final String dbPath = getContext().getDatabasePath("evervolv.db.user" + userId)
+                    .getPath();
+            return new DatabaseHelper(getContext(), userId, dbPath) {
+                @Override
+                public void onOpen(SQLiteDatabase db) {
+                    if (userId == BLOCKED_USER) {
+                        openStarted.countDown();
+                        try {
+                            // Bounded, so a failing test doesn't hang
+                            openReleased.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    super.onOpen(db);
+                }
+            };
+        }
+    }
+
+    private Context mContext;
+    private TestSettingsProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        deleteDatabaseFiles();
+        mProvider = new TestSettingsProvider();
+        final ProviderInfo info = new ProviderInfo();
+        info.authority = EVSettings.AUTHORITY;
+        mProvider.attachInfo(mContext, info);
+    }
+
+    @After
+    public void tearDown() {
+        deleteDatabaseFiles();
+    }
+
+    // The databases of the users, their journals and the snapshots of their tables
+    private void deleteDatabaseFiles() {
+        final File dir = mContext.getDatabasePath("evervolv.db").getParentFile();
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("evervolv.db")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private String get(String[] table, String name) {
+        final Bundle result = mProvider.call(table[0], name, null);
+        return result != null ? result.getString(Settings.NameValueTable.VALUE) : null;
+    }
+
+    private void put(String[] table, String name, String value) {
+        mProvider.call(table[1], name, Bundle.forPair(Settings.NameValueTable.VALUE, value));
+    }
+
+    private List<String> list(String[] table) {
+        return mProvider.call(table[2], null, null)
+                .getStringArrayList(SettingsProvider.RESULT_SETTINGS_LIST);
+    }
+
+    private static Bundle forUser(int userId) {
+        final Bundle args = new Bundle();
+        args.putInt(EVSettings.CALL_METHOD_USER_KEY, userId);
+        return args;
+    }
+
+    private String get(String[] table, int userId, String name) {
+        final Bundle result = mProvider.call(table[0], name, forUser(userId));
+        return result != null ? result.getString(Settings.NameValueTable.VALUE) : null;
+    }
+
+    private void put(String[] table, int userId, String name, String value) {
+        final Bundle args = forUser(userId);
+        args.putString(Settings.NameValueTable.VALUE, value);
+        mProvider.call(table[1], name, args);
+    }
+
+    private List<String> list(String[] table, int userId) {
+        return mProvider.call(table[2], null, forUser(userId))
+                .getStringArrayList(SettingsProvider.RESULT_SETTINGS_LIST);
+    }
+
+    private static String nameOf(int thread, int i) {
+        return "stress_" + thread + "_" + i;
+    }
+
+    @Test
+    public void testConcurrentFirstUse() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                    final String[] table =
+                            WRITABLE_TABLES[(thread + i) % WRITABLE_TABLES.length];
+                    // Reads of tables other threads are loading or writing
+                    get(TABLES[i % TABLES.length], nameOf((thread + 1) % THREADS, i));
+                    list(TABLES[(thread + i + 1) % TABLES.length]);
+                    put(table, nameOf(thread, i), String.valueOf(i));
+                    assertEquals(String.valueOf(i), get(table, nameOf(thread, i)));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        // A deadlock between the database open and the loads shows up as a timeout here
+        for (Future<?> result : results) {
+            result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        executor.shutdown();
+
+        // Every write landed in its table, and only there
+        final ArrayList<HashSet<String>> names = new ArrayList<HashSet<String>>();
+        for (String[] table : WRITABLE_TABLES) {
+            names.add(new HashSet<String>(list(table)));
+        }
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                final int table = (t + i) % WRITABLE_TABLES.length;
+                for (int other = 0; other < WRITABLE_TABLES.length; other++) {
+                    assertEquals(table == other,
+                            names.get(other).contains(nameOf(t, i) + "=" + i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBlockedOpenHoldsUpOnlyItsUser() throws Exception {
+        final String[] secure = WRITABLE_TABLES[0];
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        // The first write of the blocked user has to open its database
+        final Future<?> blocked = executor.submit(() -> {
+            put(secure, BLOCKED_USER, "stress_blocked", "1");
+            return null;
+        });
+        assertTrue(mProvider.openStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            final int userId = OTHER_USERS[t % OTHER_USERS.length];
+            results.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                    get(TABLES[i % TABLES.length], userId, nameOf((thread + 1) % THREADS, i));
+                    list(TABLES[(thread + i) % TABLES.length], userId);
+                    put(secure, userId, nameOf(thread, i), String.valueOf(i));
+                    assertEquals(String.valueOf(i), get(secure, userId, nameOf(thread, i)));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        // Reads and writes of the other users complete while the open is still held up
+        for (Future<?> result : results) {
+            result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        assertFalse(blocked.isDone());
+
+        mProvider.openReleased.countDown();
+        blocked.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        executor.shutdown();
+        assertEquals("1", get(secure, BLOCKED_USER, "stress_blocked"));
+
+        // Each user only has its own writes
+        for (int u = 0; u < OTHER_USERS.length; u++) {
+            final HashSet<String> names = new HashSet<String>(list(secure, OTHER_USERS[u]));
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                    assertEquals(t % OTHER_USERS.length == u,
+                            names.contains(nameOf(t, i) + "=" + i));
+                }
+            }
+        }
+        assertFalse(list(secure, BLOCKED_USER).contains(nameOf(0, 0) + "=0"));
+    }
+
+    @Test
+    public void testConcurrentReadsOfUnknownSettings() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final String[] table = TABLES[t % TABLES.length];
+            results.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(null, get(table, "stress_unknown_" + i));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+}
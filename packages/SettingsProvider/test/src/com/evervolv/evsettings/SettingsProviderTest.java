@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class SettingsProviderTest {
+
+    @Test
+    public void testNameSelectionsAreRecognized() {
+        // The selection of EVSettings, and the one of the provider
+        assertTrue(SettingsProvider.isNameSelection("name=?"));
+        assertTrue(SettingsProvider.isNameSelection("name = ?"));
+        assertTrue(SettingsProvider.isNameSelection(" name\t=  ? "));
+    }
+
+    @Test
+    public void testOtherSelectionsAreNot() {
+        assertFalse(SettingsProvider.isNameSelection(null));
+        assertFalse(SettingsProvider.isNameSelection(""));
+        assertFalse(SettingsProvider.isNameSelection("name"));
+        assertFalse(SettingsProvider.isNameSelection("name="));
+        assertFalse(SettingsProvider.isNameSelection("names=?"));
+        assertFalse(SettingsProvider.isNameSelection("name==?"));
+        assertFalse(SettingsProvider.isNameSelection("name=? AND value=?"));
+        assertFalse(SettingsProvider.isNameSelection("value=?"));
+    }
+}
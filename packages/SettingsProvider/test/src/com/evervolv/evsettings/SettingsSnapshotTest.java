@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+@RunWith(AndroidJUnit4.class)
+public class SettingsSnapshotTest {
+    private static final int DB_VERSION = 42;
+    private static final int FINGERPRINT = 0x1234;
+    private static final long COMMIT_SEQ = 7;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "test.snapshot");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static HashMap<String, String> makeSettings() {
+        final HashMap<String, String> settings = new HashMap<String, String>();
+        settings.put("a", "1");
+        settings.put("b", null);
+        settings.put("c", "é中");
+        settings.put("", "");
+        return settings;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final HashMap<String, String> settings = makeSettings();
+        SettingsSnapshot.write(mFile, DB_VERSION, FINGERPRINT, COMMIT_SEQ, settings);
+        final SettingsSnapshot.Contents contents = SettingsSnapshot.read(mFile, DB_VERSION);
+        assertEquals(settings, contents.settings);
+        assertEquals(FINGERPRINT, contents.defaultsFingerprint);
+        assertEquals(COMMIT_SEQ, contents.commitSeq);
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testMissing() {
+        assertNull(SettingsSnapshot.read(mFile, DB_VERSION));
+    }
+
+    @Test
+    public void testOtherVersionIgnored() {
+        SettingsSnapshot.write(mFile, DB_VERSION, FINGERPRINT, COMMIT_SEQ, makeSettings());
+        assertNull(SettingsSnapshot.read(mFile, DB_VERSION + 1));
+    }
+
+    @Test
+    public void testCorruptIgnored() throws Exception {
+        SettingsSnapshot.write(mFile, DB_VERSION, FINGERPRINT, COMMIT_SEQ, makeSettings());
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(raf.length() / 2);
+            final int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xff);
+        }
+        assertNull(SettingsSnapshot.read(mFile, DB_VERSION));
+    }
+
+    @Test
+    public void testTruncatedIgnored() throws Exception {
+        SettingsSnapshot.write(mFile, DB_VERSION, FINGERPRINT, COMMIT_SEQ, makeSettings());
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        assertNull(SettingsSnapshot.read(mFile, DB_VERSION));
+    }
+
+    @Test
+    public void testDelete() {
+        assertTrue(SettingsSnapshot.delete(mFile));
+        SettingsSnapshot.write(mFile, DB_VERSION, FINGERPRINT, COMMIT_SEQ, makeSettings());
+        assertTrue(SettingsSnapshot.delete(mFile));
+        assertFalse(mFile.exists());
+    }
+}
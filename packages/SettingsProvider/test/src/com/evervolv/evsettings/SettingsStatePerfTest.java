@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.UserHandle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Measures loading a table the way the provider does on boot, from its snapshot and from the
+ * database, and a single snapshot read.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SettingsStatePerfTest {
+    private static final String TABLE = DatabaseHelper.TableNames.TABLE_SYSTEM;
+    private static final int SETTINGS = 500;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Context mContext;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private DatabaseHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mThread = new HandlerThread("SettingsStatePerfTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mDbHelper = new DatabaseHelper(mContext, UserHandle.USER_SYSTEM);
+        mContext.deleteDatabase(new File(mDbHelper.getDatabaseName()).getName());
+        mDbHelper.getWritableDatabase();
+
+        final SettingsState state = newState();
+        final HashMap<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i < SETTINGS; i++) {
+            values.put("perf_setting_" + i, Integer.toString(i));
+        }
+        assertTrue(state.awaitPersisted(state.insertSettings(values)));
+        state.flushAndSnapshot();
+        assertTrue(mDbHelper.getSnapshotFile(TABLE).exists());
+    }
+
+    @After
+    public void tearDown() {
+        SettingsSnapshot.delete(mDbHelper.getSnapshotFile(TABLE));
+        mDbHelper.close();
+        mContext.deleteDatabase(new File(mDbHelper.getDatabaseName()).getName());
+        mThread.quitSafely();
+    }
+
+    private SettingsState newState() {
+        return new SettingsState(mDbHelper, TABLE, UserHandle.USER_SYSTEM, mHandler,
+                (tableName, userId, names) -> { });
+    }
+
+    @Test
+    public void timeLoadFromSnapshot() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            if (!newState().wasLoadedFromSnapshot()) {
+                throw new AssertionError("Snapshot not loaded");
+            }
+        }
+    }
+
+    @Test
+    public void timeLoadFromDatabase() {
+        SettingsSnapshot.delete(mDbHelper.getSnapshotFile(TABLE));
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            assertFalse(newState().wasLoadedFromSnapshot());
+        }
+    }
+
+    @Test
+    public void timeReadSnapshot() {
+        final File file = mDbHelper.getSnapshotFile(TABLE);
+        final int version = DatabaseHelper.getSnapshotVersion();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            SettingsSnapshot.read(file, version);
+        }
+    }
+}
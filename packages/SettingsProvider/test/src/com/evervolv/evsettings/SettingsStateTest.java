@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.UserHandle;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class SettingsStateTest {
+    private static final String TABLE = DatabaseHelper.TableNames.TABLE_SYSTEM;
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    /**
+     * Fails to open the database for writing as often as asked to, and counts the calls
+     * opening it.
+     */
+    private static final class FailingDatabaseHelper extends DatabaseHelper {
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger opens = new AtomicInteger();
+
+        FailingDatabaseHelper(Context context) {
+            super(context, UserHandle.USER_SYSTEM);
+        }
+
+        @Override
+        public SQLiteDatabase getReadableDatabase() {
+            opens.incrementAndGet();
+            return super.getReadableDatabase();
+        }
+
+        @Override
+        public SQLiteDatabase getWritableDatabase() {
+            opens.incrementAndGet();
+            if (failures.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+                // Not an SQLiteException, which must be retried all the same
+                throw new IllegalStateException("Injected failure");
+            }
+            return super.getWritableDatabase();
+        }
+    }
+
+    private Context mContext;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private FailingDatabaseHelper mDbHelper;
+    private final LinkedBlockingQueue<List<String>> mPersisted =
+            new LinkedBlockingQueue<List<String>>();
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mThread = new HandlerThread("SettingsStateTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mDbHelper = new FailingDatabaseHelper(mContext);
+        mContext.deleteDatabase(new File(mDbHelper.getDatabaseName()).getName());
+        mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        SettingsSnapshot.delete(mDbHelper.getSnapshotFile(TABLE));
+        mDbHelper.close();
+        mContext.deleteDatabase(new File(mDbHelper.getDatabaseName()).getName());
+        mThread.quitSafely();
+    }
+
+    private SettingsState newState() {
+        return new SettingsState(mDbHelper, TABLE, UserHandle.USER_SYSTEM, mHandler,
+                (tableName, userId, names) -> {
+                    final ArrayList<String> sorted = new ArrayList<String>(Arrays.asList(names));
+                    sorted.sort(null);
+                    mPersisted.add(sorted);
+                });
+    }
+
+    private List<String> awaitBatch() throws InterruptedException {
+        final List<String> names = mPersisted.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue("No batch committed", names != null);
+        return names;
+    }
+
+    @Test
+    public void testWritesArePersisted() throws Exception {
+        final SettingsState state = newState();
+        state.insertSetting("a", "1");
+        assertTrue(state.awaitPersisted(state.insertSetting("b", "2")));
+        assertEquals(Arrays.asList("a", "b"), awaitBatch());
+
+        // Read back from the database rather than the snapshot
+        SettingsSnapshot.delete(mDbHelper.getSnapshotFile(TABLE));
+        final SettingsState reloaded = newState();
+        assertFalse(reloaded.wasLoadedFromSnapshot());
+        assertEquals("1", reloaded.getSetting("a"));
+        assertEquals("2", reloaded.getSetting("b"));
+    }
+
+    @Test
+    public void testFailedBatchIsRetried() throws Exception {
+        final SettingsState state = newState();
+        mDbHelper.failures.set(1);
+        assertFalse(state.awaitPersisted(state.insertSetting("a", "1")));
+        // The setting stays visible while the batch is retried
+        assertEquals("1", state.getSetting("a"));
+        assertEquals(Arrays.asList("a"), awaitBatch());
+
+        SettingsSnapshot.delete(mDbHelper.getSnapshotFile(TABLE));
+        assertEquals("1", newState().getSetting("a"));
+    }
+
+    @Test
+    public void testRetriesBackOff() throws Exception {
+        final SettingsState state = newState();
+        mDbHelper.failures.set(3);
+        final long start = SystemClock.uptimeMillis();
+        assertFalse(state.awaitPersisted(state.insertSetting("a", "1")));
+        // Writes made while backing off go along with the retry
+        state.insertSetting("b", "2");
+        assertEquals(Arrays.asList("a", "b"), awaitBatch());
+        // Retried after 100, 200 and 400ms
+        assertTrue(SystemClock.uptimeMillis() - start >= 700);
+
+        // Back to group commits once a batch went through
+        final long healthy = SystemClock.uptimeMillis();
+        assertTrue(state.awaitPersisted(state.insertSetting("c", "3")));
+        assertEquals(Arrays.asList("c"), awaitBatch());
+        assertTrue(SystemClock.uptimeMillis() - healthy < 700);
+    }
+
+    @Test
+    public void testSnapshotIsLoadedWithoutDatabase() throws Exception {
+        final SettingsState state = newState();
+        assertTrue(state.awaitPersisted(state.insertSetting("a", "1")));
+        assertEquals(Arrays.asList("a"), awaitBatch());
+        state.flushAndSnapshot();
+
+        // As on boot, with a helper which hasn't opened the database yet
+        mDbHelper.close();
+        mDbHelper = new FailingDatabaseHelper(mContext);
+        final SettingsState loaded = newState();
+        assertTrue(loaded.wasLoadedFromSnapshot());
+        assertEquals("1", loaded.getSetting("a"));
+        assertEquals(0, mDbHelper.opens.get());
+
+        // The snapshot matches the database, so nothing changes
+        loaded.verifySnapshot();
+        assertTrue(mDbHelper.opens.get() > 0);
+        assertEquals("1", loaded.getSetting("a"));
+        assertTrue(mPersisted.isEmpty());
+        assertTrue(mDbHelper.getSnapshotFile(TABLE).exists());
+    }
+
+    @Test
+    public void testStaleSnapshotIsReloaded() throws Exception {
+        final SettingsState state = newState();
+        state.insertSetting("a", "1");
+        assertTrue(state.awaitPersisted(state.insertSetting("b", "2")));
+        assertEquals(Arrays.asList("a", "b"), awaitBatch());
+        state.flushAndSnapshot();
+
+        // Written behind the back of the snapshot, e.g. by a restore
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.execSQL("UPDATE " + TABLE + " SET value='3' WHERE name='a';");
+        mDbHelper.bumpCommitSeq(db, TABLE);
+        mDbHelper.close();
+        mDbHelper = new FailingDatabaseHelper(mContext);
+
+        // Served from the snapshot until it is checked
+        final SettingsState loaded = newState();
+        assertTrue(loaded.wasLoadedFromSnapshot());
+        assertEquals("1", loaded.getSetting("a"));
+        // Kept over the database, as it isn't persisted yet
+        final long seq = loaded.insertSetting("b", "4");
+
+        loaded.verifySnapshot();
+        assertEquals("3", loaded.getSetting("a"));
+        assertEquals("4", loaded.getSetting("b"));
+        assertEquals(Arrays.asList("a"), awaitBatch());
+        assertFalse(mDbHelper.getSnapshotFile(TABLE).exists());
+
+        assertTrue(loaded.awaitPersisted(seq));
+        assertEquals(Arrays.asList("b"), awaitBatch());
+    }
+
+    @Test
+    public void testStaleSnapshotIsReloadedBeforeCommit() throws Exception {
+        final SettingsState state = newState();
+        assertTrue(state.awaitPersisted(state.insertSetting("a", "1")));
+        assertEquals(Arrays.asList("a"), awaitBatch());
+        state.flushAndSnapshot();
+
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.execSQL("INSERT INTO " + TABLE + "(name,value) VALUES('c','5');");
+        mDbHelper.bumpCommitSeq(db, TABLE);
+        mDbHelper.close();
+        mDbHelper = new FailingDatabaseHelper(mContext);
+
+        // Never checked by hand, so the first commit does it
+        final SettingsState loaded = newState();
+        assertTrue(loaded.wasLoadedFromSnapshot());
+        assertTrue(loaded.awaitPersisted(loaded.insertSetting("b", "2")));
+        assertEquals(Arrays.asList("c"), awaitBatch());
+        assertEquals(Arrays.asList("b"), awaitBatch());
+        assertEquals("5", loaded.getSetting("c"));
+
+        SettingsSnapshot.delete(mDbHelper.getSnapshotFile(TABLE));
+        final SettingsState reloaded = newState();
+        assertEquals("1", reloaded.getSetting("a"));
+        assertEquals("2", reloaded.getSetting("b"));
+        assertEquals("5", reloaded.getSetting("c"));
+    }
+
+    @Test
+    public void testSortedSettingsAreShared() {
+        final SettingsState state = newState();
+        state.insertSetting("b", "2");
+        state.insertSetting("a", "1");
+        final NavigableMap<String, String> sorted = state.getSortedSettings();
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(sorted.keySet()));
+        // Sorted once until the table changes
+        assertSame(sorted, state.getSortedSettings());
+
+        state.deleteSetting("a");
+        final NavigableMap<String, String> changed = state.getSortedSettings();
+        assertNotSame(sorted, changed);
+        assertEquals(Arrays.asList("b"), new ArrayList<String>(changed.keySet()));
+        // Pages already handed out keep their view of the table
+        assertEquals("1", sorted.get("a"));
+    }
+
+    @Test
+    public void testDiscardWakesWaiters() {
+        final SettingsState state = newState();
+        mDbHelper.failures.set(Integer.MAX_VALUE);
+        final long seq = state.insertSetting("a", "1");
+        state.discard();
+        assertFalse(state.awaitPersisted(seq));
+    }
+}
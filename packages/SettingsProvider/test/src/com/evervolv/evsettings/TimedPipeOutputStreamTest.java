@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class TimedPipeOutputStreamTest {
+    private static final long TIMEOUT_MS = 200;
+    // Larger than any pipe buffer
+    private static final int DATA_SIZE = 1024 * 1024;
+
+    private static byte[] newData() {
+        final byte[] data = new byte[DATA_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    public void testUndrainedPipeTimesOut() throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        try (TimedPipeOutputStream out = new TimedPipeOutputStream(pipe[1], TIMEOUT_MS)) {
+            final long start = SystemClock.uptimeMillis();
+            try {
+                out.write(newData());
+                fail("Write to an undrained pipe went through");
+            } catch (InterruptedIOException e) {
+                assertTrue(SystemClock.uptimeMillis() - start >= TIMEOUT_MS);
+            }
+        } finally {
+            pipe[0].close();
+        }
+    }
+
+    @Test
+    public void testDrainedPipeGetsAllData() throws Exception {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final CompletableFuture<byte[]> read = CompletableFuture.supplyAsync(() -> {
+            try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0])) {
+                final ByteArrayOutputStream data = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[4096];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    data.write(buffer, 0, count);
+                    // A slow reader, which still drains within the timeout
+                    SystemClock.sleep(1);
+                }
+                return data.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        final byte[] data = newData();
+        try (TimedPipeOutputStream out = new TimedPipeOutputStream(pipe[1], TIMEOUT_MS)) {
+            out.write(data, 0, DATA_SIZE / 2);
+            out.write(data[DATA_SIZE / 2]);
+            out.write(data, DATA_SIZE / 2 + 1, DATA_SIZE - DATA_SIZE / 2 - 1);
+        }
+        assertArrayEquals(data, read.get(10, TimeUnit.SECONDS));
+    }
+}
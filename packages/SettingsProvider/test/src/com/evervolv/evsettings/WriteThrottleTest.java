@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.UserHandle;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class WriteThrottleTest {
+    private static final int APP_UID =
+            UserHandle.getUid(UserHandle.USER_SYSTEM, Process.FIRST_APPLICATION_UID + 1);
+
+    private WriteThrottle mThrottle;
+
+    @Before
+    public void setUp() {
+        mThrottle = new WriteThrottle(new Handler(Looper.getMainLooper()),
+                (tableName, userId, values) -> { });
+    }
+
+    @Test
+    public void testSystemUidIsNeverThrottled() {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(mThrottle.tryAcquire(Process.SYSTEM_UID, 1));
+        }
+    }
+
+    @Test
+    public void testWritesPastBurstAreThrottled() {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(mThrottle.tryAcquire(APP_UID, 1));
+        }
+        assertFalse(mThrottle.tryAcquire(APP_UID, 1));
+    }
+
+    @Test
+    public void testBatchLargerThanBurstGoesThroughOnce() {
+        // Would never fit the bucket otherwise
+        assertTrue(mThrottle.tryAcquire(APP_UID, 250));
+        // The bucket is in debt now
+        assertFalse(mThrottle.tryAcquire(APP_UID, 1));
+        assertFalse(mThrottle.tryAcquire(APP_UID, 250));
+    }
+
+    @Test
+    public void testBatchLargerThanBurstNeedsFullBucket() {
+        assertTrue(mThrottle.tryAcquire(APP_UID, 1));
+        assertFalse(mThrottle.tryAcquire(APP_UID, 250));
+    }
+}
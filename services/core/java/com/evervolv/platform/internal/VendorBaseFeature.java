@@ -21,10 +21,13 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 
 import com.evervolv.platform.internal.common.UserContentObserver;
 
 import java.io.PrintWriter;
+import java.util.List;
 
 import evervolv.provider.EVSettings;
 
@@ -89,7 +92,11 @@ public abstract class VendorBaseFeature {
         mSettingsObserver.unregister();
     }
 
-    final class SettingsObserver extends UserContentObserver {
+    final class SettingsObserver extends UserContentObserver
+            implements EVSettings.KeyListener {
+
+        // Keys of EVSettings uris per table, observed through the shared key listeners
+        private final ArrayMap<Uri, ArraySet<String>> mKeys = new ArrayMap<>();
 
         public SettingsObserver(Handler handler) {
             super(handler);
@@ -98,7 +105,25 @@ public abstract class VendorBaseFeature {
         public void register(Uri... uris) {
             final ContentResolver cr = mContext.getContentResolver();
             for (Uri uri : uris) {
-                cr.registerContentObserver(uri, false, this, UserHandle.USER_ALL);
+                final List<String> segments = uri.getPathSegments();
+                if (EVSettings.AUTHORITY.equals(uri.getAuthority()) && segments.size() == 2) {
+                    final Uri table = Uri.withAppendedPath(
+                            Uri.parse("content://" + EVSettings.AUTHORITY), segments.get(0));
+                    ArraySet<String> keys = mKeys.get(table);
+                    if (keys == null) {
+                        keys = new ArraySet<>();
+                        mKeys.put(table, keys);
+                    }
+                    keys.add(segments.get(1));
+                } else {
+                    cr.registerContentObserver(uri, false, this, UserHandle.USER_ALL);
+                }
+            }
+            for (int i = 0; i < mKeys.size(); i++) {
+                final ArraySet<String> keys = mKeys.valueAt(i);
+                EVSettings.registerKeyListenerForUser(cr, mKeys.keyAt(i),
+                        keys.toArray(new String[keys.size()]), UserHandle.USER_ALL,
+                        mHandler::post, this);
             }
 
             observe();
@@ -106,9 +131,19 @@ public abstract class VendorBaseFeature {
 
         public void unregister() {
             mContext.getContentResolver().unregisterContentObserver(this);
+            EVSettings.unregisterKeyListener(mContext.getContentResolver(), this);
+            mKeys.clear();
             unobserve();
         }
 
+        @Override
+        public void onKeysChanged(Uri table, int userId, EVSettings.ChangedKeys changes) {
+            // Only holds keys registered for this table
+            for (int i = 0; i < changes.size(); i++) {
+                onSettingsChanged(Uri.withAppendedPath(table, changes.keyAt(i)));
+            }
+        }
+
         @Override
         protected void update() {
             onSettingsChanged(null);
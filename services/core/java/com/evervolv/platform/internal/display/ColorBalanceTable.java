@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.platform.internal.display;
+
+import com.evervolv.internal.util.MathUtils;
+
+/**
+ * Maps color temperatures to color balance values using a power curve through the lower,
+ * day and upper temperatures. This assumes the correct configuration at the device level!
+ *
+ * The balance of every Kelvin in the temperature range is computed once, so transitions look
+ * it up instead of recomputing the curve. Temperatures out of range use the curve.
+ */
+final class ColorBalanceTable {
+
+    private final int mLowerTemperature;
+    private final double[] mCurve;
+    private final float mLowerBalance;
+    private final float mUpperBalance;
+    private final int[] mTable;
+
+    ColorBalanceTable(int lowerTemperature, int dayTemperature, int upperTemperature,
+            int lowerBalance, int upperBalance) {
+        mLowerTemperature = lowerTemperature;
+        mCurve = MathUtils.powerCurve(lowerTemperature, dayTemperature, upperTemperature);
+        mLowerBalance = lowerBalance;
+        mUpperBalance = upperBalance;
+
+        mTable = new int[Math.max(upperTemperature - lowerTemperature + 1, 0)];
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = compute(lowerTemperature + i);
+        }
+    }
+
+    /**
+     * @return The color balance of a temperature in Kelvin.
+     */
+    int get(int temperature) {
+        final int index = temperature - mLowerTemperature;
+        if (index >= 0 && index < mTable.length) {
+            return mTable[index];
+        }
+        return compute(temperature);
+    }
+
+    /**
+     * @return The color balance of a temperature in Kelvin, from the curve.
+     */
+    int compute(int temperature) {
+        final float z = (float) MathUtils.powerCurveToLinear(mCurve, temperature);
+        return Math.round(mLowerBalance + (mUpperBalance - mLowerBalance) * z);
+    }
+}
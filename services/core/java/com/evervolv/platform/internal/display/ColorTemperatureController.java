@@ -16,8 +16,6 @@
  */
 package com.evervolv.platform.internal.display;
 
-import android.animation.ValueAnimator;
-import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
@@ -54,7 +52,9 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private final boolean mUseTemperatureAdjustment;
     private final Range<Integer> mColorBalanceRange;
     private final Range<Integer> mColorTemperatureRange;
-    private final double[] mColorBalanceCurve;
+    // null without color balance
+    private final ColorBalanceTable mColorBalanceTable;
+    private final float[] mRGB = new float[3];
     private boolean mUseColorBalance;
 
     private final int mDefaultDayTemperature;
@@ -65,9 +65,18 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private int mNightTemperature;
 
     private AccelerateDecelerateInterpolator mInterpolator;
-    private ValueAnimator mAnimator;
+    private final TransitionScheduler mTransitions;
+    private TransitionScheduler.Transition mTransition;
+
+    // last color balance written by a transition step
+    private int mStepBalance;
+    // reused by transitions, which must not allocate
+    private final float[] mFromBalance = new float[1];
+    private final float[] mToBalance = new float[1];
+    private final int[] mStepValues = new int[1];
 
     private IColorBalance mColorBalance = null;
+    private final HalWriter.IntsTarget mColorBalanceTarget;
 
     private static final long TWILIGHT_ADJUSTMENT_TIME = DateUtils.HOUR_IN_MILLIS / 2;
 
@@ -76,14 +85,16 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private static final Uri DISPLAY_TEMPERATURE_NIGHT =
             EVSettings.System.getUriFor(EVSettings.System.DISPLAY_TEMPERATURE_NIGHT);
 
-    public ColorTemperatureController(Context context,
-            Handler handler, DisplayHardwareController displayHardware) {
-        super(context, handler);
+    public ColorTemperatureController(Context context, Handler handler, HalWriter halWriter,
+            DisplayHardwareController displayHardware, TransitionScheduler transitions) {
+        super(context, handler, halWriter);
         mDisplayHardware = displayHardware;
+        mTransitions = transitions;
 
         Range<Integer> adjustedRange;
         try {
             mColorBalance = IColorBalance.getService();
+            watchHal("IColorBalance", mColorBalance);
             vendor.lineage.livedisplay.V2_0.Range range = mColorBalance.getColorBalanceRange();
             if (range != null) {
                 adjustedRange = Range.create(range.min, range.max);
@@ -115,10 +126,16 @@ public class ColorTemperatureController extends LiveDisplayFeature {
                 mContext.getResources().getInteger(
                         com.evervolv.platform.internal.R.integer.config_maxColorTemperature));
 
-        mColorBalanceCurve = com.evervolv.internal.util.MathUtils.powerCurve(
+        mColorBalanceTable = mUseColorBalance ? new ColorBalanceTable(
                 mColorTemperatureRange.getLower(),
                 mDefaultDayTemperature,
-                mColorTemperatureRange.getUpper());
+                mColorTemperatureRange.getUpper(),
+                mColorBalanceRange.getLower(),
+                mColorBalanceRange.getUpper()) : null;
+        mColorBalanceTarget = mColorBalance != null
+                ? halWriter.intsTarget("IColorBalance", "colorBalance", 1,
+                        values -> mColorBalance.setColorBalance(values[0]))
+                : null;
 
         mInterpolator = new AccelerateDecelerateInterpolator();
     }
@@ -155,8 +172,8 @@ public class ColorTemperatureController extends LiveDisplayFeature {
 
     @Override
     protected void onScreenStateChanged() {
-        if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
-            mAnimator.cancel();
+        if (mTransitions.isRunning(mTransition) && !isScreenOn()) {
+            mTransitions.cancel(mTransition);
         } else {
             updateColorTemperature();
         }
@@ -255,40 +272,28 @@ public class ColorTemperatureController extends LiveDisplayFeature {
                     " target=" + balance + " duration=" + duration);
         }
 
-        if (mAnimator != null) {
-            mAnimator.cancel();
-            mAnimator.removeAllUpdateListeners();
-        }
+        mStepBalance = current;
+        mFromBalance[0] = current;
+        mToBalance[0] = balance;
+        mTransition = mTransitions.restart(mTransition, mFromBalance, mToBalance, duration,
+                mInterpolator, mStepListener);
+    }
 
-        mAnimator = ValueAnimator.ofInt(current, balance);
-        mAnimator.setDuration(duration);
-        mAnimator.setInterpolator(mInterpolator);
-        mAnimator.addUpdateListener(new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(final ValueAnimator animation) {
-                synchronized (ColorTemperatureController.this) {
-                    if (isScreenOn()) {
-                        int value = (int) animation.getAnimatedValue();
-                        try {
-                            mColorBalance.setColorBalance(value);
-                        } catch (RemoteException e) {
-                        }
-                    }
+    private final TransitionScheduler.Listener mStepListener = new TransitionScheduler.Listener() {
+        @Override
+        public void onTransitionStep(TransitionScheduler.Transition transition, float[] values) {
+            synchronized (ColorTemperatureController.this) {
+                // Only whole balance steps show on the panel
+                final int value = Math.round(values[0]);
+                if (transition != mTransition || !isScreenOn() || value == mStepBalance) {
+                    return;
                 }
+                mStepBalance = value;
+                mStepValues[0] = value;
+                mHalWriter.write(mColorBalanceTarget, mStepValues);
             }
-        });
-        mAnimator.start();
-    }
-
-    /*
-     * Map the color temperature to a color balance value using a power curve. This assumes the
-     * correct configuration at the device level!
-     */
-    private int mapColorTemperatureToBalance(int temperature) {
-        double z = com.evervolv.internal.util.MathUtils.powerCurveToLinear(mColorBalanceCurve, temperature);
-        return Math.round(MathUtils.lerp((float)mColorBalanceRange.getLower(),
-                (float)mColorBalanceRange.getUpper(), (float)z));
-    }
+        }
+    };
 
     private synchronized void setDisplayTemperature(int temperature) {
         if (!mColorTemperatureRange.contains(temperature)) {
@@ -299,14 +304,17 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         mColorTemperature = temperature;
 
         if (mUseColorBalance) {
-            int balance = mapColorTemperatureToBalance(temperature);
-            Slog.d(TAG, "Set color balance = " + balance + " (temperature=" + temperature + ")");
+            int balance = mColorBalanceTable.get(temperature);
+            if (DEBUG) {
+                Slog.d(TAG, "Set color balance = " + balance + " (temperature=" + temperature
+                        + ")");
+            }
             animateColorBalance(balance);
             return;
         }
 
-        final float[] rgb = ColorUtils.temperatureToRGB(temperature);
-        if (mDisplayHardware.setAdditionalAdjustment(rgb)) {
+        ColorUtils.temperatureToRGB(temperature, mRGB);
+        if (mDisplayHardware.setAdditionalAdjustment(mRGB)) {
             if (DEBUG) {
                 Slog.d(TAG, "Adjust display temperature to " + temperature + "K");
             }
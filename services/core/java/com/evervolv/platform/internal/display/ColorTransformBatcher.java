@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.platform.internal.display;
+
+import android.opengl.Matrix;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.server.display.color.DisplayTransformManager;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import static com.android.server.display.color.DisplayTransformManager.LEVEL_COLOR_MATRIX_GRAYSCALE;
+import static com.android.server.display.color.DisplayTransformManager.LEVEL_COLOR_MATRIX_NIGHT_DISPLAY;
+
+/**
+ * Batches the color transforms of all LiveDisplay features, one
+ * {@link DisplayTransformManager} level per feature.
+ *
+ * Features hand in their matrices and refresh requests as they change, and the batcher
+ * applies them on the next pass of the LiveDisplay handler. The matrices are not composed
+ * into one: each contribution keeps its own level, so it stays in its place among the
+ * transforms of the platform, calibration right after night display and reading mode right
+ * after grayscale, which it doesn't commute with. A pass therefore makes one
+ * {@link DisplayTransformManager#setColorMatrix} call per changed contribution. Only the
+ * latest matrix of a contribution within a pass is applied, nothing is sent for a
+ * contribution whose matrix is unchanged, and refresh requests of the pass are merged into
+ * one, dropped if a matrix was applied.
+ */
+final class ColorTransformBatcher {
+
+    private static final String TAG = "ColorTransformBatcher";
+
+    // Contributions, indices into CONTRIBUTION_LEVELS
+    static final int CONTRIBUTION_CALIBRATION = 0;
+    static final int CONTRIBUTION_READING = 1;
+
+    // The levels of the contributions, as they were applied at before being batched here
+    private static final int[] CONTRIBUTION_LEVELS = {
+        LEVEL_COLOR_MATRIX_NIGHT_DISPLAY + 1,
+        LEVEL_COLOR_MATRIX_GRAYSCALE + 1,
+    };
+
+    private static final float[] MATRIX_IDENTITY = new float[16];
+    static {
+        Matrix.setIdentityM(MATRIX_IDENTITY, 0);
+    }
+
+    private final Handler mHandler;
+    private final DisplayTransformManager mTransformManager;
+
+    // The matrix of each contribution, identity if it has none
+    @GuardedBy("this")
+    private final float[][] mMatrices = new float[CONTRIBUTION_LEVELS.length][16];
+    @GuardedBy("this")
+    private boolean mPassPending;
+    @GuardedBy("this")
+    private boolean mRefreshPending;
+
+    // Only touched by applyPending(), on the handler. A level nothing was applied at is
+    // identity.
+    private final float[][] mApplied = new float[CONTRIBUTION_LEVELS.length][16];
+    private final float[] mTempMatrix = new float[16];
+
+    private int mPassCount;
+    private int mApplyCount;
+    private int mRefreshCount;
+
+    private final Runnable mPassRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyPending();
+        }
+    };
+
+    ColorTransformBatcher(Handler handler, DisplayTransformManager transformManager) {
+        mHandler = handler;
+        mTransformManager = transformManager;
+        for (int i = 0; i < CONTRIBUTION_LEVELS.length; i++) {
+            Matrix.setIdentityM(mMatrices[i], 0);
+            Matrix.setIdentityM(mApplied[i], 0);
+        }
+    }
+
+    /**
+     * @return Whether color matrices can be applied at all.
+     */
+    boolean hasTransformManager() {
+        return mTransformManager != null;
+    }
+
+    /**
+     * Sets the matrix of a contribution, to be applied on the next pass.
+     *
+     * @param contribution one of the CONTRIBUTION_* constants
+     * @param matrix a 4x4 column-major matrix, or null to remove the contribution
+     */
+    synchronized void setMatrix(int contribution, float[] matrix) {
+        final float[] current = mMatrices[contribution];
+        if (Arrays.equals(current, matrix == null ? MATRIX_IDENTITY : matrix)) {
+            return;
+        }
+        System.arraycopy(matrix == null ? MATRIX_IDENTITY : matrix, 0, current, 0, 16);
+        schedulePass();
+    }
+
+    /**
+     * Asks SurfaceFlinger to repaint on the next pass, after display hardware registers were
+     * written. Requests of the same pass are merged, and dropped if a matrix was applied.
+     */
+    synchronized void requestRefresh() {
+        mRefreshPending = true;
+        schedulePass();
+    }
+
+    @GuardedBy("this")
+    private void schedulePass() {
+        if (!mPassPending) {
+            mPassPending = true;
+            mHandler.post(mPassRunnable);
+        }
+    }
+
+    private void applyPending() {
+        boolean refresh;
+        synchronized (this) {
+            mPassPending = false;
+            refresh = mRefreshPending;
+            mRefreshPending = false;
+            mPassCount++;
+        }
+
+        for (int i = 0; i < CONTRIBUTION_LEVELS.length; i++) {
+            synchronized (this) {
+                System.arraycopy(mMatrices[i], 0, mTempMatrix, 0, 16);
+            }
+            if (mTransformManager == null || Arrays.equals(mTempMatrix, mApplied[i])) {
+                continue;
+            }
+            System.arraycopy(mTempMatrix, 0, mApplied[i], 0, 16);
+            mApplyCount++;
+            if (LiveDisplayFeature.DEBUG) {
+                Slog.d(TAG, "Applying " + Arrays.toString(mApplied[i]) + " at level "
+                        + CONTRIBUTION_LEVELS[i]);
+            }
+            // The manager keeps the array, so hand it a copy. Applying also repaints.
+            mTransformManager.setColorMatrix(CONTRIBUTION_LEVELS[i],
+                    Arrays.equals(mApplied[i], MATRIX_IDENTITY) ? null : mApplied[i].clone());
+            refresh = false;
+        }
+
+        if (refresh) {
+            screenRefresh();
+        }
+    }
+
+    /**
+     * Tell SurfaceFlinger to repaint the screen. This is called after updating
+     * hardware registers for display calibration to have an immediate effect.
+     */
+    private void screenRefresh() {
+        mRefreshCount++;
+        try {
+            final IBinder flinger = ServiceManager.getService("SurfaceFlinger");
+            if (flinger != null) {
+                final Parcel data = Parcel.obtain();
+                data.writeInterfaceToken("android.ui.ISurfaceComposer");
+                flinger.transact(1004, data, null, 0);
+                data.recycle();
+            }
+        } catch (RemoteException ex) {
+            Slog.e(TAG, "Failed to refresh screen", ex);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("ColorTransformBatcher State:");
+        synchronized (this) {
+            for (int i = 0; i < mMatrices.length; i++) {
+                pw.println("  contribution " + i + " (level " + CONTRIBUTION_LEVELS[i] + ")="
+                        + Arrays.toString(mMatrices[i]));
+            }
+        }
+        for (int i = 0; i < mApplied.length; i++) {
+            pw.println("  applied " + i + "=" + Arrays.toString(mApplied[i]));
+        }
+        pw.println("  passes=" + mPassCount + " applied=" + mApplyCount
+                + " refreshes=" + mRefreshCount);
+    }
+}
@@ -16,17 +16,11 @@
  */
 package com.evervolv.platform.internal.display;
 
-import android.animation.FloatArrayEvaluator;
-import android.animation.ValueAnimator;
-import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.content.Context;
 import android.hardware.display.ColorDisplayManager;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.IBinder;
-import android.os.Parcel;
 import android.os.RemoteException;
-import android.os.ServiceManager;
 import android.util.MathUtils;
 import android.util.Slog;
 import android.view.animation.LinearInterpolator;
@@ -44,7 +38,7 @@ import evervolv.provider.EVSettings;
 
 import vendor.lineage.livedisplay.V2_0.IDisplayColorCalibration;
 
-import static com.android.server.display.color.DisplayTransformManager.LEVEL_COLOR_MATRIX_NIGHT_DISPLAY;
+import static com.evervolv.platform.internal.display.ColorTransformBatcher.CONTRIBUTION_CALIBRATION;
 
 public class DisplayHardwareController extends LiveDisplayFeature {
 
@@ -52,14 +46,29 @@ public class DisplayHardwareController extends LiveDisplayFeature {
 
     private IDisplayColorCalibration mDisplayColorCalibration = null;
 
+    private final ColorTransformBatcher mTransformBatcher;
+
     // hardware capabilities
     private final boolean mUseColorAdjustment;
 
     // color adjustment holders
     private final float[] mAdditionalAdjustment = getDefaultAdjustment();
     private final float[] mColorAdjustment = getDefaultAdjustment();
+    private final float[] mTargetColors = getDefaultAdjustment();
+
+    private final TransitionScheduler mTransitions;
+    private TransitionScheduler.Transition mTransition;
+    private final LinearInterpolator mInterpolator = new LinearInterpolator();
+
+    // last calibration written by a transition step
+    private final int[] mStepColors = new int[3];
+    // reused by transitions, which must not allocate
+    private final float[] mStartColors = new float[3];
+    private final float[] mCalibrationMatrix = new float[16];
+    private final ArrayList<Integer> mCalibrationList = new ArrayList<Integer>(3);
+    private final Integer[] mBoxedColors;
 
-    private ValueAnimator mAnimator;
+    private final HalWriter.IntsTarget mCalibrationTarget;
 
     private final int mMaxColor;
 
@@ -67,26 +76,30 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private static final Uri DISPLAY_COLOR_ADJUSTMENT =
             EVSettings.System.getUriFor(EVSettings.System.DISPLAY_COLOR_ADJUSTMENT);
 
-
-    private static final int LEVEL_COLOR_MATRIX_CALIB = LEVEL_COLOR_MATRIX_NIGHT_DISPLAY + 1;
-
     private static final int COLOR_CALIBRATION_MIN_INDEX = 3;
     private static final int COLOR_CALIBRATION_MAX_INDEX = 4;
 
     private static final int CALIBRATION_MIN = 0;
     private static final int CALIBRATION_MAX = 255;
 
-    private int[] mCurColors = { CALIBRATION_MAX, CALIBRATION_MAX, CALIBRATION_MAX };
+    // calibration values boxed once for the HAL, up to this one
+    private static final int MAX_BOXED_COLOR = 1023;
 
-    public DisplayHardwareController(Context context, Handler handler) {
-        super(context, handler);
+    private final int[] mCurColors = { CALIBRATION_MAX, CALIBRATION_MAX, CALIBRATION_MAX };
+
+    public DisplayHardwareController(Context context, Handler handler, HalWriter halWriter,
+            ColorTransformBatcher transformBatcher, TransitionScheduler transitions) {
+        super(context, handler, halWriter);
+        mTransformBatcher = transformBatcher;
+        mTransitions = transitions;
 
         try {
             mDisplayColorCalibration = IDisplayColorCalibration.getService();
+            watchHal("IDisplayColorCalibration", mDisplayColorCalibration);
         } catch (NoSuchElementException | RemoteException e) {
         }
         mUseColorAdjustment = mDisplayColorCalibration != null
-            || (mAcceleratedTransform && mTransformManager != null);
+            || (mAcceleratedTransform && mTransformBatcher.hasTransformManager());
 
         if (mUseColorAdjustment) {
             mMaxColor = getDisplayColorCalibrationMax();
@@ -94,6 +107,15 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         } else {
             mMaxColor = 0;
         }
+
+        if (mDisplayColorCalibration != null) {
+            mBoxedColors = new Integer[MathUtils.constrain(mMaxColor, 0, MAX_BOXED_COLOR) + 1];
+            mCalibrationTarget = halWriter.intsTarget("IDisplayColorCalibration", "calibration",
+                    3, values -> mDisplayColorCalibration.setCalibration(toList(values)));
+        } else {
+            mBoxedColors = null;
+            mCalibrationTarget = null;
+        }
     }
 
     @Override
@@ -133,8 +155,8 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     @Override
     protected synchronized void onScreenStateChanged() {
         if (mUseColorAdjustment) {
-            if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
-                mAnimator.cancel();
+            if (mTransitions.isRunning(mTransition) && !isScreenOn()) {
+                mTransitions.cancel(mTransition);
             } else if (isScreenOn()) {
                 updateColorAdjustment();
             }
@@ -158,7 +180,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             return;
         }
 
-        final float[] rgb = getDefaultAdjustment();
+        final float[] rgb = mTargetColors;
 
         copyColors(mColorAdjustment, rgb);
         rgb[0] *= mAdditionalAdjustment[0];
@@ -179,16 +201,23 @@ public class DisplayHardwareController extends LiveDisplayFeature {
      */
     private synchronized void animateDisplayColor(float[] targetColors) {
 
-        // always start with the current values in the hardware
-        int[] currentInts = getDisplayColorCalibration();
-        float[] currentColors = new float[] {
-                (float)currentInts[0] / (float)mMaxColor,
-                (float)currentInts[1] / (float)mMaxColor,
-                (float)currentInts[2] / (float)mMaxColor };
+        // start with the current values in the hardware, which a running transition wrote
+        if (!mTransitions.isRunning(mTransition)) {
+            final int[] currentInts = getDisplayColorCalibration();
+            if (currentInts == null) {
+                return;
+            }
+            System.arraycopy(currentInts, 0, mStepColors, 0, mStepColors.length);
+        }
+        final float[] currentColors = mStartColors;
+        for (int i = 0; i < currentColors.length; i++) {
+            currentColors[i] = (float) mStepColors[i] / (float) mMaxColor;
+        }
 
         if (currentColors[0] == targetColors[0] &&
                 currentColors[1] == targetColors[1] &&
                 currentColors[2] == targetColors[2]) {
+            mTransitions.cancel(mTransition);
             return;
         }
 
@@ -203,51 +232,34 @@ public class DisplayHardwareController extends LiveDisplayFeature {
                     " targetColors=" + Arrays.toString(targetColors) + " duration=" + duration);
         }
 
-        if (mAnimator != null) {
-            mAnimator.cancel();
-            mAnimator.removeAllUpdateListeners();
-        }
-
-        mAnimator = ValueAnimator.ofObject(
-                new FloatArrayEvaluator(new float[CALIBRATION_MIN]), currentColors, targetColors);
-        mAnimator.setDuration(duration);
-        mAnimator.setInterpolator(new LinearInterpolator());
-        mAnimator.addUpdateListener(new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(final ValueAnimator animation) {
-                synchronized (DisplayHardwareController.this) {
-                    if (isScreenOn()) {
-                        float[] value = (float[]) animation.getAnimatedValue();
-                        setDisplayColorCalibration(new int[] {
-                                (int) (value[0] * mMaxColor),
-                                (int) (value[1] * mMaxColor),
-                                (int) (value[2] * mMaxColor)
-                        });
-                        screenRefresh();
-                    }
-                }
-            }
-        });
-        mAnimator.start();
+        mTransition = mTransitions.restart(mTransition, currentColors, targetColors, duration,
+                mInterpolator, mStepListener);
     }
 
-    /**
-     * Tell SurfaceFlinger to repaint the screen. This is called after updating
-     * hardware registers for display calibration to have an immediate effect.
-     */
-    private void screenRefresh() {
-        try {
-            final IBinder flinger = ServiceManager.getService("SurfaceFlinger");
-            if (flinger != null) {
-                final Parcel data = Parcel.obtain();
-                data.writeInterfaceToken("android.ui.ISurfaceComposer");
-                flinger.transact(1004, data, null, 0);
-                data.recycle();
+    private final TransitionScheduler.Listener mStepListener = new TransitionScheduler.Listener() {
+        @Override
+        public void onTransitionStep(TransitionScheduler.Transition transition, float[] value) {
+            synchronized (DisplayHardwareController.this) {
+                if (transition != mTransition || !isScreenOn()) {
+                    return;
+                }
+                final int r = (int) (value[0] * mMaxColor);
+                final int g = (int) (value[1] * mMaxColor);
+                final int b = (int) (value[2] * mMaxColor);
+                // Steps finer than the calibration range don't show on the panel
+                if (r == mStepColors[0] && g == mStepColors[1] && b == mStepColors[2]) {
+                    return;
+                }
+                mStepColors[0] = r;
+                mStepColors[1] = g;
+                mStepColors[2] = b;
+                setDisplayColorCalibration(mStepColors);
+                if (mDisplayColorCalibration != null) {
+                    mTransformBatcher.requestRefresh();
+                }
             }
-        } catch (RemoteException ex) {
-            Slog.e(TAG, "Failed to refresh screen", ex);
         }
-    }
+    };
 
     /**
      * Ensure all values are within range
@@ -357,7 +369,8 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     }
 
     private float[] rgbToMatrix(int[] rgb) {
-        float[] mat = new float[16];
+        final float[] mat = mCalibrationMatrix;
+        Arrays.fill(mat, 0f);
 
         for (int i = 0; i < CALIBRATION_MIN; i++) {
             // Sanity check
@@ -386,11 +399,6 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             }
         }
 
-        if (mCurColors == null || mCurColors.length < CALIBRATION_MIN) {
-            Slog.e(TAG, "Invalid color calibration string");
-            return null;
-        }
-
         int[] currentCalibration = new int[CALIBRATION_MAX + 1];
         for (int i = 0; i < COLOR_CALIBRATION_MIN_INDEX; i++) {
             currentCalibration[i] = mCurColors[i];
@@ -445,23 +453,43 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_MAX_INDEX, 0);
     }
 
-    boolean setDisplayColorCalibration(int[] rgb) {
-        if (!mUseColorAdjustment) {
+    /**
+     * Writes a calibration, without allocating once the values were boxed for the HAL.
+     *
+     * @param rgb The red, green and blue calibration, only read during the call.
+     */
+    synchronized boolean setDisplayColorCalibration(int[] rgb) {
+        if (!mUseColorAdjustment || rgb == null || rgb.length < 3) {
             return false;
         }
 
         if (mDisplayColorCalibration != null) {
-            try {
-                return mDisplayColorCalibration.setCalibration(
-                       new ArrayList<Integer>(Arrays.asList(rgb[0], rgb[1], rgb[2])));
-            } catch (RemoteException e) {
-                return false;
-            }
+            return mHalWriter.write(mCalibrationTarget, rgb);
         }
 
-        mCurColors = rgb;
-        mTransformManager.setColorMatrix(LEVEL_COLOR_MATRIX_CALIB, rgbToMatrix(rgb));
+        System.arraycopy(rgb, 0, mCurColors, 0, mCurColors.length);
+        mTransformBatcher.setMatrix(CONTRIBUTION_CALIBRATION, rgbToMatrix(mCurColors));
 
         return true;
     }
+
+    /*
+     * The HAL takes boxed values, so box each calibration value once and reuse the list.
+     * Only called by mCalibrationTarget, under the lock of setDisplayColorCalibration().
+     */
+    private ArrayList<Integer> toList(int[] rgb) {
+        mCalibrationList.clear();
+        for (int i = 0; i < 3; i++) {
+            final int value = rgb[i];
+            if (value < 0 || value >= mBoxedColors.length) {
+                mCalibrationList.add(value);
+                continue;
+            }
+            if (mBoxedColors[value] == null) {
+                mBoxedColors[value] = value;
+            }
+            mCalibrationList.add(mBoxedColors[value]);
+        }
+        return mCalibrationList;
+    }
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.platform.internal.display;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * Write-through layer in front of the LiveDisplay HALs.
+ *
+ * Every write names its HAL and the setting it targets, and the value it applies. A write of
+ * the value the setting already holds is dropped, and posted writes of the same setting
+ * within one pass of the executor are merged into the latest. The HAL is only reached through
+ * the {@link HalCall} of the write, and time is read from the clock the writer is given, so
+ * it runs on the host with fake HALs. Calls, drops, merges, failures and latencies are
+ * counted per HAL for dumps.
+ *
+ * Settings written on every step of a transition are written through an {@link IntsTarget}
+ * instead, which keeps its applied values in place and hands the values to a call created
+ * once, so these writes don't allocate.
+ *
+ * Panels may lose their state while the screen is off or when a display mode is set, and a
+ * HAL loses it when its service dies, so the remembered values are forgotten with
+ * {@link #invalidate()} or {@link #invalidate(String)} then.
+ */
+final class HalWriter {
+
+    /**
+     * Applies a value to a HAL.
+     */
+    interface HalCall {
+        /**
+         * @return Whether the HAL accepted the value.
+         * @throws Exception if the HAL can't be reached, which counts as a failure.
+         */
+        boolean call() throws Exception;
+    }
+
+    /**
+     * Applies the int values of an {@link IntsTarget} to a HAL.
+     */
+    interface IntsCall {
+        /**
+         * @param values The values, only valid during the call.
+         * @return Whether the HAL accepted the values.
+         * @throws Exception if the HAL can't be reached, which counts as a failure.
+         */
+        boolean call(int[] values) throws Exception;
+    }
+
+    /**
+     * A setting of a HAL taking a fixed number of ints, created by {@link #intsTarget}.
+     */
+    static final class IntsTarget {
+        private final String mHal;
+        private final String mName;
+        private final IntsCall mCall;
+        private final HalStats mStats;
+
+        // Guarded by the writer
+        private final int[] mApplied;
+        private boolean mHasApplied;
+
+        private IntsTarget(String hal, String name, int size, IntsCall call, HalStats stats) {
+            mHal = hal;
+            mName = name;
+            mCall = call;
+            mStats = stats;
+            mApplied = new int[size];
+        }
+    }
+
+    private static final class PendingWrite {
+        final String hal;
+        final Object value;
+        final HalCall call;
+
+        PendingWrite(String hal, Object value, HalCall call) {
+            this.hal = hal;
+            this.value = value;
+            this.call = call;
+        }
+    }
+
+    private static final class HalStats {
+        int calls;
+        int failures;
+        int dropped;
+        int merged;
+        long totalNanos;
+        long maxNanos;
+        String lastFailure;
+    }
+
+    private final Executor mExecutor;
+    private final LongSupplier mNanoClock;
+
+    // Last value applied per "hal/target"
+    @GuardedBy("this")
+    private final HashMap<String, Object> mApplied = new HashMap<String, Object>();
+    // Posted writes, in the order they were first posted
+    @GuardedBy("this")
+    private final LinkedHashMap<String, PendingWrite> mPending =
+            new LinkedHashMap<String, PendingWrite>();
+    @GuardedBy("this")
+    private final LinkedHashMap<String, HalStats> mStats = new LinkedHashMap<String, HalStats>();
+    @GuardedBy("this")
+    private final ArrayList<IntsTarget> mIntsTargets = new ArrayList<IntsTarget>();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param executor Runs posted writes, e.g. by posting to the LiveDisplay handler.
+     * @param nanoClock A monotonic clock in nanoseconds, to time the calls with.
+     */
+    HalWriter(Executor executor, LongSupplier nanoClock) {
+        mExecutor = executor;
+        mNanoClock = nanoClock;
+    }
+
+    /**
+     * Applies a value now, unless the target already holds it.
+     *
+     * @param hal The name of the HAL.
+     * @param target The setting of the HAL the value is for.
+     * @param value The value, compared by content if it is an array. Must not be modified
+     *              afterwards.
+     * @param call Applies the value.
+     * @return Whether the target holds the value.
+     */
+    boolean write(String hal, String target, Object value, HalCall call) {
+        final String key = hal + "/" + target;
+        synchronized (this) {
+            // Supersedes any posted write of the target
+            if (mPending.remove(key) != null) {
+                getStats(hal).merged++;
+            }
+            if (Objects.deepEquals(mApplied.get(key), value)) {
+                getStats(hal).dropped++;
+                return true;
+            }
+        }
+        return apply(key, hal, value, call);
+    }
+
+    /**
+     * Creates a setting which is written without allocating.
+     *
+     * @param hal The name of the HAL.
+     * @param name The setting of the HAL.
+     * @param size The number of values of the setting.
+     * @param call Applies the values.
+     */
+    synchronized IntsTarget intsTarget(String hal, String name, int size, IntsCall call) {
+        final IntsTarget target = new IntsTarget(hal, name, size, call, getStats(hal));
+        mIntsTargets.add(target);
+        return target;
+    }
+
+    /**
+     * Applies values now, unless the target already holds them. Writes of one target must
+     * not run concurrently.
+     *
+     * @param target The setting.
+     * @param values The values, of the size of the target. Only read during the call.
+     * @return Whether the target holds the values.
+     */
+    boolean write(IntsTarget target, int[] values) {
+        synchronized (this) {
+            if (target.mHasApplied && Arrays.equals(target.mApplied, values)) {
+                target.mStats.dropped++;
+                return true;
+            }
+        }
+
+        boolean applied = false;
+        Exception failure = null;
+        final long start = mNanoClock.getAsLong();
+        try {
+            applied = target.mCall.call(values);
+        } catch (Exception e) {
+            failure = e;
+        }
+        final long duration = mNanoClock.getAsLong() - start;
+
+        synchronized (this) {
+            noteCall(target.mStats, duration, applied, failure);
+            target.mHasApplied = applied;
+            if (applied) {
+                System.arraycopy(values, 0, target.mApplied, 0, target.mApplied.length);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Applies a call now, whatever was applied before, for settings which must never be
+     * skipped. It supersedes and forgets nothing, and is counted like a write.
+     *
+     * @param hal The name of the HAL.
+     * @param call Applies the value.
+     * @return Whether the HAL accepted the value.
+     */
+    boolean call(String hal, HalCall call) {
+        return apply(null, hal, null, call);
+    }
+
+    /**
+     * Applies a value on the next pass of the executor. Writes of the same target posted in
+     * the meantime replace it, and it is dropped if the target already holds the value then.
+     *
+     * @see #write
+     */
+    void post(String hal, String target, Object value, HalCall call) {
+        final String key = hal + "/" + target;
+        synchronized (this) {
+            if (mPending.put(key, new PendingWrite(hal, value, call)) != null) {
+                getStats(hal).merged++;
+            } else if (mPending.size() == 1) {
+                mExecutor.execute(mFlushRunnable);
+            }
+        }
+    }
+
+    /**
+     * Forgets every applied value, so the next write of each target reaches its HAL.
+     */
+    synchronized void invalidate() {
+        mApplied.clear();
+        for (int i = 0; i < mIntsTargets.size(); i++) {
+            mIntsTargets.get(i).mHasApplied = false;
+        }
+    }
+
+    /**
+     * Forgets the values applied to one HAL, e.g. once its service died.
+     *
+     * @param hal The name of the HAL.
+     */
+    synchronized void invalidate(String hal) {
+        final String prefix = hal + "/";
+        final Iterator<String> keys = mApplied.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+        for (int i = 0; i < mIntsTargets.size(); i++) {
+            final IntsTarget target = mIntsTargets.get(i);
+            if (target.mHal.equals(hal)) {
+                target.mHasApplied = false;
+            }
+        }
+    }
+
+    private void flush() {
+        while (true) {
+            final String key;
+            final PendingWrite write;
+            synchronized (this) {
+                final Iterator<Map.Entry<String, PendingWrite>> pending =
+                        mPending.entrySet().iterator();
+                if (!pending.hasNext()) {
+                    return;
+                }
+                final Map.Entry<String, PendingWrite> entry = pending.next();
+                pending.remove();
+                key = entry.getKey();
+                write = entry.getValue();
+                if (Objects.deepEquals(mApplied.get(key), write.value)) {
+                    getStats(write.hal).dropped++;
+                    continue;
+                }
+            }
+            apply(key, write.hal, write.value, write.call);
+        }
+    }
+
+    /**
+     * @param key The target to remember the value for, or null to remember nothing.
+     */
+    private boolean apply(String key, String hal, Object value, HalCall call) {
+        boolean applied = false;
+        Exception failure = null;
+        final long start = mNanoClock.getAsLong();
+        try {
+            applied = call.call();
+        } catch (Exception e) {
+            failure = e;
+        }
+        final long duration = mNanoClock.getAsLong() - start;
+
+        synchronized (this) {
+            noteCall(getStats(hal), duration, applied, failure);
+            if (key != null) {
+                if (applied) {
+                    mApplied.put(key, value);
+                } else {
+                    mApplied.remove(key);
+                }
+            }
+        }
+        return applied;
+    }
+
+    @GuardedBy("this")
+    private void noteCall(HalStats stats, long duration, boolean applied, Exception failure) {
+        stats.calls++;
+        stats.totalNanos += duration;
+        stats.maxNanos = Math.max(stats.maxNanos, duration);
+        if (!applied) {
+            stats.failures++;
+            stats.lastFailure = failure != null ? failure.toString() : "rejected";
+        }
+    }
+
+    @GuardedBy("this")
+    private HalStats getStats(String hal) {
+        HalStats stats = mStats.get(hal);
+        if (stats == null) {
+            stats = new HalStats();
+            mStats.put(hal, stats);
+        }
+        return stats;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("HalWriter State:");
+        pw.println("  pending=" + mPending.size() + " applied=" + mApplied.size());
+        for (int i = 0; i < mIntsTargets.size(); i++) {
+            final IntsTarget target = mIntsTargets.get(i);
+            pw.println("  " + target.mHal + "/" + target.mName + "="
+                    + (target.mHasApplied ? Arrays.toString(target.mApplied) : "unknown"));
+        }
+        for (Map.Entry<String, HalStats> entry : mStats.entrySet()) {
+            final HalStats stats = entry.getValue();
+            pw.println("  " + entry.getKey() + ": calls=" + stats.calls
+                    + " failures=" + stats.failures + " dropped=" + stats.dropped
+                    + " merged=" + stats.merged
+                    + " avgUs=" + (stats.calls > 0 ? stats.totalNanos / stats.calls / 1000 : 0)
+                    + " maxUs=" + stats.maxNanos / 1000
+                    + (stats.lastFailure != null ? " lastFailure=" + stats.lastFailure : ""));
+        }
+    }
+}
@@ -18,7 +18,9 @@ package com.evervolv.platform.internal.display;
 
 import android.content.Context;
 import android.hardware.display.ColorDisplayManager;
+import android.hidl.base.V1_0.IBase;
 import android.os.Handler;
+import android.os.RemoteException;
 import android.util.Log;
 
 import com.android.server.LocalServices;
@@ -48,11 +50,13 @@ public abstract class LiveDisplayFeature extends VendorBaseFeature {
     protected final TwilightManager mTwilightManager;
     protected final boolean mAcceleratedTransform;
     protected final DisplayTransformManager mTransformManager;
+    protected final HalWriter mHalWriter;
 
     private State mState;
 
-    public LiveDisplayFeature(Context context, Handler handler) {
+    public LiveDisplayFeature(Context context, Handler handler, HalWriter halWriter) {
         super(context, handler);
+        mHalWriter = halWriter;
         mNightDisplayAvailable = ColorDisplayManager.isNightDisplayAvailable(mContext);
         mTwilightManager = LocalServices.getService(TwilightManager.class);
         mAcceleratedTransform =
@@ -60,6 +64,24 @@ public abstract class LiveDisplayFeature extends VendorBaseFeature {
         mTransformManager = LocalServices.getService(DisplayTransformManager.class);
     }
 
+    /**
+     * Forgets what was written to a HAL once its service dies, so the next writes reach
+     * the service again when it is back.
+     *
+     * @param hal The name the HAL is written under.
+     * @param service The service, or null if it isn't present.
+     */
+    protected final void watchHal(String hal, IBase service) {
+        if (service == null) {
+            return;
+        }
+        try {
+            service.linkToDeath(cookie -> mHalWriter.invalidate(hal), 0);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to watch " + hal, e);
+        }
+    }
+
     public abstract boolean getCapabilities(final BitSet caps);
 
     protected abstract void onUpdate();
@@ -31,11 +31,13 @@ import android.os.PowerManager.ServiceType;
 import android.os.PowerManagerInternal;
 import android.os.PowerSaveState;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.view.Display;
 
 import com.android.server.LocalServices;
 import com.android.server.ServiceThread;
+import com.android.server.display.color.DisplayTransformManager;
 import com.android.server.twilight.TwilightListener;
 import com.android.server.twilight.TwilightManager;
 import com.android.server.twilight.TwilightState;
@@ -100,6 +102,10 @@ public class LiveDisplayService extends VendorService {
     private PictureAdjustmentController mPAC;
     private SimpleDisplayController mSDC;
 
+    private ColorTransformBatcher mTransformBatcher;
+    private TransitionScheduler mTransitions;
+    private HalWriter mHalWriter;
+
     private LiveDisplayConfig mConfig;
 
     static int MODE_CHANGED = 1;
@@ -161,19 +167,26 @@ public class LiveDisplayService extends VendorService {
         } else if (phase == PHASE_BOOT_COMPLETED) {
             mAwaitingNudge = getSunsetCounter() < 1;
 
-            mSDC = new SimpleDisplayController(mContext, mHandler);
+            mTransformBatcher = new ColorTransformBatcher(mHandler,
+                    LocalServices.getService(DisplayTransformManager.class));
+            mTransitions = new TransitionScheduler(mHandler);
+            mHalWriter = new HalWriter(mHandler::post, SystemClock::elapsedRealtimeNanos);
+
+            mSDC = new SimpleDisplayController(mContext, mHandler, mHalWriter, mTransformBatcher);
             mFeatures.add(mSDC);
 
-            mDHC = new DisplayHardwareController(mContext, mHandler);
+            mDHC = new DisplayHardwareController(mContext, mHandler, mHalWriter, mTransformBatcher,
+                    mTransitions);
             mFeatures.add(mDHC);
 
-            mCTC = new ColorTemperatureController(mContext, mHandler, mDHC);
+            mCTC = new ColorTemperatureController(mContext, mHandler, mHalWriter, mDHC,
+                    mTransitions);
             mFeatures.add(mCTC);
 
-            mOMC = new OutdoorModeController(mContext, mHandler);
+            mOMC = new OutdoorModeController(mContext, mHandler, mHalWriter);
             mFeatures.add(mOMC);
 
-            mPAC = new PictureAdjustmentController(mContext, mHandler);
+            mPAC = new PictureAdjustmentController(mContext, mHandler, mHalWriter);
             mFeatures.add(mPAC);
 
             // Get capabilities, throw out any unused features
@@ -334,6 +347,15 @@ public class LiveDisplayService extends VendorService {
             for (int i = 0; i < mFeatures.size(); i++) {
                 mFeatures.get(i).dump(pw);
             }
+            if (mTransformBatcher != null) {
+                mTransformBatcher.dump(pw);
+            }
+            if (mTransitions != null) {
+                mTransitions.dump(pw);
+            }
+            if (mHalWriter != null) {
+                mHalWriter.dump(pw);
+            }
         }
 
         @Override
@@ -424,6 +446,10 @@ public class LiveDisplayService extends VendorService {
                 boolean screenOn = isScreenOn();
                 if (screenOn != mState.mScreenOn) {
                     mState.mScreenOn = screenOn;
+                    if (screenOn && mHalWriter != null) {
+                        // The panel may have lost what was written before it turned off
+                        mHalWriter.invalidate();
+                    }
                     updateFeatures(DISPLAY_CHANGED);
                 }
             }
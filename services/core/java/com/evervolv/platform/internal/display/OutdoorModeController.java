@@ -56,11 +56,12 @@ public class OutdoorModeController extends LiveDisplayFeature {
     // sliding window for sensor event smoothing
     private static final int SENSOR_WINDOW_MS = 3000;
 
-    public OutdoorModeController(Context context, Handler handler) {
-        super(context, handler);
+    public OutdoorModeController(Context context, Handler handler, HalWriter halWriter) {
+        super(context, handler, halWriter);
 
         try {
             mSunlightEnhancement = ISunlightEnhancement.getService();
+            watchHal("ISunlightEnhancement", mSunlightEnhancement);
         } catch (NoSuchElementException | RemoteException e) {
         }
         mUseOutdoorMode = mSunlightEnhancement != null;
@@ -118,10 +119,7 @@ public class OutdoorModeController extends LiveDisplayFeature {
         // face if they turn it back on in normal conditions
         if (!isScreenOn() && getMode() != MODE_OUTDOOR) {
             mIsOutdoor = false;
-            try {
-                mSunlightEnhancement.setEnabled(false);
-            } catch (NoSuchElementException | RemoteException e) {
-            }
+            setSunlightEnhancement(false);
         }
     }
 
@@ -221,13 +219,16 @@ public class OutdoorModeController extends LiveDisplayFeature {
                     }
                 }
             }
-            try {
-                mSunlightEnhancement.setEnabled(enabled);
-            } catch (NoSuchElementException | RemoteException e) {
-            }
+            setSunlightEnhancement(enabled);
         }
     }
 
+    private void setSunlightEnhancement(boolean enabled) {
+        // Sensor transitions can flip this quickly, only the latest state matters
+        mHalWriter.post("ISunlightEnhancement", "enabled", enabled,
+                () -> mSunlightEnhancement.setEnabled(enabled));
+    }
+
     private final AmbientLuxObserver.TransitionListener mListener =
             new AmbientLuxObserver.TransitionListener() {
         @Override
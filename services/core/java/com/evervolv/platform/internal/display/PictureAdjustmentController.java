@@ -57,11 +57,12 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
 
     private List<Range<Float>> mRanges = new ArrayList<Range<Float>>();
 
-    public PictureAdjustmentController(Context context, Handler handler) {
-        super(context, handler);
+    public PictureAdjustmentController(Context context, Handler handler, HalWriter halWriter) {
+        super(context, handler, halWriter);
 
         try {
             mDisplayModes = IDisplayModes.getService();
+            watchHal("IDisplayModes", mDisplayModes);
         } catch (NoSuchElementException | RemoteException e) {
         }
         mHasDisplayModes = mDisplayModes != null;
@@ -81,6 +82,7 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
 
         try {
             mPictureAdjustment = IPictureAdjustment.getService();
+            watchHal("IPictureAdjustment", mPictureAdjustment);
         } catch (NoSuchElementException | RemoteException e) {
         }
         boolean usePA = mPictureAdjustment != null;
@@ -160,11 +162,8 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
             if (hsic == null)
                 return;
 
-            try {
-                mPictureAdjustment.setPictureAdjustment(toCompat(hsic));
-            } catch (RemoteException e) {
-                Slog.e(TAG, "Failed to set picture adjustment! " + hsic.toString());
-            }
+            mHalWriter.post("IPictureAdjustment", "pictureAdjustment", hsic.toFloatArray(),
+                    () -> mPictureAdjustment.setPictureAdjustment(toCompat(hsic)));
         }
     }
 
@@ -395,11 +394,13 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
      * @return true if setting the mode was successful
      */
     boolean setDisplayMode(DisplayMode mode, boolean makeDefault) {
-        try {
-            if (mHasDisplayModes) {
-                return mDisplayModes.setDisplayMode(mode.id, makeDefault);
-            }
-        } catch (RemoteException e) {
+        if (mHasDisplayModes) {
+            // Never skipped, the panel may have left the mode on its own. A mode reprograms
+            // the panel, so whatever was written to it before has to be written again.
+            final boolean set = mHalWriter.call("IDisplayModes",
+                    () -> mDisplayModes.setDisplayMode(mode.id, makeDefault));
+            mHalWriter.invalidate();
+            return set;
         }
         return false;
     }
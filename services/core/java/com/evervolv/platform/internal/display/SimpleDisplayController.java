@@ -22,7 +22,6 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.RemoteException;
 
-import com.android.server.display.color.DisplayTransformManager;
 import com.android.server.LocalServices;
 
 import java.io.PrintWriter;
@@ -39,6 +38,7 @@ import vendor.lineage.livedisplay.V2_0.IColorEnhancement;
 import vendor.lineage.livedisplay.V2_0.IReadingEnhancement;
 import vendor.lineage.livedisplay.V2_1.IAntiFlicker;
 
+import static com.evervolv.platform.internal.display.ColorTransformBatcher.CONTRIBUTION_READING;
 import static evervolv.hardware.LiveDisplayManager.FEATURE_ANTI_FLICKER;
 import static evervolv.hardware.LiveDisplayManager.FEATURE_AUTO_CONTRAST;
 import static evervolv.hardware.LiveDisplayManager.FEATURE_CABC;
@@ -68,6 +68,8 @@ public class SimpleDisplayController extends LiveDisplayFeature {
     private IColorEnhancement mColorEnhancement = null;
     private IReadingEnhancement mReadingEnhancement = null;
 
+    private final ColorTransformBatcher mTransformBatcher;
+
     // hardware capabilities
     private final boolean mUseAntiFlicker;
     private final boolean mUseAutoContrast;
@@ -92,21 +94,14 @@ public class SimpleDisplayController extends LiveDisplayFeature {
                  0,      0,      0, 1
     };
 
-    /** Full color matrix and offset */
-    private final float[] MATRIX_NORMAL = {
-            1, 0, 0, 0,
-            0, 1, 0, 0,
-            0, 0, 1, 0,
-            0, 0, 0, 1
-    };
-
-    private static final int LEVEL_COLOR_MATRIX_READING = DisplayTransformManager.LEVEL_COLOR_MATRIX_GRAYSCALE + 1;
-
-    public SimpleDisplayController(Context context, Handler handler) {
-        super(context, handler);
+    public SimpleDisplayController(Context context, Handler handler, HalWriter halWriter,
+            ColorTransformBatcher transformBatcher) {
+        super(context, handler, halWriter);
+        mTransformBatcher = transformBatcher;
 
         try {
             mAdaptiveBacklight = IAdaptiveBacklight.getService();
+            watchHal("IAdaptiveBacklight", mAdaptiveBacklight);
         } catch (NoSuchElementException | RemoteException e) {
         }
         mUseCABC = mAdaptiveBacklight != null;
@@ -116,6 +111,7 @@ public class SimpleDisplayController extends LiveDisplayFeature {
 
         try {
             mAntiFlicker = IAntiFlicker.getService();
+            watchHal("IAntiFlicker", mAntiFlicker);
         } catch (NoSuchElementException | RemoteException e) {
         }
         mUseAntiFlicker = mAntiFlicker != null;
@@ -125,6 +121,7 @@ public class SimpleDisplayController extends LiveDisplayFeature {
 
         try {
             mAutoContrast = IAutoContrast.getService();
+            watchHal("IAutoContrast", mAutoContrast);
         } catch (NoSuchElementException | RemoteException e) {
         }
         mUseAutoContrast = mAutoContrast != null;
@@ -133,6 +130,7 @@ public class SimpleDisplayController extends LiveDisplayFeature {
 
         try {
             mColorEnhancement = IColorEnhancement.getService();
+            watchHal("IColorEnhancement", mColorEnhancement);
         } catch (NoSuchElementException | RemoteException e) {
         }
         mUseColorEnhancement = mColorEnhancement != null;
@@ -141,9 +139,11 @@ public class SimpleDisplayController extends LiveDisplayFeature {
 
         try {
             mReadingEnhancement = IReadingEnhancement.getService();
+            watchHal("IReadingEnhancement", mReadingEnhancement);
         } catch (NoSuchElementException | RemoteException e) {
         }
-        mUseReaderMode = mReadingEnhancement != null || (mAcceleratedTransform && mTransformManager != null);
+        mUseReaderMode = mReadingEnhancement != null
+                || (mAcceleratedTransform && mTransformBatcher.hasTransformManager());
     }
 
     @Override
@@ -281,32 +281,35 @@ public class SimpleDisplayController extends LiveDisplayFeature {
             return;
         }
 
-        try {
-            switch (feature) {
-                case FEATURE_CABC:
-                    mAdaptiveBacklight.setEnabled(getFeature(feature));
-                    break;
-                case FEATURE_AUTO_CONTRAST:
-                    mAutoContrast.setEnabled(getFeature(feature));
-                    break;
-                case FEATURE_COLOR_ENHANCEMENT:
-                    mColorEnhancement.setEnabled(getFeature(feature)
-                            && (!isLowPowerMode() || mDefaultColorEnhancement));
-                    break;
-                case FEATURE_READING_ENHANCEMENT:
-                    if (mReadingEnhancement != null) {
-                        mReadingEnhancement.setEnabled(getFeature(feature));
-                        break;
-                    } else if (mAcceleratedTransform && mTransformManager != null) {
-                        mTransformManager.setColorMatrix(LEVEL_COLOR_MATRIX_READING,
-                                getFeature(feature) ? MATRIX_GRAYSCALE : MATRIX_NORMAL);
-                    }
-                    break;
-                case FEATURE_ANTI_FLICKER:
-                    mAntiFlicker.setEnabled(getFeature(feature));
-                    break;
-            }
-        } catch (NoSuchElementException | RemoteException e) {
+        final boolean enabled = getFeature(feature);
+        switch (feature) {
+            case FEATURE_CABC:
+                mHalWriter.write("IAdaptiveBacklight", "enabled", enabled,
+                        () -> mAdaptiveBacklight.setEnabled(enabled));
+                break;
+            case FEATURE_AUTO_CONTRAST:
+                mHalWriter.write("IAutoContrast", "enabled", enabled,
+                        () -> mAutoContrast.setEnabled(enabled));
+                break;
+            case FEATURE_COLOR_ENHANCEMENT:
+                final boolean enhance = enabled
+                        && (!isLowPowerMode() || mDefaultColorEnhancement);
+                mHalWriter.write("IColorEnhancement", "enabled", enhance,
+                        () -> mColorEnhancement.setEnabled(enhance));
+                break;
+            case FEATURE_READING_ENHANCEMENT:
+                if (mReadingEnhancement != null) {
+                    mHalWriter.write("IReadingEnhancement", "enabled", enabled,
+                            () -> mReadingEnhancement.setEnabled(enabled));
+                } else if (mAcceleratedTransform && mTransformBatcher.hasTransformManager()) {
+                    mTransformBatcher.setMatrix(CONTRIBUTION_READING,
+                            enabled ? MATRIX_GRAYSCALE : null);
+                }
+                break;
+            case FEATURE_ANTI_FLICKER:
+                mHalWriter.write("IAntiFlicker", "enabled", enabled,
+                        () -> mAntiFlicker.setEnabled(enabled));
+                break;
         }
     }
 
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.platform.internal.display;
+
+import android.animation.TimeInterpolator;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Advances all running LiveDisplay transitions on one shared tick, aligned to the display
+ * refresh through the {@link Choreographer} of the LiveDisplay thread.
+ *
+ * Each transition steps at most once per frame, and its value is computed from the frame
+ * time rather than accumulated, so frames the thread misses are skipped instead of replayed.
+ * Listeners are called without any lock of the scheduler held, and only when the value of
+ * their transition changed since their last step. Transitions retargeted with
+ * {@link #restart} reuse their arrays, so a sweep allocates nothing once it runs.
+ */
+final class TransitionScheduler {
+
+    /**
+     * Receives the values of a transition, on the LiveDisplay thread.
+     */
+    interface Listener {
+        /**
+         * @param transition The transition stepping. A step may already be under way when
+         *                   its transition is cancelled on another thread, so listeners
+         *                   which restart transitions should drop steps of the ones they
+         *                   replaced.
+         * @param values The current values, owned by the transition. The last step always
+         *               carries the target values.
+         */
+        void onTransitionStep(Transition transition, float[] values);
+    }
+
+    /**
+     * A transition of a set of values, created by {@link #start}.
+     */
+    static final class Transition {
+        private final float[] mFrom;
+        private final float[] mTo;
+        private final float[] mValues;
+        private final TimeInterpolator mInterpolator;
+        private final Listener mListener;
+
+        // Guarded by the scheduler
+        private long mDurationNanos;
+        private boolean mCancelled;
+        // Whether a step was computed and not delivered yet
+        private boolean mStepped;
+
+        // Set by the first frame
+        private long mStartNanos;
+        private float mFraction;
+
+        private Transition(float[] from, float[] to, long durationNanos,
+                TimeInterpolator interpolator, Listener listener) {
+            mFrom = new float[from.length];
+            mTo = new float[to.length];
+            mValues = new float[from.length];
+            mInterpolator = interpolator;
+            mListener = listener;
+            reset(from, to, durationNanos);
+        }
+
+        private void reset(float[] from, float[] to, long durationNanos) {
+            System.arraycopy(from, 0, mFrom, 0, mFrom.length);
+            System.arraycopy(to, 0, mTo, 0, mTo.length);
+            System.arraycopy(from, 0, mValues, 0, mValues.length);
+            mDurationNanos = durationNanos;
+            mCancelled = false;
+            mStepped = false;
+            mStartNanos = -1;
+            mFraction = -1f;
+        }
+
+        /**
+         * Computes the values at a frame.
+         * @return Whether the values changed since the previous frame.
+         */
+        private boolean advance(long frameTimeNanos) {
+            if (mStartNanos < 0) {
+                mStartNanos = frameTimeNanos;
+            }
+            final long elapsed = frameTimeNanos - mStartNanos;
+            final float fraction = mDurationNanos <= 0 || elapsed >= mDurationNanos ? 1f
+                    : mInterpolator.getInterpolation((float) elapsed / mDurationNanos);
+            if (fraction == mFraction) {
+                return false;
+            }
+            mFraction = fraction;
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] = fraction == 1f ? mTo[i] : mFrom[i] + (mTo[i] - mFrom[i]) * fraction;
+            }
+            return true;
+        }
+
+        private boolean isFinished() {
+            return mFraction == 1f;
+        }
+    }
+
+    private final Handler mHandler;
+
+    // Created on the LiveDisplay thread on first use
+    private Choreographer mChoreographer;
+
+    @GuardedBy("this")
+    private final ArrayList<Transition> mTransitions = new ArrayList<Transition>();
+    @GuardedBy("this")
+    private boolean mFramePending;
+
+    // Only touched on the LiveDisplay thread
+    private final ArrayList<Transition> mStepping = new ArrayList<Transition>();
+    // The transition whose step is being delivered
+    @GuardedBy("this")
+    private Transition mDelivering;
+
+    private int mFrameCount;
+    private int mStepCount;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onFrame(frameTimeNanos);
+        }
+    };
+
+    private final Runnable mScheduleFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            postFrameCallback();
+        }
+    };
+
+    TransitionScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Starts a transition, stepping from the next frame on.
+     *
+     * @param from The values to start at.
+     * @param to The values to end at, of the same length.
+     * @param durationMs The duration of the transition.
+     * @param interpolator The interpolator of the progress.
+     * @param listener Called with the values of each step.
+     * @return The transition, to cancel it with.
+     */
+    Transition start(float[] from, float[] to, long durationMs, TimeInterpolator interpolator,
+            Listener listener) {
+        final Transition transition = new Transition(from, to,
+                TimeUnit.MILLISECONDS.toNanos(durationMs), interpolator, listener);
+        synchronized (this) {
+            mTransitions.add(transition);
+            scheduleFrame();
+        }
+        return transition;
+    }
+
+    /**
+     * Starts a transition in place of another of the same listener, reusing it unless a step
+     * of it is being delivered right now. The transition it replaces is cancelled.
+     *
+     * @param transition The transition to replace, or null.
+     * @return The transition, which may be the one replaced.
+     * @see #start
+     */
+    Transition restart(Transition transition, float[] from, float[] to, long durationMs,
+            TimeInterpolator interpolator, Listener listener) {
+        synchronized (this) {
+            if (transition != null && transition != mDelivering
+                    && transition.mListener == listener
+                    && transition.mInterpolator == interpolator
+                    && transition.mFrom.length == from.length) {
+                // Voids a step computed in this frame which wasn't delivered yet
+                transition.reset(from, to, TimeUnit.MILLISECONDS.toNanos(durationMs));
+                if (!mTransitions.contains(transition)) {
+                    mTransitions.add(transition);
+                }
+                scheduleFrame();
+                return transition;
+            }
+            cancel(transition);
+        }
+        return start(from, to, durationMs, interpolator, listener);
+    }
+
+    /**
+     * Stops a transition at its current values. No step is delivered once this returns,
+     * even one computed in the current frame, but a step already being delivered on another
+     * thread completes.
+     */
+    synchronized void cancel(Transition transition) {
+        if (transition != null) {
+            transition.mCancelled = true;
+            mTransitions.remove(transition);
+        }
+    }
+
+    /**
+     * @return Whether the transition is still stepping.
+     */
+    synchronized boolean isRunning(Transition transition) {
+        return transition != null && mTransitions.contains(transition);
+    }
+
+    @GuardedBy("this")
+    private void scheduleFrame() {
+        if (mFramePending) {
+            return;
+        }
+        mFramePending = true;
+        if (mHandler.getLooper() == Looper.myLooper()) {
+            postFrameCallback();
+        } else {
+            mHandler.post(mScheduleFrameRunnable);
+        }
+    }
+
+    private void postFrameCallback() {
+        if (mChoreographer == null) {
+            mChoreographer = Choreographer.getInstance();
+        }
+        mChoreographer.postFrameCallback(mFrameCallback);
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        synchronized (this) {
+            mFramePending = false;
+            mFrameCount++;
+            for (int i = 0; i < mTransitions.size(); i++) {
+                final Transition transition = mTransitions.get(i);
+                if (transition.advance(frameTimeNanos)) {
+                    transition.mStepped = true;
+                    mStepping.add(transition);
+                }
+                if (transition.isFinished()) {
+                    mTransitions.remove(i--);
+                }
+            }
+            if (!mTransitions.isEmpty()) {
+                scheduleFrame();
+            }
+        }
+
+        for (int i = 0; i < mStepping.size(); i++) {
+            final Transition transition = mStepping.get(i);
+            // An earlier listener of this frame may have cancelled or restarted it
+            synchronized (this) {
+                if (transition.mCancelled || !transition.mStepped) {
+                    continue;
+                }
+                transition.mStepped = false;
+                mDelivering = transition;
+            }
+            mStepCount++;
+            try {
+                transition.mListener.onTransitionStep(transition, transition.mValues);
+            } finally {
+                synchronized (this) {
+                    mDelivering = null;
+                }
+            }
+        }
+        mStepping.clear();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("TransitionScheduler State:");
+        synchronized (this) {
+            pw.println("  running=" + mTransitions.size());
+        }
+        pw.println("  frames=" + mFrameCount + " steps=" + mStepCount);
+    }
+}
@@ -24,6 +24,8 @@ import com.android.server.SystemServiceManager;
 
 import com.evervolv.platform.internal.common.VendorServiceHelper;
 
+import evervolv.provider.EVSettings;
+
 /**
  * Base Vendor System Server which handles the starting and states of various Lineage
  * specific system services. Since its part of the main looper provided by the system
@@ -67,6 +69,12 @@ public class VendorServer {
     }
 
     private void startServices() {
+        // Vendor services read many settings while starting up, so fetch each
+        // table in one go instead of one key at a time.
+        EVSettings.System.setPrefetchPrefix("");
+        EVSettings.Secure.setPrefetchPrefix("");
+        EVSettings.Global.setPrefetchPrefix("");
+
         final Context context = mSystemContext;
         final SystemServiceManager ssm = LocalServices.getService(SystemServiceManager.class);
         String[] externalServices = context.getResources().getStringArray(
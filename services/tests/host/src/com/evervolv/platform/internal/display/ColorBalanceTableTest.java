@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.platform.internal.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ColorBalanceTableTest {
+    private static final int LOWER = 1000;
+    private static final int DAY = 6500;
+    private static final int UPPER = 10000;
+
+    private final ColorBalanceTable mTable = new ColorBalanceTable(LOWER, DAY, UPPER, -100, 100);
+
+    @Test
+    public void testTableMatchesCurve() {
+        for (int temperature = LOWER; temperature <= UPPER; temperature++) {
+            assertEquals("at " + temperature + "K",
+                    mTable.compute(temperature), mTable.get(temperature));
+        }
+    }
+
+    @Test
+    public void testCurveSpansBalanceRange() {
+        assertEquals(-100, mTable.get(LOWER));
+        assertEquals(0, mTable.get(DAY));
+        assertEquals(100, mTable.get(UPPER));
+    }
+
+    @Test
+    public void testCurveIsMonotonic() {
+        for (int temperature = LOWER + 1; temperature <= UPPER; temperature++) {
+            assertTrue("at " + temperature + "K",
+                    mTable.get(temperature) >= mTable.get(temperature - 1));
+        }
+    }
+
+    @Test
+    public void testOutOfRangeUsesCurve() {
+        assertEquals(mTable.compute(UPPER + 500), mTable.get(UPPER + 500));
+        assertTrue(mTable.get(UPPER + 500) >= 100);
+    }
+
+    @Test
+    public void testEmptyRange() {
+        final ColorBalanceTable table = new ColorBalanceTable(UPPER, DAY, LOWER, 0, 0);
+        assertEquals(table.compute(DAY), table.get(DAY));
+    }
+}
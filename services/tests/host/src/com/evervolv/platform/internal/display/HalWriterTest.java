@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.platform.internal.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class HalWriterTest {
+
+    /**
+     * Stands in for a HIDL service, recording what reached it.
+     */
+    private static final class FakeHal {
+        final List<Object> values = new ArrayList<Object>();
+        boolean accept = true;
+        boolean dead;
+
+        HalWriter.HalCall set(Object value) {
+            return () -> {
+                if (dead) {
+                    throw new IllegalStateException("HAL died");
+                }
+                values.add(value);
+                return accept;
+            };
+        }
+    }
+
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<Runnable>();
+    private long mNanos;
+
+    private HalWriter mWriter;
+    private FakeHal mHal;
+    private FakeHal mOtherHal;
+
+    @Before
+    public void setUp() {
+        mWriter = new HalWriter(mQueue::add, () -> mNanos += 1000);
+        mHal = new FakeHal();
+        mOtherHal = new FakeHal();
+    }
+
+    private void runQueue() {
+        while (!mQueue.isEmpty()) {
+            mQueue.poll().run();
+        }
+    }
+
+    private String dump() {
+        final StringWriter out = new StringWriter();
+        mWriter.dump(new PrintWriter(out));
+        return out.toString();
+    }
+
+    @Test
+    public void testWriteDropsHeldValue() {
+        assertTrue(mWriter.write("IHal", "enabled", true, mHal.set(true)));
+        assertTrue(mWriter.write("IHal", "enabled", true, mHal.set(true)));
+        assertTrue(mWriter.write("IHal", "enabled", false, mHal.set(false)));
+        assertEquals(List.of(true, false), mHal.values);
+    }
+
+    @Test
+    public void testWriteComparesArraysByContent() {
+        mWriter.write("IHal", "rgb", new int[] { 1, 2, 3 }, mHal.set(1));
+        mWriter.write("IHal", "rgb", new int[] { 1, 2, 3 }, mHal.set(2));
+        mWriter.write("IHal", "rgb", new int[] { 1, 2, 4 }, mHal.set(3));
+        assertEquals(List.of(1, 3), mHal.values);
+    }
+
+    @Test
+    public void testTargetsAreSeparate() {
+        mWriter.write("IHal", "a", 1, mHal.set("a"));
+        mWriter.write("IHal", "b", 1, mHal.set("b"));
+        mWriter.write("IOtherHal", "a", 1, mOtherHal.set("a"));
+        assertEquals(List.of("a", "b"), mHal.values);
+        assertEquals(List.of("a"), mOtherHal.values);
+    }
+
+    @Test
+    public void testRejectedWriteIsRetried() {
+        mHal.accept = false;
+        assertFalse(mWriter.write("IHal", "enabled", true, mHal.set(1)));
+        mHal.accept = true;
+        assertTrue(mWriter.write("IHal", "enabled", true, mHal.set(2)));
+        assertEquals(List.of(1, 2), mHal.values);
+    }
+
+    @Test
+    public void testFailedWriteIsRetriedAndReported() {
+        mHal.dead = true;
+        assertFalse(mWriter.write("IHal", "enabled", true, mHal.set(1)));
+        assertTrue(dump().contains("lastFailure=java.lang.IllegalStateException: HAL died"));
+        mHal.dead = false;
+        assertTrue(mWriter.write("IHal", "enabled", true, mHal.set(2)));
+        assertEquals(List.of(2), mHal.values);
+    }
+
+    @Test
+    public void testPostMergesUntilExecuted() {
+        mWriter.post("IHal", "level", 1, mHal.set(1));
+        mWriter.post("IHal", "level", 2, mHal.set(2));
+        mWriter.post("IHal", "level", 3, mHal.set(3));
+        assertEquals(1, mQueue.size());
+        assertTrue(mHal.values.isEmpty());
+
+        runQueue();
+        assertEquals(List.of(3), mHal.values);
+        assertTrue(dump().contains("IHal: calls=1 failures=0 dropped=0 merged=2"));
+    }
+
+    @Test
+    public void testPostKeepsOrderOfTargets() {
+        mWriter.post("IHal", "b", 1, mHal.set("b"));
+        mWriter.post("IHal", "a", 1, mHal.set("a"));
+        mWriter.post("IHal", "b", 2, mHal.set("b2"));
+        runQueue();
+        assertEquals(List.of("b2", "a"), mHal.values);
+    }
+
+    @Test
+    public void testPostDropsHeldValue() {
+        mWriter.write("IHal", "level", 1, mHal.set(1));
+        mWriter.post("IHal", "level", 1, mHal.set(2));
+        runQueue();
+        assertEquals(List.of(1), mHal.values);
+    }
+
+    @Test
+    public void testWriteSupersedesPost() {
+        mWriter.post("IHal", "level", 1, mHal.set(1));
+        mWriter.write("IHal", "level", 2, mHal.set(2));
+        runQueue();
+        assertEquals(List.of(2), mHal.values);
+    }
+
+    @Test
+    public void testInvalidateForgetsAllHals() {
+        mWriter.write("IHal", "enabled", true, mHal.set(1));
+        mWriter.write("IOtherHal", "enabled", true, mOtherHal.set(1));
+        mWriter.invalidate();
+        mWriter.write("IHal", "enabled", true, mHal.set(2));
+        mWriter.write("IOtherHal", "enabled", true, mOtherHal.set(2));
+        assertEquals(List.of(1, 2), mHal.values);
+        assertEquals(List.of(1, 2), mOtherHal.values);
+    }
+
+    @Test
+    public void testInvalidateHalForgetsOnlyThatHal() {
+        mWriter.write("IHal", "enabled", true, mHal.set(1));
+        mWriter.write("IHalExtra", "enabled", true, mHal.set("extra"));
+        mWriter.write("IOtherHal", "enabled", true, mOtherHal.set(1));
+        // As a death recipient of the HAL would
+        mWriter.invalidate("IHal");
+        mWriter.write("IHal", "enabled", true, mHal.set(2));
+        mWriter.write("IHalExtra", "enabled", true, mHal.set("extra2"));
+        mWriter.write("IOtherHal", "enabled", true, mOtherHal.set(2));
+        assertEquals(List.of(1, "extra", 2), mHal.values);
+        assertEquals(List.of(1), mOtherHal.values);
+    }
+
+    @Test
+    public void testCallIsNeverSkipped() {
+        assertTrue(mWriter.call("IDisplayModes", mHal.set(1)));
+        assertTrue(mWriter.call("IDisplayModes", mHal.set(1)));
+        mHal.accept = false;
+        assertFalse(mWriter.call("IDisplayModes", mHal.set(1)));
+        assertEquals(List.of(1, 1, 1), mHal.values);
+        assertTrue(dump().contains("IDisplayModes: calls=3 failures=1"));
+    }
+
+    @Test
+    public void testCallRemembersNothing() {
+        mWriter.call("IHal", mHal.set(1));
+        assertTrue(dump().contains("applied=0"));
+    }
+
+    @Test
+    public void testIntsTargetDropsHeldValues() {
+        final List<String> calls = new ArrayList<String>();
+        final HalWriter.IntsTarget target = mWriter.intsTarget("IHal", "rgb", 3, values -> {
+            calls.add(Arrays.toString(values));
+            return true;
+        });
+        final int[] values = { 1, 2, 3 };
+        assertTrue(mWriter.write(target, values));
+        assertTrue(mWriter.write(target, values));
+        // The writer keeps its own copy, callers reuse their arrays
+        values[2] = 4;
+        assertTrue(mWriter.write(target, values));
+        assertEquals(List.of("[1, 2, 3]", "[1, 2, 4]"), calls);
+        assertTrue(dump().contains("IHal/rgb=[1, 2, 4]"));
+    }
+
+    @Test
+    public void testIntsTargetIsRetriedAfterFailure() {
+        final int[] accepted = { 0 };
+        final HalWriter.IntsTarget target = mWriter.intsTarget("IHal", "level", 1, values -> {
+            if (mHal.dead) {
+                throw new IllegalStateException("HAL died");
+            }
+            accepted[0]++;
+            return true;
+        });
+        mHal.dead = true;
+        assertFalse(mWriter.write(target, new int[] { 1 }));
+        assertTrue(dump().contains("IHal/level=unknown"));
+        mHal.dead = false;
+        assertTrue(mWriter.write(target, new int[] { 1 }));
+        assertEquals(1, accepted[0]);
+    }
+
+    @Test
+    public void testIntsTargetIsInvalidated() {
+        final int[] calls = { 0 };
+        final HalWriter.IntsTarget target = mWriter.intsTarget("IHal", "level", 1, values -> {
+            calls[0]++;
+            return true;
+        });
+        final HalWriter.IntsTarget other = mWriter.intsTarget("IOtherHal", "level", 1,
+                values -> {
+                    calls[0]++;
+                    return true;
+                });
+        final int[] values = { 7 };
+        mWriter.write(target, values);
+        mWriter.write(other, values);
+        assertEquals(2, calls[0]);
+
+        mWriter.invalidate("IOtherHal");
+        mWriter.write(target, values);
+        mWriter.write(other, values);
+        assertEquals(3, calls[0]);
+
+        mWriter.invalidate();
+        mWriter.write(target, values);
+        mWriter.write(other, values);
+        assertEquals(5, calls[0]);
+    }
+
+    @Test
+    public void testCallsAreTimedWithClock() {
+        mWriter.write("IHal", "enabled", true, () -> {
+            mNanos += 5_000_000;
+            return true;
+        });
+        // 5ms in the call, plus one tick of the fake clock
+        assertTrue(dump().contains("avgUs=5001 maxUs=5001"));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.platform.internal.display;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import evervolv.util.ColorUtils;
+
+/**
+ * Measures the color temperature conversions of a twilight sweep, one Kelvin per iteration
+ * across the default range: the balance table against the curve it replaces, and the RGB
+ * conversion into a reused buffer against the allocating one.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ColorTemperaturePerfTest {
+    // The defaults of config_minColorTemperature, config_dayColorTemperature and
+    // config_maxColorTemperature
+    private static final int LOWER = 1000;
+    private static final int DAY = 6500;
+    private static final int UPPER = 10000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final ColorBalanceTable mTable = new ColorBalanceTable(LOWER, DAY, UPPER, -100, 100);
+    private final float[] mRGB = new float[3];
+
+    // Keeps the results alive
+    private int mSink;
+
+    private static int next(int temperature) {
+        return temperature < UPPER ? temperature + 1 : LOWER;
+    }
+
+    @Test
+    public void timeBalanceFromTable() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int temperature = LOWER;
+        while (state.keepRunning()) {
+            mSink += mTable.get(temperature);
+            temperature = next(temperature);
+        }
+    }
+
+    @Test
+    public void timeBalanceFromCurve() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int temperature = LOWER;
+        while (state.keepRunning()) {
+            mSink += mTable.compute(temperature);
+            temperature = next(temperature);
+        }
+    }
+
+    @Test
+    public void timeTemperatureToRgbInPlace() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int temperature = LOWER;
+        while (state.keepRunning()) {
+            ColorUtils.temperatureToRGB(temperature, mRGB);
+            mSink += (int) mRGB[0];
+            temperature = next(temperature);
+        }
+    }
+
+    @Test
+    public void timeTemperatureToRgbAllocating() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int temperature = LOWER;
+        while (state.keepRunning()) {
+            mSink += (int) ColorUtils.temperatureToRGB(temperature)[0];
+            temperature = next(temperature);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.UserHandle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.test.mock.MockContentResolver;
+import android.util.MemoryIntArray;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cache hits of one thread, alone and while other readers hit the same setting,
+ * against the hit path the cache had before it went lock-free: a map guarded by the cache
+ * monitor, checked against the generation tracker under it.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class EVSettingsCachePerfTest {
+    // Readers in all, counting the one timed
+    private static final int READERS = 8;
+    private static final long TIMEOUT_MS = 30 * 1000;
+    private static final String NAME = "cache_perf_hit";
+    private static final String VALUE = "1";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private MockContentResolver mResolver;
+    private SynchronizedCache mSynchronizedCache;
+    private volatile boolean mStopped;
+
+    // Keeps the results alive
+    private int mSink;
+
+    private interface Reader {
+        String read();
+    }
+
+    /**
+     * The hit path of the cache before it went lock-free.
+     */
+    private static final class SynchronizedCache {
+        private static final int GENERATION_SLOTS = 64;
+
+        private static final class CachedValue {
+            final String value;
+            final long generation;
+
+            CachedValue(String value, long generation) {
+                this.value = value;
+                this.generation = generation;
+            }
+        }
+
+        private final HashMap<String, CachedValue> mValues = new HashMap<String, CachedValue>();
+        private final MemoryIntArray mGenerations;
+
+        SynchronizedCache() throws IOException {
+            mGenerations = new MemoryIntArray(GENERATION_SLOTS);
+        }
+
+        synchronized void put(String name, String value) throws IOException {
+            mValues.put(name, new CachedValue(value, getGenerationLocked(name)));
+        }
+
+        synchronized String get(String name) {
+            try {
+                final CachedValue cached = mValues.get(name);
+                return cached != null && cached.generation == getGenerationLocked(name)
+                        ? cached.value : null;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private long getGenerationLocked(String name) throws IOException {
+            return mGenerations.get(EVSettings.getGenerationIndex(name, GENERATION_SLOTS));
+        }
+
+        void close() throws IOException {
+            mGenerations.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mResolver = EVSettingsCacheTest.getResolver();
+        EVSettingsCacheTest.sProvider.put(NAME, VALUE);
+        mSynchronizedCache = new SynchronizedCache();
+        mSynchronizedCache.put(NAME, VALUE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSynchronizedCache.close();
+    }
+
+    private String getCached() {
+        return EVSettings.Secure.getStringForUser(mResolver, NAME, UserHandle.myUserId());
+    }
+
+    private void timeHits(Reader reader, int readers) throws Exception {
+        // Fills the cache, so every read timed is a hit
+        assertEquals(VALUE, reader.read());
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+        mStopped = false;
+        for (int t = 1; t < readers; t++) {
+            results.add(executor.submit(() -> {
+                while (!mStopped) {
+                    assertEquals(VALUE, reader.read());
+                }
+                return null;
+            }));
+        }
+        try {
+            final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                if (reader.read() != null) {
+                    mSink++;
+                }
+            }
+        } finally {
+            mStopped = true;
+            for (Future<?> result : results) {
+                result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void timeHit() throws Exception {
+        timeHits(this::getCached, 1);
+    }
+
+    @Test
+    public void timeHitContended() throws Exception {
+        timeHits(this::getCached, READERS);
+    }
+
+    @Test
+    public void timeSynchronizedHit() throws Exception {
+        timeHits(() -> mSynchronizedCache.get(NAME), 1);
+    }
+
+    @Test
+    public void timeSynchronizedHitContended() throws Exception {
+        timeHits(() -> mSynchronizedCache.get(NAME), READERS);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.test.mock.MockContentResolver;
+import android.util.MemoryIntArray;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the client side cache of settings against a provider running in process, which
+ * counts the calls it gets and hands out a generation tracker of its own.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class EVSettingsCacheTest {
+    private static final int THREADS = 8;
+    private static final int READS_PER_THREAD = 1000;
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    // The provider is looked up once per process, so every test, EVSettingsCachePerfTest
+    // included, shares it and uses keys of its own.
+    static final FakeSettingsProvider sProvider = new FakeSettingsProvider();
+    private static MockContentResolver sResolver;
+
+    /**
+     * @return The resolver serving {@link #sProvider}, which is set up on first use.
+     */
+    static synchronized MockContentResolver getResolver() {
+        if (sResolver == null) {
+            final Context context = InstrumentationRegistry.getContext();
+            final ProviderInfo info = new ProviderInfo();
+            info.authority = EVSettings.AUTHORITY;
+            sProvider.attachInfo(context, info);
+            sResolver = new MockContentResolver(context);
+            sResolver.addProvider(EVSettings.AUTHORITY, sProvider);
+        }
+        return sResolver;
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        getResolver();
+        // Installs the generation tracker before any test reads from several threads
+        get("cache_test_warm_up");
+        assertEquals(1, sProvider.getCalls("cache_test_warm_up"));
+    }
+
+    private static String get(String name) {
+        return EVSettings.Secure.getStringForUser(sResolver, name, UserHandle.myUserId());
+    }
+
+    @Test
+    public void testHitDoesNotCallProvider() {
+        sProvider.put("cache_test_hit", "1");
+        for (int i = 0; i < 10; i++) {
+            assertEquals("1", get("cache_test_hit"));
+        }
+        assertEquals(1, sProvider.getCalls("cache_test_hit"));
+    }
+
+    @Test
+    public void testMissingSettingIsCached() {
+        for (int i = 0; i < 10; i++) {
+            assertNull(get("cache_test_missing"));
+        }
+        assertEquals(1, sProvider.getCalls("cache_test_missing"));
+    }
+
+    @Test
+    public void testChangeIsFetchedOnce() {
+        sProvider.put("cache_test_change", "1");
+        assertEquals("1", get("cache_test_change"));
+
+        sProvider.put("cache_test_change", "2");
+        for (int i = 0; i < 10; i++) {
+            assertEquals("2", get("cache_test_change"));
+        }
+        assertEquals(2, sProvider.getCalls("cache_test_change"));
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        sProvider.put("cache_test_concurrent", "1");
+        assertEquals("1", get("cache_test_concurrent"));
+
+        readConcurrently("cache_test_concurrent", "1");
+        assertEquals(1, sProvider.getCalls("cache_test_concurrent"));
+
+        // Readers racing on the miss may each fetch the new value, but only once
+        sProvider.put("cache_test_concurrent", "2");
+        readConcurrently("cache_test_concurrent", "2");
+        final int calls = sProvider.getCalls("cache_test_concurrent");
+        assertTrue("Provider called " + calls + " times", calls >= 2 && calls <= 1 + THREADS);
+    }
+
+    private static void readConcurrently(String name, String expected) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < READS_PER_THREAD; i++) {
+                    assertEquals(expected, get(name));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Serves secure settings from memory the way the settings provider does over call(),
+     * bumping the generation of a setting on every change.
+     */
+    public static class FakeSettingsProvider extends ContentProvider {
+        private static final int GENERATION_SLOTS = 64;
+
+        private final ConcurrentHashMap<String, String> mValues =
+                new ConcurrentHashMap<String, String>();
+        private final ConcurrentHashMap<String, AtomicInteger> mCalls =
+                new ConcurrentHashMap<String, AtomicInteger>();
+        private MemoryIntArray mGenerations;
+
+        @Override
+        public boolean onCreate() {
+            try {
+                mGenerations = new MemoryIntArray(GENERATION_SLOTS);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return true;
+        }
+
+        void put(String name, String value) {
+            mValues.put(name, value);
+            final int index = EVSettings.getGenerationIndex(name, GENERATION_SLOTS);
+            synchronized (this) {
+                try {
+                    mGenerations.set(index, mGenerations.get(index) + 1);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        int getCalls(String name) {
+            final AtomicInteger calls = mCalls.get(name);
+            return calls != null ? calls.get() : 0;
+        }
+
+        @Override
+        public Bundle call(String method, String name, Bundle args) {
+            if (!EVSettings.CALL_METHOD_GET_SECURE.equals(method)) {
+                return null;
+            }
+            mCalls.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+
+            final Bundle result = new Bundle();
+            try {
+                // As of before the lookup, so a change racing it is fetched again
+                final int generation = mGenerations.get(
+                        EVSettings.getGenerationIndex(name, GENERATION_SLOTS));
+                if (args != null
+                        && args.getBoolean(EVSettings.CALL_METHOD_TRACK_GENERATION_KEY)) {
+                    result.putParcelable(EVSettings.CALL_METHOD_TRACK_GENERATION_KEY,
+                            mGenerations);
+                    result.putInt(EVSettings.CALL_METHOD_GENERATION_KEY, generation);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            result.putString(Settings.NameValueTable.VALUE, mValues.get(name));
+            return result;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import evervolv.provider.EVSettings.Validator;
+
+/**
+ * Measures the validators a put runs, each on a valid value, since those are the common case
+ * and the ones which used to be split and parsed into new objects.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class EVSettingsValidatorsPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    // Keeps the results alive
+    private int mSink;
+
+    private void timeValidate(Validator validator, String value) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            if (validator.validate(value)) {
+                mSink++;
+            }
+        }
+    }
+
+    @Test
+    public void timeBoolean() {
+        timeValidate(EVSettings.System.PROXIMITY_ON_WAKE_VALIDATOR, "1");
+    }
+
+    @Test
+    public void timeIntegerRange() {
+        timeValidate(EVSettings.System.BUTTON_BRIGHTNESS_VALIDATOR, "255");
+    }
+
+    @Test
+    public void timeFloatRange() {
+        timeValidate(EVSettings.System.PREFERRED_REFRESH_RATE_VALIDATOR, "120.0");
+    }
+
+    @Test
+    public void timeColorAdjustment() {
+        timeValidate(EVSettings.System.DISPLAY_COLOR_ADJUSTMENT_VALIDATOR, "1.0 0.95 0.875");
+    }
+
+    @Test
+    public void timePictureAdjustment() {
+        timeValidate(EVSettings.System.DISPLAY_PICTURE_ADJUSTMENT_VALIDATOR,
+                "0:0.0,1:50.0,2:0.0,3:50.0,4:50.0");
+    }
+
+    @Test
+    public void timePulseCustomValues() {
+        timeValidate(EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_VALIDATOR,
+                "com.android.messaging=-16711936;500;2000|com.android.dialer=-65536;1000;1000");
+    }
+}
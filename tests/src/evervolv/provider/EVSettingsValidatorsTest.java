@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.text.TextUtils;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import evervolv.provider.EVSettings.Validator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the validators, which scan values in place, against the splitting and parsing they
+ * replace: hand picked corner cases first, then random values of the same alphabet.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class EVSettingsValidatorsTest {
+    private static final int RANDOM_VALUES = 20000;
+    private static final String ALPHABET = "0123456789-+. ;=|:,eEx\t\u0660";
+
+    private static final String[] NUMBERS = {
+        "", " ", "-", "+", ".", "0", "1", "9", "10", "-0", "+0", "-1", "+1", "-3", "-4", "00",
+        "007", "1 ", " 1", "1.", ".5", "0.5", "1.0", "1.5", "1e0", "1E-1", "0x1", "1f", "1d",
+        "NaN", "Infinity", "-Infinity", "255", "256", "240", "240.0", "240.00001", "1.00000001",
+        "1.000000059604644775390625", "0.00000000000000000000001", "2147483647", "2147483648",
+        "-2147483648", "-2147483649", "99999999999", "\u0661", "\u0661\u0660", "1\t", "--1",
+        "+-1", "1-", "a", "0.9999999999999999",
+    };
+
+    private static final String[] COLOR_ADJUSTMENTS = {
+        "", " ", "1 1 1", "0 0.5 1", "1 1 1 ", "1 1 1  ", " 1 1 1", "1  1 1", "1 1", "1 1 1 1",
+        "1 1 2", "-0 0 0", "1\t 1 1", "1e0 1 1", "a 1 1", "NaN 1 1", "1 1 1.0000001",
+    };
+
+    private static final String[] PICTURE_ADJUSTMENTS = {
+        "", ":", "a:b", "a:b,c:d", "a:b,", ",a:b", "a:b,,c:d", "a:", ":b", "a", "a:b:c", "a::b",
+        ",", "a:b,c",
+    };
+
+    private static final String[] PULSE_VALUES = {
+        "", "|", "||", "com.a=1;2;3", "com.a=1;2;3|", "com.a=1;2;3||", "|com.a=1;2;3",
+        "com.a=1;2;3||com.b=1;2;3", "com.a=1;2;3|com.b=-16777216;0;2147483647", "=1;2;3",
+        "com.a=", "com.a", "com.a=1;2", "com.a=1;2;3;4", "com.a=1;2;3;", "com.a=1;2;3;;",
+        "com.a=1;2;3=", "com.a=1;2;3==", "com.a==1;2;3", "com.a=1;-2;3", "com.a=1;2;-3",
+        "com.a=x;2;3", "com.a=1;;3", "com.a=;2;3", "com.a=1;2;", "com.a=2147483648;2;3",
+        "com.a=1;2;3|com.b", "com.a=1;2;3|=",
+    };
+
+    private interface Reference {
+        boolean validate(String value);
+    }
+
+    // What the validators did before they parsed in place
+
+    private static Reference integerRange(int min, int max) {
+        return value -> {
+            try {
+                final int intValue = Integer.parseInt(value);
+                return intValue >= min && intValue <= max;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        };
+    }
+
+    private static Reference floatRange(float min, float max) {
+        return value -> {
+            try {
+                final float floatValue = Float.parseFloat(value);
+                return floatValue >= min && floatValue <= max;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        };
+    }
+
+    private static final Reference sColorAdjustment = value -> {
+        final String[] colorAdjustment = value.split(" ");
+        if (colorAdjustment.length != 3) {
+            return false;
+        }
+        final Reference floatValidator = floatRange(0, 1);
+        return floatValidator.validate(colorAdjustment[0])
+                && floatValidator.validate(colorAdjustment[1])
+                && floatValidator.validate(colorAdjustment[2]);
+    };
+
+    private static final Reference sPictureAdjustment = value -> {
+        if (TextUtils.isEmpty(value)) {
+            return true;
+        }
+        for (String s : TextUtils.split(value, ",")) {
+            if (TextUtils.split(s, ":").length != 2) {
+                return false;
+            }
+        }
+        return true;
+    };
+
+    private static final Reference sPulseValues = value -> {
+        if (TextUtils.isEmpty(value)) {
+            return true;
+        }
+        final Reference color = integerRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        final Reference time = integerRange(0, Integer.MAX_VALUE);
+        for (String packageValuesString : value.split("\\|")) {
+            final String[] packageValues = packageValuesString.split("=");
+            if (packageValues.length != 2 || TextUtils.isEmpty(packageValues[0])) {
+                return false;
+            }
+            final String[] values = packageValues[1].split(";");
+            if (values.length != 3 || !color.validate(values[0]) || !time.validate(values[1])
+                    || !time.validate(values[2])) {
+                return false;
+            }
+        }
+        return true;
+    };
+
+    private static void assertSameAs(Reference reference, Validator validator,
+            List<String> values) {
+        for (String value : values) {
+            assertEquals("\"" + value + "\"", reference.validate(value), validator.validate(value));
+        }
+    }
+
+    private static List<String> withRandomValues(String[] values, int maxLength) {
+        final ArrayList<String> result = new ArrayList<String>();
+        for (String value : values) {
+            result.add(value);
+        }
+        // Fixed seed, so a failure is reproducible
+        final Random random = new Random(0);
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < RANDOM_VALUES; i++) {
+            builder.setLength(0);
+            final int length = random.nextInt(maxLength + 1);
+            for (int j = 0; j < length; j++) {
+                // Mostly digits, so some of the values parse
+                builder.append(random.nextInt(3) == 0
+                        ? ALPHABET.charAt(random.nextInt(ALPHABET.length()))
+                        : (char) ('0' + random.nextInt(10)));
+            }
+            result.add(builder.toString());
+        }
+        return result;
+    }
+
+    private static List<String> withRandomValues(String[] values, String[] fields,
+            String delimiters) {
+        final ArrayList<String> result = new ArrayList<String>();
+        for (String value : values) {
+            result.add(value);
+        }
+        // Values glued together from fields of the corner cases
+        final Random random = new Random(0);
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < RANDOM_VALUES; i++) {
+            builder.setLength(0);
+            final int count = random.nextInt(6);
+            for (int j = 0; j < count; j++) {
+                builder.append(fields[random.nextInt(fields.length)]);
+                if (random.nextInt(4) != 0) {
+                    builder.append(delimiters.charAt(random.nextInt(delimiters.length())));
+                }
+            }
+            result.add(builder.toString());
+        }
+        return result;
+    }
+
+    @Test
+    public void testBoolean() {
+        final Validator validator = EVSettings.System.PROXIMITY_ON_WAKE_VALIDATOR;
+        assertTrue(validator.validate("0"));
+        assertTrue(validator.validate("1"));
+        assertSameAs(value -> "0".equals(value) || "1".equals(value), validator,
+                withRandomValues(NUMBERS, 3));
+        assertFalse(validator.validate(null));
+    }
+
+    @Test
+    public void testIntegerRanges() {
+        final List<String> values = withRandomValues(NUMBERS, 12);
+        assertSameAs(integerRange(0, 9), EVSettings.System.KEY_HOME_LONG_PRESS_ACTION_VALIDATOR,
+                values);
+        assertSameAs(integerRange(0, 6), EVSettings.System.STATUS_BAR_BATTERY_STYLE_VALIDATOR,
+                values);
+        assertSameAs(integerRange(1, 255), EVSettings.System.BUTTON_BRIGHTNESS_VALIDATOR,
+                values);
+        assertSameAs(integerRange(-3, 1), EVSettings.System.LIVE_DISPLAY_HINTED_VALIDATOR,
+                values);
+        assertSameAs(integerRange(Integer.MIN_VALUE, Integer.MAX_VALUE),
+                EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR_VALIDATOR, values);
+        assertFalse(EVSettings.System.BUTTON_BRIGHTNESS_VALIDATOR.validate(null));
+    }
+
+    @Test
+    public void testFloatRange() {
+        assertSameAs(floatRange(0, 240), EVSettings.System.PREFERRED_REFRESH_RATE_VALIDATOR,
+                withRandomValues(NUMBERS, 30));
+        assertFalse(EVSettings.System.PREFERRED_REFRESH_RATE_VALIDATOR.validate(null));
+    }
+
+    @Test
+    public void testColorAdjustment() {
+        final Validator validator = EVSettings.System.DISPLAY_COLOR_ADJUSTMENT_VALIDATOR;
+        assertSameAs(sColorAdjustment, validator,
+                withRandomValues(COLOR_ADJUSTMENTS, NUMBERS, "  ;"));
+        assertTrue(validator.validate(null));
+    }
+
+    @Test
+    public void testPictureAdjustment() {
+        final Validator validator = EVSettings.System.DISPLAY_PICTURE_ADJUSTMENT_VALIDATOR;
+        assertSameAs(sPictureAdjustment, validator,
+                withRandomValues(PICTURE_ADJUSTMENTS, PICTURE_ADJUSTMENTS, ",:"));
+        assertTrue(validator.validate(null));
+    }
+
+    @Test
+    public void testPulseCustomValues() {
+        final Validator validator =
+                EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_VALIDATOR;
+        assertSameAs(sPulseValues, validator,
+                withRandomValues(PULSE_VALUES, PULSE_VALUES, "|=;"));
+        assertSameAs(sPulseValues, validator,
+                withRandomValues(new String[0], NUMBERS, "|=;"));
+        assertTrue(validator.validate(null));
+    }
+}